@@ -0,0 +1,126 @@
+package edu.berkeley.cs.amplab.carat.android.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Runs ConditionalDownload against a local stand-in for the daemons.txt
+ * server, which answers If-None-Match with a 304 and gzips the body when
+ * asked to.
+ */
+public class ConditionalDownloadTest {
+
+    private static final String LAST_MODIFIED = "Sat, 17 Oct 2026 10:00:00 GMT";
+
+    private static volatile String content = "com.a\ncom.b*\n*:remote\n";
+    private static volatile String etag = "\"v1\"";
+    private static volatile boolean gzipped = false;
+    private static int requests = 0;
+    private static int bodies = 0;
+
+    public static void main(String[] args) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(
+                "127.0.0.1", 0), 0);
+        server.createContext("/daemons.txt", new HttpHandler() {
+            public void handle(HttpExchange ex) throws IOException {
+                serve(ex);
+            }
+        });
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort()
+                + "/daemons.txt";
+        try {
+            run(url);
+        } finally {
+            server.stop(0);
+        }
+        System.out.println("ConditionalDownloadTest: OK");
+    }
+
+    private static void run(String url) throws Exception {
+        // First download: the whole body, gzipped, with its validators
+        ConditionalDownload first = new ConditionalDownload(url, null, null);
+        byte[] body = first.fetch();
+        check(body != null, "first fetch returned no body");
+        check(content.equals(new String(body, "UTF-8")), "wrong body");
+        check(gzipped, "body was not gzipped");
+        check("\"v1\"".equals(first.getETag()), "ETag not kept");
+        check(LAST_MODIFIED.equals(first.getLastModified()),
+                "Last-Modified not kept");
+        String hash = ConditionalDownload.md5(body);
+
+        // Unchanged: a 304, nothing to read
+        ConditionalDownload repeat = new ConditionalDownload(url,
+                first.getETag(), first.getLastModified());
+        check(repeat.fetch() == null, "no 304 for an unchanged file");
+        check("\"v1\"".equals(repeat.getETag()), "ETag lost on a 304");
+
+        // New ETag, same content: a body, but the same hash
+        etag = "\"v2\"";
+        ConditionalDownload touched = new ConditionalDownload(url,
+                first.getETag(), null);
+        byte[] same = touched.fetch();
+        check(same != null, "no body for a new ETag");
+        check(hash.equals(ConditionalDownload.md5(same)),
+                "same content, different hash");
+        check("\"v2\"".equals(touched.getETag()), "new ETag not kept");
+
+        // Changed content: a new hash
+        content = "com.c\n";
+        etag = "\"v3\"";
+        byte[] changed = new ConditionalDownload(url, "\"v2\"", null).fetch();
+        check("com.c\n".equals(new String(changed, "UTF-8")),
+                "changed body not returned");
+        check(!hash.equals(ConditionalDownload.md5(changed)),
+                "changed content, same hash");
+
+        try {
+            new ConditionalDownload(url.replace("daemons", "missing"), null,
+                    null).fetch();
+            check(false, "no exception for a 404");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        check(requests == 4, "expected 4 requests, got " + requests);
+        check(bodies == 3, "expected 3 bodies, got " + bodies);
+    }
+
+    private static void serve(HttpExchange ex) throws IOException {
+        requests++;
+        String inm = ex.getRequestHeaders().getFirst("If-None-Match");
+        if (etag.equals(inm)) {
+            ex.sendResponseHeaders(304, -1);
+            ex.close();
+            return;
+        }
+        bodies++;
+        byte[] body = content.getBytes("UTF-8");
+        ex.getResponseHeaders().set("ETag", etag);
+        ex.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+        gzipped = "gzip".equals(ex.getRequestHeaders().getFirst(
+                "Accept-Encoding"));
+        if (gzipped) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            GZIPOutputStream gz = new GZIPOutputStream(bos);
+            gz.write(body);
+            gz.close();
+            body = bos.toByteArray();
+            ex.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        ex.sendResponseHeaders(200, body.length);
+        ex.getResponseBody().write(body);
+        ex.close();
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,255 @@
+package edu.berkeley.cs.amplab.carat.android.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import edu.berkeley.cs.amplab.carat.android.storage.SimpleHogBug;
+import edu.berkeley.cs.amplab.carat.thrift.CaratService;
+import edu.berkeley.cs.amplab.carat.thrift.Feature;
+import edu.berkeley.cs.amplab.carat.thrift.HogBugReport;
+import edu.berkeley.cs.amplab.carat.thrift.HogsBugs;
+import edu.berkeley.cs.amplab.carat.thrift.Reports;
+
+/**
+ * Feeds CaratClient hand-written getReports and getHogOrBugReport replies,
+ * with and without the version fields 100-102 of a server that versions its
+ * reports.
+ */
+public class VersionedReplyTest {
+
+    private static final short VERSION = 100;
+    private static final short INCREMENTAL = 101;
+    private static final short REMOVED = 102;
+
+    private static final List<Feature> FEATURES = new ArrayList<Feature>();
+
+    public static void main(String[] args) throws Exception {
+        oldServer();
+        notModified();
+        missingResult();
+        incremental();
+        System.out.println("VersionedReplyTest: OK");
+    }
+
+    /*
+     * A server that does not version reports sends just the result, and
+     * ignores the version feature.
+     */
+    private static void oldServer() throws Exception {
+        Reports reports = new Reports();
+        reports.setJScore(0.5);
+        Reply reply = new Reply("getReports");
+        reply.success(reports);
+        reply.end();
+        VersionedReply<Reports> r = reply.client.getReports("uuid", FEATURES,
+                "v1");
+        check(reports.equals(r.getValue()), "report lost");
+        check(r.getVersion() == null && !r.isNotModified()
+                && !r.isIncremental() && r.getRemoved().isEmpty(),
+                "old server reply has a version");
+        check("v1".equals(reply.sentVersion("getReports")),
+                "version not sent");
+
+        reply = new Reply("getReports");
+        reply.success(reports);
+        reply.end();
+        reply.client.getReports("uuid", FEATURES, null);
+        check(reply.sentVersion("getReports") == null,
+                "version sent without a stored report");
+    }
+
+    /*
+     * No result and the version the client sent.
+     */
+    private static void notModified() throws Exception {
+        Reply reply = new Reply("getReports");
+        reply.version("v1");
+        reply.end();
+        VersionedReply<Reports> r = reply.client.getReports("uuid", FEATURES,
+                "v1");
+        check(r.isNotModified() && r.getValue() == null
+                && "v1".equals(r.getVersion()) && !r.isIncremental(),
+                "not modified not recognized");
+    }
+
+    /*
+     * No result and another version, or nothing at all.
+     */
+    private static void missingResult() throws Exception {
+        Reply reply = new Reply("getReports");
+        reply.version("v2");
+        reply.end();
+        expectMissingResult(reply, "v1");
+
+        reply = new Reply("getReports");
+        reply.version("v1");
+        reply.end();
+        expectMissingResult(reply, null);
+
+        reply = new Reply("getReports");
+        reply.end();
+        expectMissingResult(reply, "v1");
+    }
+
+    private static void expectMissingResult(Reply reply, String version)
+            throws Exception {
+        try {
+            reply.client.getReports("uuid", FEATURES, version);
+            check(false, "no exception for a missing result");
+        } catch (TApplicationException e) {
+            check(e.getType() == TApplicationException.MISSING_RESULT,
+                    "wrong exception type " + e.getType());
+        }
+    }
+
+    /*
+     * Changed and new apps in the result, removed apps in field 102. Without
+     * a base version the same reply is the whole report.
+     */
+    private static void incremental() throws Exception {
+        for (String sent : new String[] { "v1", null }) {
+            Reply reply = new Reply("getHogOrBugReport");
+            reply.success(hogs("com.changed:bg", "com.new"));
+            reply.version("v2");
+            reply.incremental(true);
+            reply.removed("com.gone:remote", "com.other");
+            // Unknown fields are skipped
+            reply.out.writeFieldBegin(new TField("future", TType.I32,
+                    (short) 103));
+            reply.out.writeI32(42);
+            reply.out.writeFieldEnd();
+            reply.end();
+            VersionedReply<SimpleHogBug[]> r = reply.client.getHogOrBugReport(
+                    "uuid", FEATURES, false, sent);
+            SimpleHogBug[] items = r.getValue();
+            check(items != null && items.length == 2
+                    && "com.changed".equals(items[0].getAppName())
+                    && "com.new".equals(items[1].getAppName())
+                    && !items[0].isBug(), "upserts not read");
+            check("v2".equals(r.getVersion()) && !r.isNotModified(),
+                    "wrong version");
+            check(r.isIncremental() == (sent != null),
+                    "incremental with base " + sent);
+            check(Arrays.asList("com.gone:remote", "com.other").equals(
+                    r.getRemoved()), "removed apps not read");
+            // Only reads if the reply was read to its end
+            String version = reply.sentVersion("getHogOrBugReport");
+            check(sent == null ? version == null : sent.equals(version),
+                    "wrong version sent");
+        }
+    }
+
+    private static HogBugReport hogs(String... names) {
+        HogBugReport report = new HogBugReport();
+        report.setUuId("uuid");
+        List<HogsBugs> list = new ArrayList<HogsBugs>();
+        for (String name : names) {
+            HogsBugs h = new HogsBugs();
+            h.setAppName(name);
+            h.setWDistance(0.25);
+            h.setXVals(Arrays.asList(1.0, 0.0, 2.0));
+            h.setYVals(Arrays.asList(0.5, 0.25));
+            h.setXValsWithout(Arrays.asList(3.0));
+            h.setYValsWithout(Arrays.asList(0.75));
+            list.add(h);
+        }
+        report.setHbList(list);
+        return report;
+    }
+
+    /*
+     * A reply written to a memory buffer, followed by the call the client
+     * makes, which is read back with sentVersion().
+     */
+    private static class Reply {
+        final TMemoryBuffer buffer = new TMemoryBuffer(1024);
+        final TProtocol out = new TBinaryProtocol(buffer);
+        final TProtocol in = new TBinaryProtocol(buffer);
+        final CaratClient client = new CaratClient(in);
+
+        Reply(String method) throws TException {
+            // The client numbers its first call 1
+            out.writeMessageBegin(new TMessage(method, TMessageType.REPLY, 1));
+            out.writeStructBegin(new TStruct(method + "_result"));
+        }
+
+        void success(TBase<?, ?> result) throws TException {
+            out.writeFieldBegin(new TField("success", TType.STRUCT, (short) 0));
+            result.write(out);
+            out.writeFieldEnd();
+        }
+
+        void version(String version) throws TException {
+            out.writeFieldBegin(new TField("version", TType.STRING, VERSION));
+            out.writeString(version);
+            out.writeFieldEnd();
+        }
+
+        void incremental(boolean incremental) throws TException {
+            out.writeFieldBegin(new TField("incremental", TType.BOOL,
+                    INCREMENTAL));
+            out.writeBool(incremental);
+            out.writeFieldEnd();
+        }
+
+        void removed(String... names) throws TException {
+            out.writeFieldBegin(new TField("removed", TType.LIST, REMOVED));
+            out.writeListBegin(new TList(TType.STRING, names.length));
+            for (String name : names)
+                out.writeString(name);
+            out.writeListEnd();
+            out.writeFieldEnd();
+        }
+
+        void end() throws TException {
+            out.writeFieldStop();
+            out.writeStructEnd();
+            out.writeMessageEnd();
+        }
+
+        /*
+         * The ReportVersion feature of the call, or null.
+         */
+        String sentVersion(String method) throws TException {
+            TMessage msg = in.readMessageBegin();
+            check(method.equals(msg.name) && msg.type == TMessageType.CALL,
+                    "unexpected call " + msg.name);
+            List<Feature> features;
+            if (method.equals("getReports")) {
+                CaratService.getReports_args args = new CaratService.getReports_args();
+                args.read(in);
+                features = args.getFeatures();
+            } else {
+                CaratService.getHogOrBugReport_args args = new CaratService.getHogOrBugReport_args();
+                args.read(in);
+                features = args.getFeatures();
+            }
+            in.readMessageEnd();
+            String version = null;
+            for (Feature f : features) {
+                if (CaratClient.VERSION_FEATURE.equals(f.getKey()))
+                    version = f.getValue();
+            }
+            return version;
+        }
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,96 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.berkeley.cs.amplab.carat.android.CaratApplication.Type;
+
+/**
+ * Round-trips a report of 300 apps with 400 values each through HogBugCodec,
+ * and checks that truncated and old-format files decode to null. Prints the
+ * encoded size against the bare double arrays of the old format, and the
+ * decode time.
+ */
+public class HogBugCodecTest {
+
+    private static final int APPS = 300;
+    private static final int VALUES = 100; // per distribution, 4 per app
+    private static final int ROUNDS = 50;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(1);
+        SimpleHogBug[] list = new SimpleHogBug[APPS];
+        float[] values = new float[APPS * 4 * VALUES];
+        for (int i = 0; i < values.length; i++)
+            values[i] = random.nextFloat();
+        for (int i = 0; i < APPS; i++) {
+            SimpleHogBug b = new SimpleHogBug("com.app" + i, i % 2 == 0 ? Type.BUG
+                    : Type.HOG);
+            b.setAppLabel(i % 3 == 0 ? null : "Label é" + i);
+            b.setAppPriority("Foreground app");
+            b.setExpectedValue(random.nextDouble());
+            b.setExpectedValueWithout(random.nextDouble());
+            b.setwDistance(0.5);
+            b.setDistributions(values, i * 4 * VALUES, VALUES, VALUES,
+                    VALUES, VALUES);
+            list[i] = b;
+        }
+
+        byte[] data = HogBugCodec.encode(list);
+        SimpleHogBug[] decoded = HogBugCodec.decode(data);
+        check(decoded != null && decoded.length == APPS, "did not decode");
+        for (int i = 0; i < APPS; i++)
+            checkSame(list[i], decoded[i]);
+
+        // The old format: at least the Java-serialized double arrays
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(new double[APPS * 4][VALUES]);
+        oos.close();
+        byte[] legacy = bos.toByteArray();
+
+        check(HogBugCodec.decode(legacy) == null, "old format decoded");
+        byte[] truncated = new byte[data.length - 3];
+        System.arraycopy(data, 0, truncated, 0, truncated.length);
+        check(HogBugCodec.decode(truncated) == null, "truncated data decoded");
+        check(HogBugCodec.decode(HogBugCodec.encode(new SimpleHogBug[0])).length == 0,
+                "empty report did not round-trip");
+
+        for (int k = 0; k < ROUNDS; k++)
+            HogBugCodec.decode(data);
+        long start = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++)
+            HogBugCodec.decode(data);
+        long took = (System.nanoTime() - start) / ROUNDS;
+
+        System.out.printf("%d apps x %d values: %d bytes, double arrays alone "
+                + "%d bytes, decode %.2f ms%n", APPS, 4 * VALUES, data.length,
+                legacy.length, took / 1e6);
+        System.out.println("HogBugCodecTest: OK");
+    }
+
+    private static void checkSame(SimpleHogBug a, SimpleHogBug b) {
+        String name = a.getAppName();
+        check(name.equals(b.getAppName()), "name of " + name);
+        check(a.isBug() == b.isBug(), "type of " + name);
+        check(String.valueOf(a.getAppLabel()).equals(
+                String.valueOf(b.getAppLabel())), "label of " + name);
+        check(a.getAppPriority().equals(b.getAppPriority()), "priority of "
+                + name);
+        check(a.getExpectedValue() == b.getExpectedValue()
+                && a.getExpectedValueWithout() == b.getExpectedValueWithout()
+                && a.getwDistance() == b.getwDistance(), "values of " + name);
+        check(Arrays.equals(a.getxVals(), b.getxVals())
+                && Arrays.equals(a.getyVals(), b.getyVals())
+                && Arrays.equals(a.getxValsWithout(), b.getxValsWithout())
+                && Arrays.equals(a.getyValsWithout(), b.getyValsWithout()),
+                "distributions of " + name);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
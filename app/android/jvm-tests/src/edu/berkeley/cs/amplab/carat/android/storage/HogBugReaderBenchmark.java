@@ -0,0 +1,170 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+import edu.berkeley.cs.amplab.carat.thrift.HogBugReport;
+import edu.berkeley.cs.amplab.carat.thrift.HogsBugs;
+
+/**
+ * Times the ways of turning hog/bug distributions into SimpleHogBugs, with
+ * distributions of 500 points, a third of them zeros:
+ * CaratDataStorage.convert(List&lt;Double&gt;) against the old version that
+ * removed zeros from the list, then a 100-app report read with the generated
+ * code and converted, against HogBugReader. Checks that HogBugReader gives
+ * the same items as the generated code and convert().
+ */
+public class HogBugReaderBenchmark {
+
+    private static final int POINTS = 500;
+    private static final int APPS = 100;
+    private static final int LISTS = 20000;
+    private static final int REPORTS = 50;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(7);
+        List<Double> dist = distribution(random);
+
+        double[] converted = null;
+        for (int round = 0; round < 2; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < LISTS; i++)
+                new ArrayList<Double>(dist);
+            long t1 = System.nanoTime();
+            for (int i = 0; i < LISTS; i++)
+                oldConvert(new ArrayList<Double>(dist));
+            long t2 = System.nanoTime();
+            for (int i = 0; i < LISTS; i++)
+                converted = CaratDataStorage.convert(new ArrayList<Double>(
+                        dist));
+            long t3 = System.nanoTime();
+            long copy = t1 - t0;
+            System.out.printf("convert(List<Double>) of %d points: "
+                    + "old %.1f us, new %.1f us%n", POINTS, (t2 - t1 - copy)
+                    / 1000.0 / LISTS, (t3 - t2 - copy) / 1000.0 / LISTS);
+        }
+        check(Arrays.equals(converted, oldConvert(new ArrayList<Double>(dist))),
+                "convert() differs from the old version");
+
+        byte[] wire = report(random);
+        System.out.println("Report of " + APPS + " apps: " + wire.length
+                + " bytes in TBinaryProtocol");
+
+        // The conversion of a whole report, as CaratDataStorage does it
+        Method convertReport = CaratDataStorage.class.getDeclaredMethod(
+                "convert", List.class, boolean.class);
+        convertReport.setAccessible(true);
+
+        SimpleHogBug[] viaList = null, direct = null;
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < REPORTS; i++) {
+                for (HogsBugs b : readGenerated(wire).getHbList()) {
+                    oldConvert(b.getXVals());
+                    oldConvert(b.getYVals());
+                    oldConvert(b.getXValsWithout());
+                    oldConvert(b.getYValsWithout());
+                }
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < REPORTS; i++)
+                viaList = (SimpleHogBug[]) convertReport.invoke(null,
+                        readGenerated(wire).getHbList(), true);
+            long t2 = System.nanoTime();
+            for (int i = 0; i < REPORTS; i++)
+                direct = HogBugReader.read(new TBinaryProtocol(
+                        new TMemoryInputTransport(wire)), true);
+            long t3 = System.nanoTime();
+            System.out.printf("Report: generated + old convert %.1f ms, "
+                    + "generated + convert %.1f ms, HogBugReader %.1f ms%n",
+                    (t1 - t0) / 1e6 / REPORTS, (t2 - t1) / 1e6 / REPORTS,
+                    (t3 - t2) / 1e6 / REPORTS);
+        }
+
+        check(viaList.length == APPS && direct.length == APPS,
+                "wrong number of items");
+        for (int i = 0; i < APPS; i++) {
+            SimpleHogBug a = viaList[i], b = direct[i];
+            check(a.getAppName().equals(b.getAppName())
+                    && a.getAppPriority().equals(b.getAppPriority())
+                    && a.getAppLabel().equals(b.getAppLabel()),
+                    "names of item " + i);
+            check(a.getwDistance() == b.getwDistance()
+                    && a.getExpectedValue() == b.getExpectedValue()
+                    && a.getExpectedValueWithout() == b
+                            .getExpectedValueWithout(), "values of item " + i);
+            check(Arrays.equals(a.getxVals(), b.getxVals())
+                    && Arrays.equals(a.getyVals(), b.getyVals())
+                    && Arrays.equals(a.getxValsWithout(), b.getxValsWithout())
+                    && Arrays.equals(a.getyValsWithout(), b.getyValsWithout()),
+                    "distributions of item " + i);
+        }
+        System.out.println("HogBugReader matches convert().");
+    }
+
+    /*
+     * CaratDataStorage.convert(List<Double>) before it was made one pass.
+     */
+    private static double[] oldConvert(List<Double> dbls) {
+        if (dbls == null)
+            return new double[0];
+        for (int j = 0; j < dbls.size(); ++j) {
+            if (dbls.get(j) == 0.0) {
+                dbls.remove(j);
+                j--;
+            }
+        }
+        double[] arr = new double[dbls.size()];
+        for (int j = 0; j < dbls.size(); ++j)
+            arr[j] = dbls.get(j);
+        return arr;
+    }
+
+    private static List<Double> distribution(Random random) {
+        List<Double> list = new ArrayList<Double>(POINTS);
+        for (int i = 0; i < POINTS; i++)
+            list.add(random.nextInt(3) == 0 ? 0.0 : random.nextDouble());
+        return list;
+    }
+
+    private static byte[] report(Random random) throws Exception {
+        HogBugReport report = new HogBugReport();
+        report.setUuId("304e45cf1d3cf68b");
+        List<HogsBugs> list = new ArrayList<HogsBugs>();
+        for (int i = 0; i < APPS; i++) {
+            HogsBugs h = new HogsBugs();
+            h.setAppName("com.app" + i + ":bg");
+            h.setAppLabel("App " + i);
+            h.setWDistance(0.3);
+            h.setXVals(distribution(random));
+            h.setYVals(distribution(random));
+            h.setXValsWithout(distribution(random));
+            h.setYValsWithout(distribution(random));
+            h.setExpectedValue(0.01);
+            h.setExpectedValueWithout(0.02);
+            list.add(h);
+        }
+        report.setHbList(list);
+        TMemoryBuffer buffer = new TMemoryBuffer(1 << 20);
+        report.write(new TBinaryProtocol(buffer));
+        return Arrays.copyOf(buffer.getArray(), buffer.length());
+    }
+
+    private static HogBugReport readGenerated(byte[] wire) throws Exception {
+        HogBugReport report = new HogBugReport();
+        report.read(new TBinaryProtocol(new TMemoryInputTransport(wire)));
+        return report;
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,102 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import edu.berkeley.cs.amplab.carat.android.CaratApplication.Type;
+
+/**
+ * Merges incremental hog/bug replies into a stored report with
+ * CaratDataStorage.merge(): changed apps are replaced in place, new apps are
+ * added at the end, and removed apps are matched by their name after
+ * fixName().
+ */
+public class ReportMergeTest {
+
+    public static void main(String[] args) {
+        SimpleHogBug[] current = report(0, "com.a", "com.b", "com.c", "com.d");
+        float[] before = current[0].getValues().clone();
+
+        SimpleHogBug[] changed = report(100, "com.b", "com.e");
+        List<String> removed = Arrays.asList("com.c:remote", "com.x");
+        SimpleHogBug[] merged = CaratDataStorage.merge(current, changed,
+                removed);
+
+        checkNames(merged, "com.a", "com.b", "com.d", "com.e");
+        checkSame(current[0], merged[0]);
+        checkSame(changed[0], merged[1]);
+        checkSame(current[3], merged[2]);
+        checkSame(changed[1], merged[3]);
+
+        // One new array for the result, the inputs are left alone
+        float[] values = merged[0].getValues();
+        int offset = 0;
+        for (SimpleHogBug b : merged) {
+            check(b.getValues() == values && b.getOffset() == offset,
+                    "items do not share one array");
+            offset += b.getValueCount();
+        }
+        check(values.length == offset, "wrong array size");
+        check(values != current[0].getValues()
+                && values != changed[0].getValues(), "input array reused");
+        check(Arrays.equals(before, current[0].getValues()),
+                "stored report changed");
+        check(current.length == 4 && "com.c".equals(current[2].getAppName()),
+                "stored list changed");
+
+        // Nothing stored yet, nothing changed, everything removed
+        checkNames(CaratDataStorage.merge(null, changed,
+                Collections.<String> emptyList()), "com.b", "com.e");
+        checkNames(CaratDataStorage.merge(current, null,
+                Collections.<String> emptyList()), "com.a", "com.b", "com.c",
+                "com.d");
+        checkNames(CaratDataStorage.merge(current, null, Arrays.asList(
+                "com.a", "com.b:bg", "com.c", "com.d")));
+
+        System.out.println("ReportMergeTest: OK");
+    }
+
+    /*
+     * Hogs named as given, as they are after tidy(), with distributions
+     * starting from base.
+     */
+    private static SimpleHogBug[] report(int base, String... names) {
+        SimpleHogBug[] items = new SimpleHogBug[names.length];
+        float[] values = new float[names.length * 4];
+        for (int i = 0; i < values.length; i++)
+            values[i] = base + i;
+        for (int i = 0; i < names.length; i++) {
+            items[i] = new SimpleHogBug(names[i], Type.HOG);
+            items[i].setAppPriority("Foreground app");
+            items[i].setwDistance(base + i);
+            items[i].setDistributions(values, i * 4, 1, 1, 1, 1);
+        }
+        return items;
+    }
+
+    private static void checkNames(SimpleHogBug[] items, String... names) {
+        check(items.length == names.length, "wrong item count "
+                + items.length);
+        for (int i = 0; i < names.length; i++)
+            check(names[i].equals(items[i].getAppName()), "item " + i + " is "
+                    + items[i].getAppName());
+    }
+
+    private static void checkSame(SimpleHogBug expected, SimpleHogBug actual) {
+        String name = expected.getAppName();
+        check(name.equals(actual.getAppName())
+                && expected.getwDistance() == actual.getwDistance(), name);
+        check(Arrays.equals(expected.getxVals(), actual.getxVals())
+                && Arrays.equals(expected.getyVals(), actual.getyVals())
+                && Arrays.equals(expected.getxValsWithout(),
+                        actual.getxValsWithout())
+                && Arrays.equals(expected.getyValsWithout(),
+                        actual.getyValsWithout()), "distributions of " + name);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
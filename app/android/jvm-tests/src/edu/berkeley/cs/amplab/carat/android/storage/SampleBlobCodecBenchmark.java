@@ -0,0 +1,166 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import edu.berkeley.cs.amplab.carat.thrift.BatteryDetails;
+import edu.berkeley.cs.amplab.carat.thrift.CpuStatus;
+import edu.berkeley.cs.amplab.carat.thrift.NetworkDetails;
+import edu.berkeley.cs.amplab.carat.thrift.ProcessInfo;
+import edu.berkeley.cs.amplab.carat.thrift.Sample;
+
+/**
+ * Compares the size and speed of SampleBlobCodec blobs with the Java
+ * serialized samples CaratSampleDB used to store, for synthetic samples with
+ * the given numbers of processes (20 and 100 by default).
+ */
+public class SampleBlobCodecBenchmark {
+
+    private static final int ROWS = 2000;
+    private static final int ROUNDS = 5;
+
+    private static final String[] IMPORTANCE = { "Foreground app",
+            "Background process", "Service", "Visible task" };
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0)
+            args = new String[] { "20", "100" };
+        for (String arg : args)
+            run(Integer.parseInt(arg));
+    }
+
+    private static void run(int processes) throws Exception {
+        Random random = new Random(1);
+        Sample[] samples = new Sample[ROWS];
+        for (int i = 0; i < ROWS; i++)
+            samples[i] = sample(processes, random);
+
+        SampleBlobCodec codec = new SampleBlobCodec();
+        byte[][] legacy = new byte[ROWS][];
+        byte[][] blobs = new byte[ROWS][];
+        long legacyBytes = 0, blobBytes = 0;
+        for (int i = 0; i < ROWS; i++) {
+            legacy[i] = serialize(samples[i]);
+            blobs[i] = codec.encode(samples[i]);
+            legacyBytes += legacy[i].length;
+            blobBytes += blobs[i].length;
+        }
+        // Both formats have to come back as the same sample
+        for (int i = 0; i < ROWS; i++) {
+            if (!samples[i].equals(codec.decode(blobs[i]))
+                    || !samples[i].equals(codec.decode(legacy[i])))
+                throw new AssertionError("Sample " + i + " did not round-trip");
+        }
+
+        // Warm-up
+        for (int k = 0; k < ROUNDS; k++) {
+            for (int i = 0; i < ROWS; i++) {
+                deserialize(legacy[i]);
+                codec.decode(blobs[i]);
+                serialize(samples[i]);
+                codec.encode(samples[i]);
+            }
+        }
+
+        long t0 = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++)
+            for (int i = 0; i < ROWS; i++)
+                deserialize(legacy[i]);
+        long t1 = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++)
+            for (int i = 0; i < ROWS; i++)
+                codec.decode(blobs[i]);
+        long t2 = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++)
+            for (int i = 0; i < ROWS; i++)
+                serialize(samples[i]);
+        long t3 = System.nanoTime();
+        for (int k = 0; k < ROUNDS; k++)
+            for (int i = 0; i < ROWS; i++)
+                codec.encode(samples[i]);
+        long t4 = System.nanoTime();
+
+        double n = ROWS * ROUNDS * 1000.0;
+        System.out.printf("%d processes: %d -> %d bytes/row, "
+                + "decode %.1f -> %.1f us/row, encode %.1f -> %.1f us/row%n",
+                processes, legacyBytes / ROWS, blobBytes / ROWS, (t1 - t0)
+                        / n, (t2 - t1) / n, (t3 - t2) / n, (t4 - t3) / n);
+    }
+
+    private static Sample sample(int processes, Random random) {
+        Sample s = new Sample();
+        s.setUuId("304e45cf1d3cf68b");
+        s.setTimestamp(System.currentTimeMillis() / 1000.0);
+        List<ProcessInfo> list = new ArrayList<ProcessInfo>();
+        for (int i = 0; i < processes; i++) {
+            ProcessInfo p = new ProcessInfo();
+            p.setPId(1000 + i);
+            p.setPName("com.example.app" + i + ":remote");
+            p.setApplicationLabel("App " + i);
+            p.setImportance(IMPORTANCE[i % IMPORTANCE.length]);
+            p.setIsSystemApp(i % 3 == 0);
+            list.add(p);
+        }
+        s.setPiList(list);
+        s.setBatteryState("Charging");
+        s.setBatteryLevel(random.nextDouble());
+        s.setMemoryUser(1000);
+        s.setMemoryFree(2000);
+        s.setMemoryActive(3);
+        s.setMemoryInactive(4);
+        s.setTriggeredBy("android.intent.action.BATTERY_CHANGED");
+        s.setNetworkStatus("WIFI");
+        s.setScreenBrightness(-1);
+
+        NetworkDetails nd = new NetworkDetails();
+        nd.setNetworkType("WIFI");
+        nd.setMobileNetworkType("UMTS");
+        nd.setMobileDataStatus("disconnected");
+        nd.setMobileDataActivity("none");
+        nd.setWifiStatus("enabled");
+        nd.setWifiSignalStrength(-60);
+        nd.setWifiLinkSpeed(54);
+        s.setNetworkDetails(nd);
+
+        BatteryDetails bd = new BatteryDetails();
+        bd.setBatteryTemperature(30);
+        bd.setBatteryVoltage(4.1);
+        bd.setBatteryTechnology("Li-ion");
+        bd.setBatteryCharger("usb");
+        bd.setBatteryHealth("Good");
+        s.setBatteryDetails(bd);
+
+        CpuStatus cs = new CpuStatus();
+        cs.setCpuUsage(0.3);
+        cs.setUptime(1234);
+        s.setCpuStatus(cs);
+
+        s.setLocationProviders(Arrays.asList("network", "passive"));
+        return s;
+    }
+
+    /*
+     * What CaratSampleDB stored before SampleBlobCodec.
+     */
+    private static byte[] serialize(Sample s) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(s);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    private static Sample deserialize(byte[] data) throws IOException,
+            ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+                data));
+        return (Sample) ois.readObject();
+    }
+}
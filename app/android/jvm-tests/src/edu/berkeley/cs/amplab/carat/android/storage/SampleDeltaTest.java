@@ -0,0 +1,177 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import edu.berkeley.cs.amplab.carat.thrift.ProcessInfo;
+import edu.berkeley.cs.amplab.carat.thrift.Sample;
+
+/**
+ * Round-trips samples through SampleBlobCodec as full rows and as deltas
+ * against key frames kept in memory, and checks that a delta uploads as the
+ * same bytes as its Sample. Prints the size of a full row and of a delta for
+ * a sample of 40 processes, 3 of them gone, 3 new and 1 changed since the key
+ * frame.
+ */
+public class SampleDeltaTest {
+
+    /*
+     * Key frames by rowid, counting lookups.
+     */
+    static class MemoryKeyFrames implements SampleBlobCodec.KeyFrames {
+        final Map<Long, byte[]> rows = new HashMap<Long, byte[]>();
+        int lookups = 0;
+
+        public byte[] getKeyFrame(long rowid) {
+            lookups++;
+            return rows.get(rowid);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SampleBlobCodec codec = new SampleBlobCodec();
+        MemoryKeyFrames keyFrames = new MemoryKeyFrames();
+
+        // Full rows
+        Sample key = sample(1, 0, "Foreground app");
+        byte[] keyBlob = codec.encode(key);
+        check(!SampleBlobCodec.isDelta(keyBlob), "key frame is a delta");
+        check(key.equals(codec.decode(keyBlob)), "full row did not round-trip");
+        keyFrames.rows.put(7L, keyBlob);
+
+        // pIds 0-2 gone, 40-42 new, importance of pId 10 changed
+        Sample next = sample(2, 3, "Service");
+        byte[] delta = codec.encodeDelta(next, 7, key.getPiList());
+        check(delta != null && SampleBlobCodec.isDelta(delta), "no delta");
+        System.out.println("40 processes, 3 gone, 3 new, 1 changed: full "
+                + codec.encode(next).length + " bytes, delta " + delta.length
+                + " bytes");
+
+        // A new codec has to look the key frame up
+        SampleBlobCodec reader = new SampleBlobCodec();
+        check(reader.decode(delta) == null, "delta decoded without key frame");
+        checkSame(next, reader.decode(delta, keyFrames));
+        check(keyFrames.lookups == 1, "key frame not looked up");
+
+        // Then it is cached, also for other deltas against it
+        Sample third = sample(3, 0, "Background process");
+        third.getPiList().remove(39);
+        byte[] delta3 = codec.encodeDelta(third, 7, key.getPiList());
+        checkSame(next, reader.decode(delta, keyFrames));
+        checkSame(third, reader.decode(delta3, null));
+        check(keyFrames.lookups == 1, "cached key frame looked up again");
+
+        // Until it is forgotten
+        reader.forgetKeyFrame();
+        check(reader.decode(delta3, null) == null,
+                "forgotten key frame still used");
+        checkSame(third, reader.decode(delta3, keyFrames));
+        check(keyFrames.lookups == 2, "forgotten key frame not looked up");
+
+        // A missing key frame, or one that is itself a delta
+        check(new SampleBlobCodec().decode(delta, new MemoryKeyFrames()) == null,
+                "delta decoded with its key frame gone");
+        MemoryKeyFrames chained = new MemoryKeyFrames();
+        chained.rows.put(7L, delta3);
+        check(new SampleBlobCodec().decode(delta, chained) == null,
+                "delta decoded against a delta");
+
+        // Too many changes, or pIds that cannot be matched
+        check(codec.encodeDelta(sample(4, 30, "Service"), 7, key.getPiList()) == null,
+                "delta for a mostly new list");
+        Sample duplicate = sample(5, 0, "Foreground app");
+        duplicate.getPiList().get(1).setPId(0);
+        check(codec.encodeDelta(duplicate, 7, key.getPiList()) == null,
+                "delta with a duplicate pId");
+        Sample unnumbered = sample(6, 0, "Foreground app");
+        unnumbered.getPiList().get(5).unsetPId();
+        check(codec.encodeDelta(unnumbered, 7, key.getPiList()) == null,
+                "delta with a missing pId");
+
+        // Encoding a delta leaves the sample alone
+        check(next.getPiList() != null && next.getPiList().size() == 40,
+                "encodeDelta changed the sample");
+
+        // Uploads carry the whole sample
+        TMemoryBuffer viaDelta = new TMemoryBuffer(4096);
+        new SampleBlobCodec().transcode(delta, new TBinaryProtocol(viaDelta),
+                keyFrames);
+        check(Arrays.equals(wire(reader.decode(delta, keyFrames)),
+                bytes(viaDelta)), "transcoded delta differs");
+        TMemoryBuffer viaFull = new TMemoryBuffer(4096);
+        codec.transcode(keyBlob, new TBinaryProtocol(viaFull));
+        check(Arrays.equals(wire(key), bytes(viaFull)),
+                "transcoded full row differs");
+        try {
+            new SampleBlobCodec().transcode(delta, new TBinaryProtocol(
+                    new TMemoryBuffer(4096)), new MemoryKeyFrames());
+            check(false, "delta transcoded without its key frame");
+        } catch (org.apache.thrift.TException e) {
+            // Expected
+        }
+
+        System.out.println("SampleDeltaTest: OK");
+    }
+
+    /**
+     * A sample with 40 processes numbered from firstPid, where pId 10 has the
+     * given importance.
+     */
+    static Sample sample(int timestamp, int firstPid, String importance) {
+        Sample s = new Sample("304e45cf1d3cf68b");
+        s.setTimestamp(timestamp);
+        s.setBatteryLevel(0.5);
+        s.setBatteryState("Discharging");
+        List<ProcessInfo> list = new ArrayList<ProcessInfo>();
+        for (int pid = firstPid; pid < firstPid + 40; pid++) {
+            ProcessInfo p = new ProcessInfo();
+            p.setPId(pid);
+            p.setPName("com.example.app" + pid);
+            p.setImportance(pid == 10 ? importance : "Background process");
+            list.add(p);
+        }
+        s.setPiList(list);
+        return s;
+    }
+
+    /*
+     * Processes that did not change come from the key frame, in its order.
+     */
+    private static void checkSame(Sample expected, Sample actual) {
+        check(actual != null, "delta not decoded");
+        Map<Integer, ProcessInfo> byPid = new HashMap<Integer, ProcessInfo>();
+        for (ProcessInfo p : actual.getPiList())
+            byPid.put(p.getPId(), p);
+        check(byPid.size() == expected.getPiList().size(), "wrong process count");
+        for (ProcessInfo p : expected.getPiList())
+            check(p.equals(byPid.get(p.getPId())), "process " + p.getPId());
+        Sample a = new Sample(expected), b = new Sample(actual);
+        a.setPiList(null);
+        b.setPiList(null);
+        check(a.equals(b), "sample fields differ");
+    }
+
+    static byte[] wire(TBase<?, ?> t) throws Exception {
+        TMemoryBuffer buffer = new TMemoryBuffer(4096);
+        t.write(new TBinaryProtocol(buffer));
+        return bytes(buffer);
+    }
+
+    static byte[] bytes(TMemoryBuffer buffer) {
+        byte[] b = new byte[buffer.length()];
+        System.arraycopy(buffer.getArray(), 0, b, 0, b.length);
+        return b;
+    }
+
+    static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,150 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TMemoryBuffer;
+
+import edu.berkeley.cs.amplab.carat.thrift.ProcessInfo;
+import edu.berkeley.cs.amplab.carat.thrift.Sample;
+
+/**
+ * Round-trips samples through SampleBlobCodec with a string dictionary kept
+ * in memory, with the limits of the one in CaratSampleDB: strings over 128
+ * chars and strings past 4096 entries are written inline. Checks that blobs
+ * without a dictionary still read, and that a blob uploads as the same bytes
+ * as its Sample. Prints the sizes of the SampleDeltaTest samples with and
+ * without the dictionary.
+ */
+public class SampleDictionaryTest {
+
+    private static final int MAX_LENGTH = 128;
+    private static final int MAX_ENTRIES = 4096;
+
+    /*
+     * Like CaratSampleDB.StringDictionary, without the table.
+     */
+    static class MemoryDictionary implements SampleBlobCodec.Dictionary {
+        final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        final ArrayList<String> strings = new ArrayList<String>();
+
+        public int intern(String s) {
+            Integer id = ids.get(s);
+            if (id != null)
+                return id;
+            if (s.length() > MAX_LENGTH || ids.size() >= MAX_ENTRIES)
+                return -1;
+            ids.put(s, strings.size());
+            strings.add(s);
+            return strings.size() - 1;
+        }
+
+        public String getString(int id) {
+            return id >= 0 && id < strings.size() ? strings.get(id) : null;
+        }
+
+        public byte[] getBytes(int id) {
+            String s = getString(id);
+            try {
+                return s != null ? s.getBytes("UTF-8") : null;
+            } catch (UnsupportedEncodingException e) {
+                return null;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        MemoryDictionary dictionary = new MemoryDictionary();
+        SampleBlobCodec codec = new SampleBlobCodec(dictionary);
+        SampleBlobCodec plain = new SampleBlobCodec();
+
+        Sample key = SampleDeltaTest.sample(1, 0, "Foreground app");
+        byte[] keyBlob = codec.encode(key);
+        check((keyBlob[0] & SampleBlobCodec.FLAG_DICTIONARY) != 0,
+                "flag not set");
+        check(key.equals(codec.decode(keyBlob)), "full row did not round-trip");
+        try {
+            plain.decode(keyBlob);
+            check(false, "read without the dictionary");
+        } catch (TException e) {
+            // Expected
+        }
+
+        Sample next = SampleDeltaTest.sample(2, 3, "Service");
+        byte[] delta = codec.encodeDelta(next, 7, key.getPiList());
+        SampleDeltaTest.MemoryKeyFrames keyFrames = new SampleDeltaTest.MemoryKeyFrames();
+        keyFrames.rows.put(7L, keyBlob);
+        Sample decoded = new SampleBlobCodec(dictionary).decode(delta,
+                keyFrames);
+        check(decoded != null
+                && new HashSet<ProcessInfo>(decoded.getPiList())
+                        .equals(new HashSet<ProcessInfo>(next.getPiList())),
+                "delta did not round-trip");
+        System.out.println("Full row " + plain.encode(next).length + " -> "
+                + codec.encode(next).length + " bytes, delta "
+                + plain.encodeDelta(next, 7, key.getPiList()).length + " -> "
+                + delta.length + " bytes");
+
+        // Uploads carry the plain strings
+        checkTranscode(codec, keyBlob, key, null);
+        checkTranscode(new SampleBlobCodec(dictionary), delta, decoded,
+                keyFrames);
+
+        // Blobs from before the dictionary
+        byte[] old = plain.encode(key);
+        check((old[0] & SampleBlobCodec.FLAG_DICTIONARY) == 0, "flag set");
+        check(key.equals(codec.decode(old)), "old blob not read");
+        checkTranscode(codec, old, key, null);
+
+        // Long strings are inline
+        String limit = repeat('a', MAX_LENGTH);
+        String over = repeat('b', MAX_LENGTH + 1);
+        Sample labels = SampleDeltaTest.sample(3, 0, "Foreground app");
+        labels.getPiList().get(0).setApplicationLabel(limit);
+        labels.getPiList().get(1).setApplicationLabel(over);
+        byte[] labelBlob = codec.encode(labels);
+        check(dictionary.ids.containsKey(limit), "128 chars not interned");
+        check(!dictionary.ids.containsKey(over), "129 chars interned");
+        check(labels.equals(codec.decode(labelBlob)),
+                "long strings did not round-trip");
+        checkTranscode(codec, labelBlob, labels, null);
+
+        // A full dictionary takes no more entries
+        for (int i = dictionary.strings.size(); i < MAX_ENTRIES; i++)
+            dictionary.intern("filler " + i);
+        Sample fresh = SampleDeltaTest.sample(4, 1000, "Foreground app");
+        fresh.setBatteryState("Not seen before");
+        byte[] freshBlob = codec.encode(fresh);
+        check(dictionary.strings.size() == MAX_ENTRIES, "dictionary grew");
+        check(fresh.equals(codec.decode(freshBlob)),
+                "inline strings did not round-trip");
+        checkTranscode(codec, freshBlob, fresh, null);
+        check(key.equals(codec.decode(keyBlob)), "earlier blob changed");
+
+        System.out.println("SampleDictionaryTest: OK");
+    }
+
+    private static void checkTranscode(SampleBlobCodec codec, byte[] blob,
+            Sample s, SampleBlobCodec.KeyFrames keyFrames) throws Exception {
+        TMemoryBuffer buffer = new TMemoryBuffer(4096);
+        codec.transcode(blob, new TBinaryProtocol(buffer), keyFrames);
+        check(Arrays.equals(SampleDeltaTest.wire(s),
+                SampleDeltaTest.bytes(buffer)), "transcoded bytes differ");
+    }
+
+    private static String repeat(char c, int n) {
+        char[] chars = new char[n];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void check(boolean ok, String what) {
+        if (!ok)
+            throw new AssertionError(what);
+    }
+}
@@ -2,11 +2,16 @@ package edu.berkeley.cs.amplab.carat.android;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import edu.berkeley.cs.amplab.carat.android.protocol.CommunicationManager;
 import edu.berkeley.cs.amplab.carat.android.sampling.Sampler;
 import edu.berkeley.cs.amplab.carat.android.sampling.SamplingLibrary;
 import edu.berkeley.cs.amplab.carat.android.storage.CaratDataStorage;
+import edu.berkeley.cs.amplab.carat.android.storage.SampleWriteBuffer;
+import edu.berkeley.cs.amplab.carat.android.ui.UiRefreshThread;
 import android.app.AlarmManager;
 import android.app.Application;
 import android.app.PendingIntent;
@@ -18,6 +23,7 @@ import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.graphics.drawable.Drawable;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.TextView;
@@ -56,16 +62,64 @@ public class CaratApplication extends Application {
     public static final long FRESHNESS_TIMEOUT = 600000L;
     // If true, register this as a new device on the Carat server
     public static final String PREFERENCE_FIRST_RUN = "carat.first.run";
+    // Validators and MD5 of the last downloaded blacklist, see
+    // CommunicationManager.refreshBlacklist()
+    public static final String PREFERENCE_BLACKLIST_ETAG = "carat.blacklist.etag";
+    public static final String PREFERENCE_BLACKLIST_LAST_MODIFIED = "carat.blacklist.lastmodified";
+    public static final String PREFERENCE_BLACKLIST_HASH = "carat.blacklist.hash";
 
     // Send samples every 15 minutes
     public static final long COMMS_INTERVAL = AlarmManager.INTERVAL_FIFTEEN_MINUTES;
     // When waking up from screen off, wait 5 seconds for wifi etc to come up
     public static final long COMMS_WIFI_WAIT = 5 * 1000;
-    // Send up to 10 samples at a time
-    public static final int COMMS_MAX_UPLOAD_BATCH = 10;
+    // Send 10 samples at a time at first, then 1 to 100 as uploads go
+    public static final int COMMS_UPLOAD_BATCH = 10;
+    public static final int COMMS_MIN_UPLOAD_BATCH = 1;
+    public static final int COMMS_MAX_UPLOAD_BATCH = 100;
+    // Size batches to upload in about 10 seconds each
+    public static final long COMMS_UPLOAD_BATCH_TIME = 10 * 1000;
+    // Send the next batch after a second while samples are waiting...
+    public static final long COMMS_DRAIN_INTERVAL = 1000;
+    // ... but with over 100 waiting, only on Wi-Fi while charging
+    public static final int COMMS_LARGE_BACKLOG = 100;
+    // Retry a failed upload after 30 seconds, doubling up to COMMS_INTERVAL
+    public static final long COMMS_RETRY_MIN = 30 * 1000;
+    // Samples sent one by one may have up to 5 replies outstanding
+    public static final int COMMS_UPLOAD_WINDOW = 5;
+    // Fetch main reports, bugs, hogs and the blacklist at the same time
+    public static final int REFRESH_THREADS = 4;
+    // Keep as many server connections open for reuse, for up to a minute
+    public static final int COMMS_MAX_IDLE_CONNECTIONS = REFRESH_THREADS;
+    public static final long COMMS_IDLE_TIMEOUT = 60 * 1000;
+    // Give up on a call to the async endpoint after a minute
+    public static final long COMMS_ASYNC_TIMEOUT = 60 * 1000;
+
+    // Keep up to 64 samples in memory before they are written to CaratSampleDB
+    public static final int SAMPLE_BUFFER_CAPACITY = 64;
+    // Write buffered samples when 10 are pending...
+    public static final int SAMPLE_FLUSH_BATCH = 10;
+    // ... or the oldest has waited for a minute
+    public static final long SAMPLE_FLUSH_AGE_MS = 60 * 1000;
+
+    // Downsample old samples when more than this many are stored...
+    public static final int SAMPLE_DB_MAX_ROWS = 2000;
+    // ... or the sample database grows over 8 MB
+    public static final long SAMPLE_DB_MAX_BYTES = 8 * 1024 * 1024;
+
+    // Keep up to 2 MB of reports and blacklists in memory
+    public static final long REPORT_CACHE_MAX_BYTES = 2 * 1024 * 1024;
+
+    // Load CaratDataStorage in a background thread instead of in onCreate
+    public static final boolean LOAD_STORAGE_ASYNC = true;
 
     // NOTE: This needs to be initialized before CommunicationManager.
-    public static CaratDataStorage s = null;
+    // Started in onCreate, see getStorage() and peekStorage().
+    private static FutureTask<CaratDataStorage> storage = null;
+
+    // Startup timing, see firstFrameDrawn()
+    private static final String STARTUP_TAG = "CaratStartup";
+    private static long startTime = 0;
+    private static boolean firstFrameLogged = false;
     // NOTE: The CommunicationManager requires a working instance of
     // CaratDataStorage.
     public CommunicationManager c = null;
@@ -263,11 +317,83 @@ public class CaratApplication extends Application {
         actionList = a;
     }
 
+    /**
+     * Returns the CaratDataStorage, waiting for it to finish loading if it
+     * has not yet. Do not call this on the UI thread; use peekStorage()
+     * there.
+     * 
+     * @return the CaratDataStorage, or null if loading it failed.
+     */
+    public static CaratDataStorage getStorage() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return storage.get();
+                } catch (InterruptedException e) {
+                    // Keep waiting, but let the caller see the interrupt
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Log.e(STARTUP_TAG, "Failed to load CaratDataStorage!", e.getCause());
+            return null;
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the CaratDataStorage without waiting. Activities show their
+     * empty views while it is loading and are refreshed once it is done.
+     * 
+     * @return the CaratDataStorage, or null if it is still loading.
+     */
+    public static CaratDataStorage peekStorage() {
+        if (storage == null || !storage.isDone())
+            return null;
+        return getStorage();
+    }
+
+    /*
+     * Bind report data to the activities that drew without it.
+     */
+    private static void storageLoaded() {
+        UiRefreshThread.setReportData();
+        refreshActions();
+        refreshBugs();
+        refreshHogs();
+        if (main != null) {
+            main.runOnUiThread(new Runnable() {
+                public void run() {
+                    main.setTitleNormal();
+                }
+            });
+        }
+    }
+
+    /**
+     * Called by CaratMainActivity when its window first gets focus, which is
+     * right after its first frame. Logs the time since onCreate, and whether
+     * CaratDataStorage was still loading then. Compare runs with
+     * LOAD_STORAGE_ASYNC true and false to see what loading in the
+     * background saves.
+     */
+    public static void firstFrameDrawn() {
+        if (firstFrameLogged)
+            return;
+        firstFrameLogged = true;
+        Log.i(STARTUP_TAG, "First frame " + (SystemClock.uptimeMillis() - startTime)
+                + " ms after onCreate, storage "
+                + (storage != null && storage.isDone() ? "loaded" : "still loading")
+                + ", async=" + LOAD_STORAGE_ASYNC);
+    }
+
     // Application overrides
 
     /**
-     * 1. Create CaratDataStorage and read reports from disk. Does not seem too
-     * slow.
+     * 1. Start loading CaratDataStorage in the background, see getStorage().
      * 
      * 2. Take a sample in a new thread so that the GUI has fresh data TODO:
      * Sampling is currently delayed until we get battery stats. What to do on
@@ -283,7 +409,30 @@ public class CaratApplication extends Application {
      */
     @Override
     public void onCreate() {
-        s = new CaratDataStorage(this);
+        startTime = SystemClock.uptimeMillis();
+        storage = new FutureTask<CaratDataStorage>(
+                new Callable<CaratDataStorage>() {
+                    public CaratDataStorage call() {
+                        long start = SystemClock.uptimeMillis();
+                        CaratDataStorage s = new CaratDataStorage(
+                                CaratApplication.this);
+                        Log.i(STARTUP_TAG, "CaratDataStorage loaded in "
+                                + (SystemClock.uptimeMillis() - start)
+                                + " ms, " + (SystemClock.uptimeMillis() - startTime)
+                                + " ms after onCreate");
+                        return s;
+                    }
+                }) {
+            @Override
+            protected void done() {
+                if (LOAD_STORAGE_ASYNC)
+                    storageLoaded();
+            }
+        };
+        if (LOAD_STORAGE_ASYNC)
+            new Thread(storage, "CaratDataStorage").start();
+        else
+            storage.run();
 
         new Thread() {
             public void run() {
@@ -342,13 +491,16 @@ public class CaratApplication extends Application {
 
     @Override
     public void onLowMemory() {
-        // TODO Auto-generated method stub
+        SampleWriteBuffer.getInstance(this).flush();
+        CaratDataStorage s = peekStorage();
+        if (s != null)
+            s.onLowMemory();
         super.onLowMemory();
     }
 
     @Override
     public void onTerminate() {
-        // TODO Auto-generated method stub
+        SampleWriteBuffer.getInstance(this).flush();
         super.onTerminate();
     }
 }
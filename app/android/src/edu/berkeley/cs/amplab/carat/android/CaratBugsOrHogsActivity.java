@@ -2,6 +2,7 @@ package edu.berkeley.cs.amplab.carat.android;
 
 import edu.berkeley.cs.amplab.carat.android.CaratApplication.Type;
 import edu.berkeley.cs.amplab.carat.android.lists.HogsBugsAdapter;
+import edu.berkeley.cs.amplab.carat.android.storage.CaratDataStorage;
 import edu.berkeley.cs.amplab.carat.android.storage.SimpleHogBug;
 import edu.berkeley.cs.amplab.carat.android.ui.BaseVFActivity;
 import edu.berkeley.cs.amplab.carat.android.ui.DrawView;
@@ -172,12 +173,14 @@ public class CaratBugsOrHogsActivity extends BaseVFActivity {
 	public void refresh() {
 		CaratApplication app = (CaratApplication) getApplication();
 		final ListView lv = (ListView) findViewById(android.R.id.list);
-		if (isBugsActivity)
-			lv.setAdapter(new HogsBugsAdapter(app, CaratApplication.s
-					.getBugReport()));
+		// Still loading: show the empty list, storageLoaded() refreshes again
+		CaratDataStorage s = CaratApplication.peekStorage();
+		if (s == null)
+			lv.setAdapter(new HogsBugsAdapter(app, null));
+		else if (isBugsActivity)
+			lv.setAdapter(new HogsBugsAdapter(app, s.getBugReport()));
 		else
-			lv.setAdapter(new HogsBugsAdapter(app, CaratApplication.s
-					.getHogReport()));
+			lv.setAdapter(new HogsBugsAdapter(app, s.getHogReport()));
 		emptyCheck(lv);
 	}
 
@@ -9,6 +9,7 @@ import com.zubhium.ZubhiumSDK;
 
 import edu.berkeley.cs.amplab.carat.android.protocol.CommsThread;
 import edu.berkeley.cs.amplab.carat.android.sampling.SamplingLibrary;
+import edu.berkeley.cs.amplab.carat.android.storage.CaratDataStorage;
 import edu.berkeley.cs.amplab.carat.android.ui.UiRefreshThread;
 import android.app.TabActivity;
 import android.content.Intent;
@@ -184,7 +185,8 @@ public class CaratMainActivity extends TabActivity {
     
     
     public void setTitleNormal(){
-    	long s = CaratApplication.s.getSamplesReported();
+    	CaratDataStorage storage = CaratApplication.peekStorage();
+    	long s = storage != null ? storage.getSamplesReported() : 0;
     	if (s > 0)
     		this.setTitle(fullVersion +" - " + s + " samples reported");
     	else
@@ -353,8 +355,21 @@ public class CaratMainActivity extends TabActivity {
         }
         super.onResume();
     }
-    
-    
+
+    /**
+     * The window gets focus once its first frame is on screen, so this is
+     * where startup time is measured to.
+     *
+     * @see android.app.Activity#onWindowFocusChanged(boolean)
+     */
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        if (hasFocus)
+            CaratApplication.firstFrameDrawn();
+    }
+
+
 
     /* (non-Javadoc)
      * @see android.app.ActivityGroup#onPause()
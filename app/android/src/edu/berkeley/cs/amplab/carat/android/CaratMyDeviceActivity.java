@@ -258,7 +258,8 @@ public class CaratMyDeviceActivity extends BaseVFActivity {
      *            The source of the click.
      */
     public void showOsInfo(View v) {
-        Reports r = CaratApplication.s.getReports();
+        CaratDataStorage s = CaratApplication.peekStorage();
+        Reports r = s != null ? s.getReports() : null;
         if (r != null) {
             DetailScreenReport os = r.getOs();
             DetailScreenReport osWithout = r.getOsWithout();
@@ -286,7 +287,8 @@ public class CaratMyDeviceActivity extends BaseVFActivity {
      *            The source of the click.
      */
     public void showDeviceInfo(View v) {
-        Reports r = CaratApplication.s.getReports();
+        CaratDataStorage s = CaratApplication.peekStorage();
+        Reports r = s != null ? s.getReports() : null;
         if (r != null) {
             DetailScreenReport model = r.getModel();
             DetailScreenReport modelWithout = r.getModelWithout();
@@ -315,7 +317,8 @@ public class CaratMyDeviceActivity extends BaseVFActivity {
      *            The source of the click.
      */
     public void showAppInfo(View v) {
-        Reports r = CaratApplication.s.getReports();
+        CaratDataStorage s = CaratApplication.peekStorage();
+        Reports r = s != null ? s.getReports() : null;
         if (r != null) {
             DetailScreenReport similar = r.getSimilarApps();
             DetailScreenReport similarWithout = r.getSimilarAppsWithout();
@@ -18,6 +18,7 @@ import android.widget.ViewFlipper;
 
 import edu.berkeley.cs.amplab.carat.android.lists.HogBugSuggestionsAdapter;
 import edu.berkeley.cs.amplab.carat.android.sampling.SamplingLibrary;
+import edu.berkeley.cs.amplab.carat.android.storage.CaratDataStorage;
 import edu.berkeley.cs.amplab.carat.android.storage.SimpleHogBug;
 import edu.berkeley.cs.amplab.carat.android.ui.BaseVFActivity;
 import edu.berkeley.cs.amplab.carat.android.ui.FlipperBackListener;
@@ -230,8 +231,13 @@ public class CaratSuggestionsActivity extends BaseVFActivity {
     public void refresh() {
         CaratApplication app = (CaratApplication) getApplication();
         final ListView lv = (ListView) findViewById(android.R.id.list);
-        lv.setAdapter(new HogBugSuggestionsAdapter(app, CaratApplication.s.getHogReport(),
-                CaratApplication.s.getBugReport()));
+        // Still loading: show the empty list, storageLoaded() refreshes again
+        CaratDataStorage s = CaratApplication.peekStorage();
+        if (s == null)
+            lv.setAdapter(new HogBugSuggestionsAdapter(app, null, null));
+        else
+            lv.setAdapter(new HogBugSuggestionsAdapter(app, s.getHogReport(),
+                    s.getBugReport()));
         emptyCheck(lv);
     }
     
@@ -0,0 +1,317 @@
+package edu.berkeley.cs.amplab.carat.android.protocol;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TNonblockingSocket;
+
+import android.content.Context;
+import android.util.Log;
+import edu.berkeley.cs.amplab.carat.android.CaratApplication;
+import edu.berkeley.cs.amplab.carat.android.storage.SampleCursor;
+import edu.berkeley.cs.amplab.carat.android.storage.SimpleHogBug;
+import edu.berkeley.cs.amplab.carat.thrift.Feature;
+import edu.berkeley.cs.amplab.carat.thrift.Reports;
+
+/**
+ * Uploads samples and fetches reports with CaratAsyncClients, when the server
+ * has a framed endpoint for them (ASYNC_PORT in caratserver.properties).
+ *
+ * All calls run on the one selector thread of a TAsyncClientManager, each on
+ * its own connection, and their results come back through callbacks on that
+ * thread. No thread waits for the network, however many calls are in flight.
+ * Connections whose call succeeded are kept for the next call like in
+ * ProtocolClient, and checked before they are used again. A call that fails on
+ * a reused connection before any reply arrives is made once more on a new one,
+ * since the server may have closed the connection just then.
+ */
+class AsyncCommunicationManager {
+
+    private static final String TAG = "AsyncComms";
+
+    private final String address;
+    private final int port;
+    // Same protocol as ProtocolClient
+    private final TProtocolFactory protocolFactory = new TBinaryProtocol.Factory(
+            true, true);
+
+    // Guarded by this
+    private TAsyncClientManager manager = null;
+    private final LinkedList<CaratAsyncClient> idle = new LinkedList<CaratAsyncClient>();
+
+    private final AtomicBoolean uploading = new AtomicBoolean(false);
+    private volatile boolean batchUpload = true;
+
+    private AsyncCommunicationManager(String address, int port) {
+        this.address = address;
+        this.port = port;
+    }
+
+    /**
+     * @return a manager for the async endpoint of the server, or null if
+     *         caratserver.properties does not name one.
+     */
+    static AsyncCommunicationManager create(Context c) {
+        synchronized (ProtocolClient.class) {
+            ProtocolClient.loadProperties(c);
+            if (ProtocolClient.SERVER_ADDRESS == null
+                    || ProtocolClient.SERVER_ASYNC_PORT == 0)
+                return null;
+            return new AsyncCommunicationManager(
+                    ProtocolClient.SERVER_ADDRESS,
+                    ProtocolClient.SERVER_ASYNC_PORT);
+        }
+    }
+
+    /**
+     * Start uploading the samples of the cursor in one uploadSamples call.
+     * The samples are written out before this returns, so the cursor can be
+     * closed then. The callback gets the rowids of the samples the server
+     * accepted, on the selector thread. Does nothing while the previous
+     * upload is still in flight, since it may have the same samples.
+     *
+     * @return false if the server does not support uploadSamples, and the
+     *         samples have to be sent with ProtocolClient.
+     */
+    boolean uploadSamples(final SampleCursor samples,
+            final AsyncMethodCallback<List<Long>> callback) throws TException,
+            IOException {
+        if (!batchUpload)
+            return false;
+        if (!uploading.compareAndSet(false, true)) {
+            Log.d(TAG, "Previous upload still in flight.");
+            return true;
+        }
+        try {
+            new Reply<CaratAsyncClient.UploadSamplesCall, List<Long>>(callback) {
+                void call(CaratAsyncClient client) throws TException {
+                    client.uploadSamples(samples,
+                            Collections.<Long> emptyList(), this);
+                }
+
+                List<Long> getResult(CaratAsyncClient.UploadSamplesCall call)
+                        throws TException {
+                    return call.getResult();
+                }
+
+                void done(Exception e) {
+                    uploading.set(false);
+                    if (e instanceof TApplicationException
+                            && ((TApplicationException) e).getType() == TApplicationException.UNKNOWN_METHOD) {
+                        Log.i(TAG,
+                                "Server does not support uploadSamples, not uploading asynchronously.");
+                        batchUpload = false;
+                    }
+                }
+            }.start();
+        } catch (TException e) {
+            uploading.set(false);
+            throw e;
+        } catch (IOException e) {
+            uploading.set(false);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Start fetching the main reports, see CaratClient.getReports(String,
+     * List, String). The callback gets the reply on the selector thread.
+     */
+    void getReports(final String uuId, final List<Feature> features,
+            final String version,
+            AsyncMethodCallback<VersionedReply<Reports>> callback)
+            throws TException, IOException {
+        new Reply<CaratAsyncClient.ReportsCall, VersionedReply<Reports>>(
+                callback) {
+            void call(CaratAsyncClient client) throws TException {
+                client.getReports(uuId, features, version, this);
+            }
+
+            VersionedReply<Reports> getResult(CaratAsyncClient.ReportsCall call)
+                    throws TException {
+                return call.getResult();
+            }
+        }.start();
+    }
+
+    /**
+     * Start fetching the hog or bug report, see
+     * CaratClient.getHogOrBugReport(String, List, boolean, String). The
+     * callback gets the reply on the selector thread.
+     */
+    void getHogOrBugReport(final String uuId, final List<Feature> features,
+            final boolean isBug, final String version,
+            AsyncMethodCallback<VersionedReply<SimpleHogBug[]>> callback)
+            throws TException, IOException {
+        new Reply<CaratAsyncClient.HogBugReportCall, VersionedReply<SimpleHogBug[]>>(
+                callback) {
+            void call(CaratAsyncClient client) throws TException {
+                client.getHogOrBugReport(uuId, features, isBug, version, this);
+            }
+
+            VersionedReply<SimpleHogBug[]> getResult(
+                    CaratAsyncClient.HogBugReportCall call) throws TException {
+                return call.getResult();
+            }
+        }.start();
+    }
+
+    /**
+     * @return true while an upload started with uploadSamples() has not
+     *         finished yet.
+     */
+    boolean isUploading() {
+        return uploading.get();
+    }
+
+    /**
+     * Close the idle connections, for when none will be needed for a while.
+     */
+    synchronized void closeIdle() {
+        for (CaratAsyncClient client : idle)
+            client.close();
+        idle.clear();
+    }
+
+    /*
+     * @param fresh
+     *            true to always open a new connection, for a retry.
+     */
+    private synchronized CaratAsyncClient open(boolean fresh)
+            throws IOException {
+        if (manager == null || !manager.isRunning()) {
+            // Idle clients belong to the manager that stopped
+            closeIdle();
+            manager = new TAsyncClientManager();
+        }
+        long now = System.currentTimeMillis();
+        Iterator<CaratAsyncClient> it = idle.iterator();
+        while (it.hasNext()) {
+            CaratAsyncClient client = it.next();
+            if (now - client.idleSince > CaratApplication.COMMS_IDLE_TIMEOUT) {
+                it.remove();
+                client.close();
+            }
+        }
+        while (!fresh && !idle.isEmpty()) {
+            CaratAsyncClient client = idle.removeLast();
+            if (client.isHealthy()) {
+                client.reused = true;
+                return client;
+            }
+            Log.d(TAG, "Dropping stale connection.");
+            client.close();
+        }
+        CaratAsyncClient client = new CaratAsyncClient(protocolFactory,
+                manager, new TNonblockingSocket(address, port));
+        client.setTimeout(CaratApplication.COMMS_ASYNC_TIMEOUT);
+        return client;
+    }
+
+    private synchronized void release(CaratAsyncClient client) {
+        if (client.hasError()) {
+            client.close();
+            return;
+        }
+        client.idleSince = System.currentTimeMillis();
+        idle.addLast(client);
+        if (idle.size() > CaratApplication.COMMS_MAX_IDLE_CONNECTIONS)
+            idle.removeFirst().close();
+    }
+
+    /*
+     * Makes a call on a client, gives the client back once the call is done,
+     * and hands the result of the call on to the callback of the caller.
+     */
+    private abstract class Reply<C extends CaratAsyncClient.CaratCall<C>, T>
+            implements AsyncMethodCallback<C> {
+        private final AsyncMethodCallback<T> callback;
+        private CaratAsyncClient client = null;
+
+        Reply(AsyncMethodCallback<T> callback) {
+            this.callback = callback;
+        }
+
+        /*
+         * Start the call on the client, with this as its callback.
+         */
+        abstract void call(CaratAsyncClient client) throws TException;
+
+        abstract T getResult(C call) throws TException;
+
+        /*
+         * Called before the callback of the caller, with the error if there
+         * was one.
+         */
+        void done(Exception e) {
+        }
+
+        void start() throws TException, IOException {
+            client = open(false);
+            try {
+                call(client);
+            } catch (TException e) {
+                client.close();
+                throw e;
+            }
+        }
+
+        /*
+         * Make the failed call again on a new connection.
+         */
+        private void retry(C failed) throws TException, IOException {
+            client = open(true);
+            try {
+                client.retry(failed, this);
+            } catch (TException e) {
+                client.close();
+                throw e;
+            }
+        }
+
+        public void onComplete(C call) {
+            release(client);
+            T result;
+            try {
+                result = getResult(call);
+            } catch (Exception e) {
+                done(e);
+                callback.onError(e);
+                return;
+            }
+            done(null);
+            callback.onComplete(result);
+        }
+
+        public void onError(Exception e) {
+            CaratAsyncClient failed = client;
+            release(failed);
+            C call = failed.getLastCall();
+            // A timed out call may still be running on the server
+            if (failed.reused && call != null && !call.gotResponse()
+                    && !(e instanceof TimeoutException)) {
+                Log.d(TAG, "Call failed on a reused connection, retrying: " + e);
+                try {
+                    retry(call);
+                    return;
+                } catch (Exception retryError) {
+                    e = retryError;
+                }
+            }
+            done(e);
+            callback.onError(e);
+        }
+    }
+}
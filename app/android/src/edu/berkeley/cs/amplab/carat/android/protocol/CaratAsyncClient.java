@@ -0,0 +1,350 @@
+package edu.berkeley.cs.amplab.carat.android.protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClient;
+import org.apache.thrift.async.TAsyncClientManager;
+import org.apache.thrift.async.TAsyncMethodCall;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TNonblockingTransport;
+
+import edu.berkeley.cs.amplab.carat.android.storage.SampleCursor;
+import edu.berkeley.cs.amplab.carat.android.storage.SimpleHogBug;
+import edu.berkeley.cs.amplab.carat.thrift.CaratService;
+import edu.berkeley.cs.amplab.carat.thrift.Feature;
+import edu.berkeley.cs.amplab.carat.thrift.Reports;
+
+/**
+ * The CaratClient calls for CaratService.AsyncClient: samples uploaded
+ * straight from CaratSampleDB, and versioned reports. Like any AsyncClient,
+ * it makes one call at a time; its TAsyncClientManager runs the calls of all
+ * clients on one selector thread.
+ */
+public class CaratAsyncClient extends CaratService.AsyncClient {
+
+    // When the client was given back, see AsyncCommunicationManager
+    long idleSince = 0;
+    // Whether the client was taken from the idle ones for its current call
+    boolean reused = false;
+
+    // The last call started, for retrying it
+    private CaratCall<?> lastCall = null;
+
+    public CaratAsyncClient(TProtocolFactory protocolFactory,
+            TAsyncClientManager clientManager, TNonblockingTransport transport) {
+        super(protocolFactory, clientManager, transport);
+    }
+
+    /**
+     * Upload the samples of the cursor not in skip in one uploadSamples call.
+     * The samples are written out before this returns, so the cursor may be
+     * closed then.
+     */
+    public void uploadSamples(SampleCursor cursor, Collection<Long> skip,
+            AsyncMethodCallback<UploadSamplesCall> resultHandler)
+            throws TException {
+        checkReady();
+        UploadSamplesCall method_call = new UploadSamplesCall(cursor, skip,
+                resultHandler, this, ___protocolFactory, ___transport);
+        start(method_call);
+    }
+
+    /**
+     * Like CaratClient.getReports(String, List, String).
+     */
+    public void getReports(String uuId, List<Feature> features,
+            String version, AsyncMethodCallback<ReportsCall> resultHandler)
+            throws TException {
+        checkReady();
+        ReportsCall method_call = new ReportsCall(uuId, features, version,
+                resultHandler, this, ___protocolFactory, ___transport);
+        start(method_call);
+    }
+
+    /**
+     * Like CaratClient.getHogOrBugReport(String, List, boolean, String).
+     */
+    public void getHogOrBugReport(String uuId, List<Feature> features,
+            boolean isBug, String version,
+            AsyncMethodCallback<HogBugReportCall> resultHandler)
+            throws TException {
+        checkReady();
+        HogBugReportCall method_call = new HogBugReportCall(uuId, features,
+                isBug, version, resultHandler, this, ___protocolFactory,
+                ___transport);
+        start(method_call);
+    }
+
+    /**
+     * Make a call again that failed on another client, with the request it
+     * wrote then.
+     */
+    public <T extends CaratCall<T>> void retry(T failed,
+            AsyncMethodCallback<T> resultHandler) throws TException {
+        checkReady();
+        start(failed.copy(resultHandler, this, ___protocolFactory,
+                ___transport));
+    }
+
+    /**
+     * @return the last call started on this client, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends CaratCall<T>> T getLastCall() {
+        return (T) lastCall;
+    }
+
+    /**
+     * Like ProtocolClient.isHealthy(): an idle connection should have nothing
+     * to read. Reading ends if the server has closed it, and returns data if
+     * it is out of step. Does not block.
+     */
+    boolean isHealthy() {
+        if (!___transport.isOpen())
+            return false;
+        try {
+            return ___transport.read(ByteBuffer.allocate(1)) == 0;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Close the connection.
+     */
+    public void close() {
+        ___transport.close();
+    }
+
+    private void start(CaratCall<?> method_call) throws TException {
+        lastCall = method_call;
+        this.___currentMethod = method_call;
+        ___manager.call(method_call);
+    }
+
+    /**
+     * A call that keeps the request it wrote, so that it can be made again on
+     * a new connection, see retry().
+     */
+    public abstract static class CaratCall<T extends CaratCall<T>> extends
+            TAsyncMethodCall<T> {
+        private byte[] request = null;
+
+        CaratCall(AsyncMethodCallback<T> resultHandler, TAsyncClient client,
+                TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) {
+            super(client, protocolFactory, transport, resultHandler, false);
+        }
+
+        /*
+         * For copy(): the same request, on another client.
+         */
+        CaratCall(CaratCall<T> failed, AsyncMethodCallback<T> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) {
+            this(resultHandler, client, protocolFactory, transport);
+            request = failed.request;
+        }
+
+        abstract T copy(AsyncMethodCallback<T> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport);
+
+        abstract void writeRequest(TProtocol prot) throws TException;
+
+        public void write_args(TProtocol prot) throws TException {
+            if (request == null) {
+                TMemoryBuffer buf = new TMemoryBuffer(256);
+                writeRequest(getClient().getProtocolFactory().getProtocol(buf));
+                request = new byte[buf.length()];
+                System.arraycopy(buf.getArray(), 0, request, 0, request.length);
+            }
+            prot.getTransport().write(request);
+        }
+
+        /**
+         * @return true if any of the reply has arrived. A call that failed
+         *         before that may be made again; the server has either not
+         *         seen it or not answered it.
+         */
+        public boolean gotResponse() {
+            State state = getState();
+            return state == State.READING_RESPONSE_BODY
+                    || state == State.RESPONSE_READ;
+        }
+    }
+
+    public static class UploadSamplesCall extends
+            CaratCall<UploadSamplesCall> {
+        private SampleCursor cursor;
+        private final Collection<Long> skip;
+        private List<Long> sent;
+
+        UploadSamplesCall(SampleCursor cursor, Collection<Long> skip,
+                AsyncMethodCallback<UploadSamplesCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) throws TException {
+            super(resultHandler, client, protocolFactory, transport);
+            this.cursor = cursor;
+            this.skip = skip;
+        }
+
+        private UploadSamplesCall(UploadSamplesCall failed,
+                AsyncMethodCallback<UploadSamplesCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) {
+            super(failed, resultHandler, client, protocolFactory, transport);
+            this.skip = failed.skip;
+            this.sent = failed.sent;
+        }
+
+        UploadSamplesCall copy(
+                AsyncMethodCallback<UploadSamplesCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) {
+            return new UploadSamplesCall(this, resultHandler, client,
+                    protocolFactory, transport);
+        }
+
+        void writeRequest(TProtocol prot) throws TException {
+            sent = CaratClient.rowIds(cursor, skip);
+            CaratClient.writeUploadSamples(prot, 0, cursor, skip, sent.size());
+            // Written, and the caller may close it now
+            cursor = null;
+        }
+
+        /**
+         * @return the rowids of the samples the server accepted.
+         */
+        public List<Long> getResult() throws TException {
+            return CaratClient.accepted(sent,
+                    replyClient(this, getState(), getFrameBuffer().array())
+                            .recv_uploadSamples());
+        }
+    }
+
+    public static class ReportsCall extends CaratCall<ReportsCall> {
+        private final String uuId;
+        private final List<Feature> features;
+        private final String version;
+
+        ReportsCall(String uuId, List<Feature> features, String version,
+                AsyncMethodCallback<ReportsCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) throws TException {
+            super(resultHandler, client, protocolFactory, transport);
+            this.uuId = uuId;
+            this.features = CaratClient.withVersion(features, version);
+            this.version = version;
+        }
+
+        private ReportsCall(ReportsCall failed,
+                AsyncMethodCallback<ReportsCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) {
+            super(failed, resultHandler, client, protocolFactory, transport);
+            this.uuId = failed.uuId;
+            this.features = failed.features;
+            this.version = failed.version;
+        }
+
+        ReportsCall copy(AsyncMethodCallback<ReportsCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) {
+            return new ReportsCall(this, resultHandler, client,
+                    protocolFactory, transport);
+        }
+
+        void writeRequest(TProtocol prot) throws TException {
+            prot.writeMessageBegin(new TMessage("getReports",
+                    TMessageType.CALL, 0));
+            CaratService.getReports_args args = new CaratService.getReports_args();
+            args.setUuId(uuId);
+            args.setFeatures(features);
+            args.write(prot);
+            prot.writeMessageEnd();
+        }
+
+        public VersionedReply<Reports> getResult() throws TException {
+            return replyClient(this, getState(), getFrameBuffer().array())
+                    .recv_getReports(version);
+        }
+    }
+
+    public static class HogBugReportCall extends CaratCall<HogBugReportCall> {
+        private final String uuId;
+        private final List<Feature> features;
+        private final boolean isBug;
+        private final String version;
+
+        HogBugReportCall(String uuId, List<Feature> features, boolean isBug,
+                String version,
+                AsyncMethodCallback<HogBugReportCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) throws TException {
+            super(resultHandler, client, protocolFactory, transport);
+            this.uuId = uuId;
+            this.features = CaratClient.withVersion(features, version);
+            this.isBug = isBug;
+            this.version = version;
+        }
+
+        private HogBugReportCall(HogBugReportCall failed,
+                AsyncMethodCallback<HogBugReportCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) {
+            super(failed, resultHandler, client, protocolFactory, transport);
+            this.uuId = failed.uuId;
+            this.features = failed.features;
+            this.isBug = failed.isBug;
+            this.version = failed.version;
+        }
+
+        HogBugReportCall copy(
+                AsyncMethodCallback<HogBugReportCall> resultHandler,
+                TAsyncClient client, TProtocolFactory protocolFactory,
+                TNonblockingTransport transport) {
+            return new HogBugReportCall(this, resultHandler, client,
+                    protocolFactory, transport);
+        }
+
+        void writeRequest(TProtocol prot) throws TException {
+            prot.writeMessageBegin(new TMessage("getHogOrBugReport",
+                    TMessageType.CALL, 0));
+            CaratService.getHogOrBugReport_args args = new CaratService.getHogOrBugReport_args();
+            args.setUuId(uuId);
+            args.setFeatures(features);
+            args.write(prot);
+            prot.writeMessageEnd();
+        }
+
+        public VersionedReply<SimpleHogBug[]> getResult() throws TException {
+            return replyClient(this, getState(), getFrameBuffer().array())
+                    .recv_getHogOrBugReport(isBug, version);
+        }
+    }
+
+    /*
+     * A CaratClient reading the reply frame of a finished call, as the
+     * generated calls do with a CaratService.Client.
+     */
+    private static CaratClient replyClient(TAsyncMethodCall<?> call,
+            TAsyncMethodCall.State state, byte[] frame) {
+        if (state != TAsyncMethodCall.State.RESPONSE_READ)
+            throw new IllegalStateException("Method call not finished!");
+        TMemoryInputTransport memoryTransport = new TMemoryInputTransport(frame);
+        TProtocol prot = call.getClient().getProtocolFactory()
+                .getProtocol(memoryTransport);
+        return new CaratClient(prot);
+    }
+}
@@ -0,0 +1,400 @@
+package edu.berkeley.cs.amplab.carat.android.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TStruct;
+import org.apache.thrift.protocol.TType;
+
+import edu.berkeley.cs.amplab.carat.android.storage.HogBugReader;
+import edu.berkeley.cs.amplab.carat.android.storage.SampleCursor;
+import edu.berkeley.cs.amplab.carat.android.storage.SimpleHogBug;
+import edu.berkeley.cs.amplab.carat.thrift.CaratService;
+import edu.berkeley.cs.amplab.carat.thrift.Feature;
+import edu.berkeley.cs.amplab.carat.thrift.Reports;
+
+/**
+ * CaratService client that can also upload samples straight from
+ * CaratSampleDB, one at a time or in batches, writing the stored bytes onto
+ * the connection without creating Sample objects, and fetch versioned
+ * reports, reading hog and bug reports straight into SimpleHogBugs.
+ */
+public class CaratClient extends CaratService.Client {
+
+    // Must match CaratService.uploadSample_args
+    private static final TStruct UPLOAD_SAMPLE_ARGS = new TStruct(
+            "uploadSample_args");
+    private static final TField SAMPLE_FIELD = new TField("sample",
+            TType.STRUCT, (short) 1);
+
+    // Must match CaratService.uploadSamples_args
+    private static final TStruct UPLOAD_SAMPLES_ARGS = new TStruct(
+            "uploadSamples_args");
+    private static final TField SAMPLES_FIELD = new TField("samples",
+            TType.LIST, (short) 1);
+
+    // Field id of the result in CaratService.getReports_result and
+    // getHogOrBugReport_result
+    private static final short SUCCESS_FIELD_ID = 0;
+
+    /*
+     * Optional fields of the same results for versioned reports. Servers
+     * that do not version reports never send them, and the generated clients
+     * skip them, so both work with either kind of server.
+     */
+    private static final short VERSION_FIELD_ID = 100;
+    private static final short INCREMENTAL_FIELD_ID = 101;
+    private static final short REMOVED_FIELD_ID = 102;
+
+    /**
+     * Feature with the version of the report the client already has. A
+     * server that versions reports answers with no result when the report is
+     * still that version, or with the changes since it.
+     */
+    public static final String VERSION_FEATURE = "ReportVersion";
+
+    private interface ResultReader<T> {
+        T read(TProtocol iprot) throws TException;
+    }
+
+    private static final ResultReader<Reports> REPORTS_READER = new ResultReader<Reports>() {
+        public Reports read(TProtocol iprot) throws TException {
+            Reports r = new Reports();
+            r.read(iprot);
+            return r;
+        }
+    };
+
+    public CaratClient(TProtocol prot) {
+        super(prot);
+    }
+
+    /**
+     * Like getReports(String, List), but sends the version the client has.
+     *
+     * @param version
+     *            version of the stored report, or null if there is none.
+     */
+    public VersionedReply<Reports> getReports(String uuId,
+            List<Feature> features, String version) throws TException {
+        send_getReports(uuId, withVersion(features, version));
+        return recv_getReports(version);
+    }
+
+    /**
+     * Read the reply to getReports(String, List, String).
+     */
+    VersionedReply<Reports> recv_getReports(String version) throws TException {
+        return receiveVersioned("getReports", version, REPORTS_READER);
+    }
+
+    /**
+     * Like getHogOrBugReport(String, List), but sends the version the client
+     * has, and reads the reply with HogBugReader instead of into a
+     * HogBugReport.
+     *
+     * @param version
+     *            version of the stored report, or null if there is none.
+     */
+    public VersionedReply<SimpleHogBug[]> getHogOrBugReport(String uuId,
+            List<Feature> features, boolean isBug, String version)
+            throws TException {
+        send_getHogOrBugReport(uuId, withVersion(features, version));
+        return recv_getHogOrBugReport(isBug, version);
+    }
+
+    /**
+     * Read the reply to getHogOrBugReport(String, List, boolean, String).
+     */
+    VersionedReply<SimpleHogBug[]> recv_getHogOrBugReport(final boolean isBug,
+            String version) throws TException {
+        return receiveVersioned("getHogOrBugReport", version,
+                new ResultReader<SimpleHogBug[]>() {
+                    public SimpleHogBug[] read(TProtocol iprot)
+                            throws TException {
+                        return HogBugReader.read(iprot, isBug);
+                    }
+                });
+    }
+
+    static List<Feature> withVersion(List<Feature> features, String version) {
+        if (version == null)
+            return features;
+        List<Feature> result = new ArrayList<Feature>(features);
+        Feature f = new Feature();
+        f.setKey(VERSION_FEATURE);
+        f.setValue(version);
+        result.add(f);
+        return result;
+    }
+
+    /*
+     * Like TServiceClient.receiveBase(), reading the result struct by hand to
+     * see the version fields.
+     */
+    private <T> VersionedReply<T> receiveVersioned(String methodName,
+            String sentVersion, ResultReader<T> reader) throws TException {
+        TMessage msg = iprot_.readMessageBegin();
+        if (msg.type == TMessageType.EXCEPTION) {
+            TApplicationException x = TApplicationException.read(iprot_);
+            iprot_.readMessageEnd();
+            throw x;
+        }
+        if (msg.seqid != seqid_)
+            throw new TApplicationException(
+                    TApplicationException.BAD_SEQUENCE_ID, methodName
+                            + " failed: out of sequence response");
+        T value = null;
+        boolean success = false;
+        String version = null;
+        boolean incremental = false;
+        List<String> removed = new ArrayList<String>();
+        iprot_.readStructBegin();
+        while (true) {
+            TField field = iprot_.readFieldBegin();
+            if (field.type == TType.STOP)
+                break;
+            if (field.id == SUCCESS_FIELD_ID && field.type == TType.STRUCT) {
+                value = reader.read(iprot_);
+                success = true;
+            } else if (field.id == VERSION_FIELD_ID
+                    && field.type == TType.STRING) {
+                version = iprot_.readString();
+            } else if (field.id == INCREMENTAL_FIELD_ID
+                    && field.type == TType.BOOL) {
+                incremental = iprot_.readBool();
+            } else if (field.id == REMOVED_FIELD_ID
+                    && field.type == TType.LIST) {
+                TList list = iprot_.readListBegin();
+                for (int i = 0; i < list.size; i++) {
+                    if (list.elemType == TType.STRING)
+                        removed.add(iprot_.readString());
+                    else
+                        TProtocolUtil.skip(iprot_, list.elemType);
+                }
+                iprot_.readListEnd();
+            } else
+                TProtocolUtil.skip(iprot_, field.type);
+            iprot_.readFieldEnd();
+        }
+        iprot_.readStructEnd();
+        iprot_.readMessageEnd();
+        boolean notModified = !success && version != null
+                && version.equals(sentVersion);
+        if (!success && !notModified)
+            throw new TApplicationException(
+                    TApplicationException.MISSING_RESULT, methodName
+                            + " failed: unknown result");
+        // Changes to nothing are the whole report
+        incremental &= success && sentVersion != null;
+        return new VersionedReply<T>(value, version, notModified, incremental,
+                removed);
+    }
+
+    /**
+     * Upload the sample at the current position of the cursor.
+     *
+     * @return the server's answer, like uploadSample(Sample).
+     */
+    public boolean uploadSample(SampleCursor cursor) throws TException {
+        send_uploadSample(cursor);
+        return recv_uploadSample();
+    }
+
+    /**
+     * Send an uploadSample call for the sample at the current position of the
+     * cursor. Read the reply with recv_uploadSample().
+     */
+    public void send_uploadSample(SampleCursor cursor) throws TException {
+        writeUploadSample(cursor);
+        oprot_.getTransport().flush();
+    }
+
+    private void writeUploadSample(SampleCursor cursor) throws TException {
+        oprot_.writeMessageBegin(new TMessage("uploadSample",
+                TMessageType.CALL, ++seqid_));
+        oprot_.writeStructBegin(UPLOAD_SAMPLE_ARGS);
+        oprot_.writeFieldBegin(SAMPLE_FIELD);
+        cursor.writeSample(oprot_);
+        oprot_.writeFieldEnd();
+        oprot_.writeFieldStop();
+        oprot_.writeStructEnd();
+        oprot_.writeMessageEnd();
+    }
+
+    /**
+     * Upload the samples of the cursor with uploadSample, sending the next
+     * ones before the replies to the previous ones have come back. The server
+     * answers calls on a connection in order, so the replies are matched to
+     * the samples by sequence id. Rowids of accepted samples are added to
+     * uploaded as their replies arrive, so they are kept even if the
+     * connection fails later.
+     * 
+     * @param uploaded
+     *            rowids of samples already uploaded, which are left out.
+     * @param window
+     *            how many samples may be waiting for a reply at a time.
+     */
+    public void uploadSamples(SampleCursor cursor, List<Long> uploaded,
+            int window) throws TException {
+        if (window < 1)
+            window = 1;
+        long[] rowids = new long[window];
+        int[] seqids = new int[window];
+        int first = 0;
+        int waiting = 0;
+        cursor.rewind();
+        while (cursor.moveToNext()) {
+            long rowid = cursor.getRowId();
+            if (uploaded.contains(rowid))
+                continue;
+            if (waiting == window) {
+                oprot_.getTransport().flush();
+                if (recv_uploadSample(seqids[first]))
+                    uploaded.add(rowids[first]);
+                first = (first + 1) % window;
+                waiting--;
+            }
+            writeUploadSample(cursor);
+            int last = (first + waiting) % window;
+            rowids[last] = rowid;
+            seqids[last] = seqid_;
+            waiting++;
+        }
+        if (waiting > 0)
+            oprot_.getTransport().flush();
+        for (; waiting > 0; waiting--) {
+            if (recv_uploadSample(seqids[first]))
+                uploaded.add(rowids[first]);
+            first = (first + 1) % window;
+        }
+    }
+
+    /*
+     * Like recv_uploadSample(), but for the call with the given sequence id
+     * instead of the last one sent.
+     */
+    private boolean recv_uploadSample(int seqid) throws TException {
+        TMessage msg = iprot_.readMessageBegin();
+        if (msg.type == TMessageType.EXCEPTION) {
+            TApplicationException x = TApplicationException.read(iprot_);
+            iprot_.readMessageEnd();
+            throw x;
+        }
+        if (msg.seqid != seqid)
+            throw new TApplicationException(
+                    TApplicationException.BAD_SEQUENCE_ID,
+                    "uploadSample failed: out of sequence response");
+        CaratService.uploadSample_result result = new CaratService.uploadSample_result();
+        result.read(iprot_);
+        iprot_.readMessageEnd();
+        if (result.isSetSuccess())
+            return result.success;
+        throw new TApplicationException(TApplicationException.MISSING_RESULT,
+                "uploadSample failed: unknown result");
+    }
+
+    /**
+     * Upload the samples of the cursor in one uploadSamples call, leaving
+     * out those in skip.
+     * 
+     * @param skip
+     *            rowids of samples already uploaded.
+     * @return the rowids of the samples the server accepted.
+     * @throws TApplicationException
+     *             of type UNKNOWN_METHOD if the server is too old for
+     *             uploadSamples. The connection can still be used.
+     */
+    public List<Long> uploadSamples(SampleCursor cursor, Collection<Long> skip)
+            throws TException {
+        List<Long> sent = rowIds(cursor, skip);
+        if (sent.isEmpty())
+            return sent;
+        send_uploadSamples(cursor, skip, sent.size());
+        return accepted(sent, recv_uploadSamples());
+    }
+
+    /**
+     * @return the rowids of the samples of the cursor not in skip, in order.
+     */
+    static List<Long> rowIds(SampleCursor cursor, Collection<Long> skip) {
+        List<Long> rowids = new ArrayList<Long>();
+        cursor.rewind();
+        while (cursor.moveToNext()) {
+            long rowid = cursor.getRowId();
+            if (!skip.contains(rowid))
+                rowids.add(rowid);
+        }
+        return rowids;
+    }
+
+    /**
+     * @return the rowids of sent that the acknowledgements from uploadSamples
+     *         accept.
+     */
+    static List<Long> accepted(List<Long> sent, ByteBuffer acks) {
+        List<Long> accepted = new ArrayList<Long>();
+        for (int i = 0; i < sent.size(); i++) {
+            if (isAccepted(acks, i))
+                accepted.add(sent.get(i));
+        }
+        return accepted;
+    }
+
+    /**
+     * Send an uploadSamples call for the samples of the cursor not in skip.
+     * Read the reply with recv_uploadSamples().
+     * 
+     * @param count
+     *            how many samples that is.
+     */
+    public void send_uploadSamples(SampleCursor cursor, Collection<Long> skip,
+            int count) throws TException {
+        writeUploadSamples(oprot_, ++seqid_, cursor, skip, count);
+        oprot_.getTransport().flush();
+    }
+
+    /**
+     * Write an uploadSamples call for the samples of the cursor not in skip.
+     */
+    static void writeUploadSamples(TProtocol oprot, int seqid,
+            SampleCursor cursor, Collection<Long> skip, int count)
+            throws TException {
+        oprot.writeMessageBegin(new TMessage("uploadSamples",
+                TMessageType.CALL, seqid));
+        oprot.writeStructBegin(UPLOAD_SAMPLES_ARGS);
+        oprot.writeFieldBegin(SAMPLES_FIELD);
+        oprot.writeListBegin(new TList(TType.STRUCT, count));
+        cursor.rewind();
+        while (cursor.moveToNext()) {
+            if (!skip.contains(cursor.getRowId()))
+                cursor.writeSample(oprot);
+        }
+        oprot.writeListEnd();
+        oprot.writeFieldEnd();
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+        oprot.writeMessageEnd();
+    }
+
+    /**
+     * @return true if bit i of the acknowledgements from uploadSamples is
+     *         set, lowest bit of the first byte first. Samples past the end
+     *         of a short bitmap were not accepted.
+     */
+    static boolean isAccepted(ByteBuffer acks, int i) {
+        if (acks == null || i / 8 >= acks.remaining())
+            return false;
+        return (acks.get(acks.position() + i / 8) & (1 << (i % 8))) != 0;
+    }
+}
@@ -1,6 +1,10 @@
 package edu.berkeley.cs.amplab.carat.android.protocol;
 
-import java.util.SortedMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.thrift.async.AsyncMethodCallback;
 
 import com.flurry.android.FlurryAgent;
 
@@ -8,12 +12,15 @@ import android.content.Context;
 import android.util.Log;
 import edu.berkeley.cs.amplab.carat.android.CaratApplication;
 import edu.berkeley.cs.amplab.carat.android.sampling.SamplingLibrary;
+import edu.berkeley.cs.amplab.carat.android.storage.CaratDataStorage;
 import edu.berkeley.cs.amplab.carat.android.storage.CaratSampleDB;
-import edu.berkeley.cs.amplab.carat.thrift.Sample;
+import edu.berkeley.cs.amplab.carat.android.storage.SampleCursor;
+import edu.berkeley.cs.amplab.carat.android.storage.SampleWriteBuffer;
 
 /**
- * Communicates with the Carat Server. Sends samples stored in CaratDB every
- * COMMS_INTERVAL ms.
+ * Communicates with the Carat Server. Sends samples stored in CaratDB in
+ * batches, when and as many at a time as the UploadScheduler decides: back to
+ * back while there is a backlog, every COMMS_INTERVAL ms otherwise.
  * 
  * @author Eemil Lagerspetz
  * 
@@ -29,6 +36,16 @@ public class CommsThread extends Thread {
 
     CaratApplication app = null;
 
+    private final UploadScheduler scheduler = new UploadScheduler(new Random());
+    private final Object wakeLock = new Object();
+    // Set when an async upload finishes. Guarded by wakeLock.
+    private boolean woken = false;
+    // The result of the finished async upload, for run(). Guarded by wakeLock.
+    private boolean asyncFinished = false;
+    private List<Long> asyncUploaded = null;
+    private Exception asyncError = null;
+    private int asyncSent = 0;
+
     public CommsThread(CaratApplication app) {
         this.app = app;
     }
@@ -44,89 +61,193 @@ public class CommsThread extends Thread {
     }
 
     public void run() {
-        boolean connecting = false;
         Context c = app.getApplicationContext();
 
         Log.d(TAG, "Sample sender started.");
 
         while (isRunning) {
+            finishAsyncUpload(c);
+            long delay;
             String networkStatus = SamplingLibrary.getNetworkStatus(c);
             if (networkStatus == SamplingLibrary.NETWORKSTATUS_CONNECTED) {
-                SortedMap<Long, Sample> map = CaratSampleDB.getInstance(c)
-                        .queryOldestSamples(
-                                CaratApplication.COMMS_MAX_UPLOAD_BATCH);
-                if (map.size() > 0) {
-                    if (app.c != null) {
-                        int tries = 0;
-                        while (tries < 2) {
-                            try {
-                                boolean success = app.c.uploadSamples(map
-                                        .values());
-                                if (success) {
-                                    tries = 2;
-                                    FlurryAgent.logEvent("UploadSamples", map);
-                                    Log.d(TAG, "Uploaded " + map.size()
-                                            + " samples.");
-                                    CaratApplication.s.samplesReported(map.size());
-                                    Sample last = map.get(map.lastKey());
-                                    Log.d(TAG,
-                                            "Deleting " + map.size()
-                                                    + " samples older than "
-                                                    + last.getTimestamp());
-                                    int deleted = CaratSampleDB.getInstance(c)
-                                            .deleteSamples(map.keySet());
-                                    /*
-                                     * .deleteOldestSamples(
-                                     * last.getTimestamp());
-                                     */
-                                    Log.d(TAG, "Deleted " + deleted
-                                            + " samples.");
-                                }
-                            } catch (Throwable th) {
-                                // Any sort of malformed response, too short
-                                // string, etc...
-                                Log.w(TAG, "Failed to refresh reports: " + th
-                                        + (tries < 1 ? "Trying again now": TRY_AGAIN), th);
-                                tries++;
-                            }
-                        }
-                    }else {
-                        Log.w(TAG, "CommunicationManager is not ready yet." + TRY_AGAIN);
-                    }
-                } else {
-                    Log.w(TAG, "No samples to send." + TRY_AGAIN);
+                delay = scheduler.getDelay();
+                if (delay == 0) {
+                    uploadSamples(c);
+                    delay = scheduler.getDelay();
                 }
             } else if (networkStatus
                     .equals(SamplingLibrary.NETWORKSTATUS_CONNECTING)) {
                 Log.w(TAG, "Network status: " + networkStatus
                         + ", trying again in 10s.");
-                connecting = true;
+                // wait for wifi to come up
+                delay = CaratApplication.COMMS_WIFI_WAIT;
             } else {
                 Log.w(TAG, "Network status: " + networkStatus
                         + TRY_AGAIN);
-                connecting = false;
-            }
-            if (connecting) {
-                // wait for wifi to come up
-                try {
-                    sleep(CaratApplication.COMMS_WIFI_WAIT);
-                } catch (InterruptedException e1) {
-                    // ignore
-                }
-                connecting = false;
-            } else {
-                try {
-                    sleep(CaratApplication.COMMS_INTERVAL);
-                } catch (InterruptedException e) {
-                    // wait for wifi to come up
-                    try {
-                        sleep(CaratApplication.COMMS_WIFI_WAIT);
-                    } catch (InterruptedException e1) {
-                        // ignore
-                    }
-                }
+                delay = CaratApplication.COMMS_INTERVAL;
             }
+            if (delay > 0)
+                pause(delay);
         }
         Log.d(TAG, "Sample sender stopped.");
     }
+
+    /*
+     * Wait for the given time, or until an async upload finishes or the app
+     * is resumed.
+     */
+    private void pause(long delay) {
+        // Connections would not last until the next round
+        if (delay > CaratApplication.COMMS_IDLE_TIMEOUT && app.c != null)
+            app.c.closeIdleConnections();
+        try {
+            synchronized (wakeLock) {
+                if (!woken)
+                    wakeLock.wait(delay);
+                woken = false;
+            }
+        } catch (InterruptedException e) {
+            // wait for wifi to come up
+            try {
+                sleep(CaratApplication.COMMS_WIFI_WAIT);
+            } catch (InterruptedException e1) {
+                // ignore
+            }
+            scheduler.uploadNow();
+        }
+    }
+
+    /*
+     * Called on the selector thread of the async client, which must not wait
+     * for the database: hand the result over to run().
+     */
+    private void asyncUploadDone(List<Long> uploaded, Exception e, int sent) {
+        synchronized (wakeLock) {
+            asyncFinished = true;
+            asyncUploaded = uploaded;
+            asyncError = e;
+            asyncSent = sent;
+            woken = true;
+            wakeLock.notify();
+        }
+    }
+
+    private void finishAsyncUpload(Context c) {
+        List<Long> uploaded;
+        Exception e;
+        int sent;
+        synchronized (wakeLock) {
+            if (!asyncFinished)
+                return;
+            asyncFinished = false;
+            uploaded = asyncUploaded;
+            e = asyncError;
+            sent = asyncSent;
+            asyncUploaded = null;
+            asyncError = null;
+        }
+        if (e != null) {
+            uploadFailed(e);
+            return;
+        }
+        try {
+            samplesUploaded(c, uploaded, sent);
+        } catch (Throwable th) {
+            uploadFailed(th);
+        }
+    }
+
+    private void uploadSamples(Context c) {
+        // Make samples still in memory available for upload
+        SampleWriteBuffer.getInstance(c).flush();
+        long backlog = CaratSampleDB.getInstance(c).countSamples();
+        if (backlog == 0) {
+            Log.w(TAG, "No samples to send." + TRY_AGAIN);
+            scheduler.idle();
+            return;
+        }
+        if (app.c == null) {
+            Log.w(TAG, "CommunicationManager is not ready yet." + TRY_AGAIN);
+            scheduler.idle();
+            return;
+        }
+        SampleCursor samples = CaratSampleDB.getInstance(c).openOldestSamples(
+                scheduler.getBatchSize());
+        try {
+            uploadSamples(c, samples, backlog);
+        } finally {
+            samples.close();
+        }
+    }
+
+    private void uploadSamples(Context c, SampleCursor samples, long backlog) {
+        final int count = samples.getCount();
+        if (count == 0) {
+            Log.w(TAG, "No samples to send." + TRY_AGAIN);
+            scheduler.idle();
+            return;
+        }
+        // Would return without sending, and throw off the throughput measure
+        if (app.c.asyncUploadInFlight()) {
+            Log.d(TAG, "Previous upload still in flight." + TRY_AGAIN);
+            scheduler.idle();
+            return;
+        }
+        scheduler.started(backlog, SamplingLibrary.networkUnmetered(c),
+                SamplingLibrary.isPluggedIn(c));
+        // Nothing waits for the reply of an async upload
+        if (app.c.uploadSamplesAsync(samples,
+                new AsyncMethodCallback<List<Long>>() {
+                    public void onComplete(List<Long> uploaded) {
+                        asyncUploadDone(uploaded, null, count);
+                    }
+
+                    public void onError(Exception e) {
+                        asyncUploadDone(null, e, count);
+                    }
+                }))
+            return;
+        try {
+            List<Long> uploaded = app.c.uploadSamples(samples);
+            samplesUploaded(c, uploaded, count);
+        } catch (Throwable th) {
+            // Any sort of malformed response, too short
+            // string, etc...
+            uploadFailed(th);
+        }
+    }
+
+    /*
+     * Delete the uploaded samples from CaratSampleDB, before anything else can
+     * fail and leave them to be uploaded again.
+     */
+    private void samplesUploaded(Context c, List<Long> uploaded, int count) {
+        if (uploaded.size() > 0) {
+            int deleted = CaratSampleDB.getInstance(c).deleteSamples(uploaded);
+            Log.d(TAG, "Uploaded " + uploaded.size() + " of " + count
+                    + " samples, deleted " + deleted + ".");
+            CaratDataStorage s = CaratApplication.getStorage();
+            if (s != null)
+                s.samplesReported(uploaded.size());
+            HashMap<String, String> m = new HashMap<String, String>();
+            m.put("count", uploaded.size() + "");
+            FlurryAgent.logEvent("UploadSamples", m);
+        }
+        long delay = scheduler.uploaded(count, uploaded.size());
+        if (uploaded.size() < count)
+            Log.w(TAG, "Failed to upload " + (count - uploaded.size())
+                    + " samples," + tryAgainIn(delay));
+        else
+            Log.d(TAG, "Next batch of up to " + scheduler.getBatchSize()
+                    + " samples in " + (delay / 1000) + "s.");
+    }
+
+    private void uploadFailed(Throwable th) {
+        long delay = scheduler.failed();
+        Log.w(TAG, "Failed to upload samples: " + th + tryAgainIn(delay), th);
+    }
+
+    private static String tryAgainIn(long delay) {
+        return " will try again in " + (delay / 1000) + "s.";
+    }
 }
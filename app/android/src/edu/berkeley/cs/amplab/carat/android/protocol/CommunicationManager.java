@@ -1,17 +1,23 @@
 package edu.berkeley.cs.amplab.carat.android.protocol;
 
 import java.io.BufferedReader;
-import java.io.InputStream;
+import java.io.ByteArrayInputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.thrift.TApplicationException;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.async.AsyncMethodCallback;
 
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
@@ -19,12 +25,13 @@ import android.util.Log;
 
 import edu.berkeley.cs.amplab.carat.android.CaratApplication;
 import edu.berkeley.cs.amplab.carat.android.sampling.SamplingLibrary;
+import edu.berkeley.cs.amplab.carat.android.storage.CaratDataStorage;
+import edu.berkeley.cs.amplab.carat.android.storage.SampleCursor;
+import edu.berkeley.cs.amplab.carat.android.storage.SimpleHogBug;
 import edu.berkeley.cs.amplab.carat.thrift.CaratService;
 import edu.berkeley.cs.amplab.carat.thrift.Feature;
-import edu.berkeley.cs.amplab.carat.thrift.HogBugReport;
 import edu.berkeley.cs.amplab.carat.thrift.Registration;
 import edu.berkeley.cs.amplab.carat.thrift.Reports;
-import edu.berkeley.cs.amplab.carat.thrift.Sample;
 
 public class CommunicationManager {
 
@@ -34,8 +41,29 @@ public class CommunicationManager {
 	private CaratApplication a = null;
 
 	private boolean register = true;
+	// Cleared when the server turns out not to know uploadSamples
+	private boolean batchUpload = true;
+
+	// Null if the server has no async endpoint, see getAsync()
+	private AsyncCommunicationManager async = null;
+	private boolean asyncChecked = false;
 	private SharedPreferences p = null;
 
+	/*
+	 * Runs the fetches of refreshAllReports(). Threads are only kept for a
+	 * minute after a refresh; should more fetches come at once than there are
+	 * threads, the caller runs the rest itself.
+	 */
+	private final ExecutorService refreshExecutor = new ThreadPoolExecutor(0,
+			CaratApplication.REFRESH_THREADS, 60, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CaratRefresh");
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+
 	public CommunicationManager(CaratApplication a) {
 		this.a = a;
 		p = PreferenceManager.getDefaultSharedPreferences(this.a);
@@ -56,60 +84,105 @@ public class CommunicationManager {
 		instance.registerMe(registration);
 	}
 
-	public boolean uploadSamples(Collection<Sample> samples) {
-		CaratService.Client instance = null;
-		int succeeded = 0;
-		ArrayList<Sample> samplesLeft = new ArrayList<Sample>();
-		try {
-			instance = ProtocolClient.open(a.getApplicationContext());
-			registerOnFirstRun(instance);
-
-			for (Sample s : samples) {
-				boolean success = false;
+	/**
+	 * Upload the samples of a cursor, all in one uploadSamples call, or with
+	 * pipelined uploadSample calls if the server is too old for that. Each
+	 * sample is written onto the connection from its stored encoding, without
+	 * decoding it first.
+	 * 
+	 * @return the rowids of the samples the server accepted.
+	 */
+	public List<Long> uploadSamples(SampleCursor samples) {
+		List<Long> uploaded = new ArrayList<Long>();
+		int count = samples.getCount();
+		// Try again once with the samples left.
+		for (int tries = 0; tries < 2 && uploaded.size() < count; tries++) {
+			if (tries > 0)
+				Log.i(TAG, "Trying to upload " + (count - uploaded.size())
+						+ " samples again.");
+			try {
+				ProtocolClient.Connection conn = ProtocolClient.open(a
+						.getApplicationContext());
 				try {
-					success = instance.uploadSample(s);
-				} catch (Throwable th) {
-					Log.e(TAG, "Error uploading sample.", th);
+					CaratClient instance = conn.getClient();
+					registerOnFirstRun(instance);
+					if (batchUpload) {
+						try {
+							uploaded.addAll(instance.uploadSamples(samples,
+									uploaded));
+						} catch (TApplicationException e) {
+							if (e.getType() != TApplicationException.UNKNOWN_METHOD)
+								throw e;
+							Log.i(TAG,
+									"Server does not support uploadSamples, uploading samples one by one.");
+							batchUpload = false;
+						}
+					}
+					if (!batchUpload)
+						instance.uploadSamples(samples, uploaded,
+								CaratApplication.COMMS_UPLOAD_WINDOW);
+					conn.keepAlive();
+				} finally {
+					// Not kept after an error, it may be left mid-message
+					conn.close();
 				}
-				if (success)
-					succeeded++;
-				else
-					samplesLeft.add(s);
+			} catch (Throwable th) {
+				Log.e(TAG, "Error uploading samples.", th);
 			}
+		}
+		return uploaded;
+	}
 
-			safeClose(instance);
-			if (succeeded == samples.size())
-				return true;
+	/**
+	 * Start uploading the samples of a cursor on the async endpoint of the
+	 * server. The samples are written out before this returns, so the cursor
+	 * can be closed then. The callback gets the rowids of the samples the
+	 * server accepted, on the selector thread of the async client.
+	 * 
+	 * @return false if the samples were not sent, and uploadSamples() should
+	 *         be used instead: the server has no async endpoint, this is the
+	 *         first run and the device has to register first, or the upload
+	 *         could not be started.
+	 */
+	public boolean uploadSamplesAsync(SampleCursor samples,
+			AsyncMethodCallback<List<Long>> callback) {
+		AsyncCommunicationManager async = getAsync();
+		if (async == null || register)
+			return false;
+		try {
+			return async.uploadSamples(samples, callback);
 		} catch (Throwable th) {
-			Log.e(TAG, "Error refreshing main reports.", th);
-			safeClose(instance);
+			Log.e(TAG, "Error starting async upload.", th);
+			return false;
 		}
+	}
 
-		if (succeeded < samples.size()) {
-			Log.i(TAG, "Trying to upload " + (samples.size() - succeeded)
-					+ " samples again.");
-			// Try again once.
-			// Try again once with samples left:
-			try {
-				instance = ProtocolClient.open(a.getApplicationContext());
-				if (samplesLeft.size() == 0)
-					samplesLeft.addAll(samples);
-				for (Sample s : samplesLeft) {
-					boolean success = instance.uploadSample(s);
-					if (success)
-						succeeded++;
-					else
-						samplesLeft.add(s);
-				}
-				safeClose(instance);
-				if (succeeded == samples.size())
-					return true;
-			} catch (Throwable th) {
-				Log.e(TAG, "Error refreshing main reports.", th);
-				safeClose(instance);
-			}
+	/**
+	 * @return true while the previous async upload has not finished yet.
+	 *         uploadSamplesAsync() sends nothing then.
+	 */
+	public boolean asyncUploadInFlight() {
+		AsyncCommunicationManager async = getAsync();
+		return async != null && async.isUploading();
+	}
+
+	/**
+	 * Close the connections kept for reuse, for when none will be needed for
+	 * a while.
+	 */
+	public void closeIdleConnections() {
+		ProtocolClient.closeIdle();
+		AsyncCommunicationManager async = getAsync();
+		if (async != null)
+			async.closeIdle();
+	}
+
+	private synchronized AsyncCommunicationManager getAsync() {
+		if (!asyncChecked) {
+			async = AsyncCommunicationManager.create(a.getApplicationContext());
+			asyncChecked = true;
 		}
-		return false;
+		return async;
 	}
 
 	private void registerOnFirstRun(CaratService.Client instance) {
@@ -143,18 +216,21 @@ public class CommunicationManager {
 		// Do not refresh if not connected
 		if (!SamplingLibrary.networkAvailable(a.getApplicationContext()))
 			return;
-		if (System.currentTimeMillis() - CaratApplication.s.getFreshness() < CaratApplication.FRESHNESS_TIMEOUT)
+		if (System.currentTimeMillis() - CaratApplication.getStorage().getFreshness() < CaratApplication.FRESHNESS_TIMEOUT)
 			return;
 		// Establish connection
 		if (register) {
-			CaratService.Client instance = null;
 			try {
-				instance = ProtocolClient.open(a.getApplicationContext());
-				registerOnFirstRun(instance);
-				safeClose(instance);
+				ProtocolClient.Connection conn = ProtocolClient.open(a
+						.getApplicationContext());
+				try {
+					registerOnFirstRun(conn.getClient());
+					conn.keepAlive();
+				} finally {
+					conn.close();
+				}
 			} catch (Throwable th) {
 				Log.e(TAG, "Error refreshing main reports.", th);
-				safeClose(instance);
 			}
 		}
 
@@ -178,149 +254,370 @@ public class CommunicationManager {
 			OS = "4.0.4";
 		}
 
-		int progress = 0;
+		final String u = uuId;
+		final String m = model;
+		final String o = OS;
+		final CaratDataStorage s = CaratApplication.getStorage();
+		final AsyncCommunicationManager async = getAsync();
+		List<RefreshStage> running = new ArrayList<RefreshStage>();
+		if (async != null) {
+			running.add(new AsyncRefreshStage<VersionedReply<Reports>>(
+					"My Device", 20) {
+				void fetch() throws Exception {
+					async.getReports(u, getFeatures("Model", m, "OS", o),
+							s.getReportVersion(CaratDataStorage.FILENAME), this);
+				}
+
+				boolean store(VersionedReply<Reports> r) {
+					storeMainReports(r);
+					return true;
+				}
+			});
+			running.add(new AsyncRefreshStage<VersionedReply<SimpleHogBug[]>>(
+					"Bugs", 40) {
+				void fetch() throws Exception {
+					async.getHogOrBugReport(u,
+							getFeatures("ReportType", "Bug", "Model", m), true,
+							s.getReportVersion(CaratDataStorage.BUGFILE), this);
+				}
 
-		CaratApplication.setActionProgress(progress, "My Device", false);
-		boolean success = refreshMainReports(uuId, OS, model);
-		if (success) {
-			progress += 20;
-			CaratApplication.setActionProgress(progress, "Bugs", false);
+				boolean store(VersionedReply<SimpleHogBug[]> r) {
+					storeBugReports(r);
+					return true;
+				}
+			});
+			running.add(new AsyncRefreshStage<VersionedReply<SimpleHogBug[]>>(
+					"Hogs", 20) {
+				void fetch() throws Exception {
+					async.getHogOrBugReport(u,
+							getFeatures("ReportType", "Hog", "Model", m), false,
+							s.getReportVersion(CaratDataStorage.HOGFILE), this);
+				}
+
+				boolean store(VersionedReply<SimpleHogBug[]> r) {
+					storeHogReports(r);
+					return true;
+				}
+			});
 		} else {
-			CaratApplication.setActionProgress(progress, "My Device", true);
+			running.add(new RefreshStage("My Device", 20) {
+				boolean refresh() {
+					return refreshMainReports(u, o, m);
+				}
+			});
+			running.add(new RefreshStage("Bugs", 40) {
+				boolean refresh() {
+					return refreshBugReports(u, m);
+				}
+			});
+			running.add(new RefreshStage("Hogs", 20) {
+				boolean refresh() {
+					return refreshHogReports(u, m);
+				}
+			});
+		}
+		running.add(new RefreshStage("Blacklist", 0) {
+			boolean refresh() {
+				refreshBlacklist();
+				return true;
+			}
+		});
+
+		// All at once, each on its own connection
+		CompletionService<RefreshStage> done = new ExecutorCompletionService<RefreshStage>(
+				refreshExecutor);
+		for (RefreshStage stage : running)
+			stage.start(done);
+
+		int progress = 0;
+		CaratApplication.setActionProgress(progress, names(running), false);
+		boolean interrupted = false;
+		while (!running.isEmpty()) {
+			RefreshStage stage;
+			try {
+				stage = done.take().get();
+			} catch (InterruptedException e) {
+				// UiRefreshThread is woken up this way; finish first
+				interrupted = true;
+				continue;
+			} catch (ExecutionException e) {
+				// RefreshStage.call() catches everything
+				throw new RuntimeException(e);
+			}
+			running.remove(stage);
+			if (stage.success) {
+				progress += stage.weight;
+				if (!running.isEmpty())
+					CaratApplication.setActionProgress(progress,
+							names(running), false);
+			} else
+				CaratApplication.setActionProgress(progress, stage.name, true);
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		CaratApplication.getStorage().writeFreshness();
+	}
+
+	/*
+	 * One of the fetches of refreshAllReports(), with its share of the
+	 * progress bar. It runs on refreshExecutor, and is its own result.
+	 */
+	private static abstract class RefreshStage implements
+			Callable<RefreshStage> {
+		final String name;
+		final int weight;
+		boolean success = false;
+
+		RefreshStage(String name, int weight) {
+			this.name = name;
+			this.weight = weight;
+		}
+
+		/*
+		 * @return true if the refresh succeeded.
+		 */
+		abstract boolean refresh() throws Exception;
+
+		void start(CompletionService<RefreshStage> done) {
+			done.submit(this);
+		}
+
+		public RefreshStage call() {
+			try {
+				success = refresh();
+			} catch (Throwable th) {
+				Log.e(TAG, "Error refreshing " + name + ".", th);
+			}
+			return this;
+		}
+	}
+
+	/*
+	 * A RefreshStage that fetches on the async client. No thread waits for
+	 * the reply; once it comes, the stage goes to refreshExecutor to store it.
+	 */
+	private static abstract class AsyncRefreshStage<T> extends RefreshStage
+			implements AsyncMethodCallback<T> {
+		private CompletionService<RefreshStage> done = null;
+		private T reply = null;
+		private Exception error = null;
+
+		AsyncRefreshStage(String name, int weight) {
+			super(name, weight);
+		}
+
+		/*
+		 * Start the call, with this as the callback.
+		 */
+		abstract void fetch() throws Exception;
+
+		abstract boolean store(T reply) throws Exception;
+
+		void start(CompletionService<RefreshStage> done) {
+			this.done = done;
+			try {
+				fetch();
+			} catch (Exception e) {
+				onError(e);
+			}
+		}
+
+		public void onComplete(T reply) {
+			this.reply = reply;
+			done.submit(this);
+		}
+
+		public void onError(Exception e) {
+			error = e;
+			done.submit(this);
+		}
+
+		boolean refresh() throws Exception {
+			if (error != null)
+				throw error;
+			return store(reply);
 		}
-		success = refreshBugReports(uuId, model);
-		if (success) {
-			progress += 40;
-			CaratApplication.setActionProgress(progress, "Hogs", false);
-		} else
-			CaratApplication.setActionProgress(progress, "Bugs", true);
-		success = refreshHogReports(uuId, model);
-		if (success) {
-			progress += 20;
-			CaratApplication.setActionProgress(progress, "Blacklist", false);
-		} else
-			CaratApplication.setActionProgress(progress, "Hogs", true);
-		refreshBlacklist();
-		CaratApplication.s.writeFreshness();
+	}
+
+	private static String names(List<RefreshStage> stages) {
+		StringBuilder b = new StringBuilder();
+		for (RefreshStage stage : stages) {
+			if (b.length() > 0)
+				b.append(", ");
+			b.append(stage.name);
+		}
+		return b.toString();
 	}
 
 	private boolean refreshMainReports(String uuid, String os, String model) {
-		if (System.currentTimeMillis() - CaratApplication.s.getFreshness() < CaratApplication.FRESHNESS_TIMEOUT)
+		if (System.currentTimeMillis() - CaratApplication.getStorage().getFreshness() < CaratApplication.FRESHNESS_TIMEOUT)
 			return false;
-		CaratService.Client instance = null;
+		CaratDataStorage s = CaratApplication.getStorage();
 		try {
-			instance = ProtocolClient.open(a.getApplicationContext());
-			Reports r = instance.getReports(uuid,
-					getFeatures("Model", model, "OS", os));
-			// Assume multiple invocations, do not close
-			// ProtocolClient.close();
-			if (r != null)
-				CaratApplication.s.writeReports(r);
+			VersionedReply<Reports> r;
+			ProtocolClient.Connection conn = ProtocolClient.open(a
+					.getApplicationContext());
+			try {
+				r = conn.getClient().getReports(uuid,
+						getFeatures("Model", model, "OS", os),
+						s.getReportVersion(CaratDataStorage.FILENAME));
+				conn.keepAlive();
+			} finally {
+				conn.close();
+			}
+			storeMainReports(r);
 			// Assume freshness written by caller.
 			// s.writeFreshness();
-			safeClose(instance);
 			return true;
 		} catch (Throwable th) {
 			Log.e(TAG, "Error refreshing main reports.", th);
-			safeClose(instance);
 		}
 		return false;
 	}
 
+	private void storeMainReports(VersionedReply<Reports> r) {
+		CaratDataStorage s = CaratApplication.getStorage();
+		if (r.isNotModified())
+			Log.v(TAG, "Main reports not modified.");
+		else if (r.getValue() != null)
+			s.writeReports(r.getValue(), r.getVersion());
+	}
+
 	private boolean refreshBugReports(String uuid, String model) {
-		if (System.currentTimeMillis() - CaratApplication.s.getFreshness() < CaratApplication.FRESHNESS_TIMEOUT)
+		if (System.currentTimeMillis() - CaratApplication.getStorage().getFreshness() < CaratApplication.FRESHNESS_TIMEOUT)
 			return false;
-		CaratService.Client instance = null;
+		CaratDataStorage s = CaratApplication.getStorage();
 		try {
-			instance = ProtocolClient.open(a.getApplicationContext());
-			HogBugReport r = instance.getHogOrBugReport(uuid,
-					getFeatures("ReportType", "Bug", "Model", model));
-			// Assume multiple invocations, do not close
-			// ProtocolClient.close();
-			if (r != null)
-				CaratApplication.s.writeBugReport(r);
-			safeClose(instance);
+			VersionedReply<SimpleHogBug[]> r;
+			ProtocolClient.Connection conn = ProtocolClient.open(a
+					.getApplicationContext());
+			try {
+				r = conn.getClient().getHogOrBugReport(uuid,
+						getFeatures("ReportType", "Bug", "Model", model),
+						true, s.getReportVersion(CaratDataStorage.BUGFILE));
+				conn.keepAlive();
+			} finally {
+				conn.close();
+			}
+			storeBugReports(r);
 			return true;
 		} catch (Throwable th) {
 			Log.e(TAG, "Error refreshing bug reports.", th);
-			safeClose(instance);
 		}
 		return false;
 	}
 
+	private void storeBugReports(VersionedReply<SimpleHogBug[]> r) {
+		CaratDataStorage s = CaratApplication.getStorage();
+		if (r.isNotModified())
+			Log.v(TAG, "Bug reports not modified.");
+		else if (r.isIncremental())
+			s.updateBugReport(r.getValue(), r.getRemoved(), r.getVersion());
+		else if (r.getValue() != null)
+			s.writeBugReport(r.getValue(), r.getVersion());
+	}
+
 	private boolean refreshHogReports(String uuid, String model) {
-		if (System.currentTimeMillis() - CaratApplication.s.getFreshness() < CaratApplication.FRESHNESS_TIMEOUT)
+		if (System.currentTimeMillis() - CaratApplication.getStorage().getFreshness() < CaratApplication.FRESHNESS_TIMEOUT)
 			return false;
-		CaratService.Client instance = null;
+		CaratDataStorage s = CaratApplication.getStorage();
 		try {
-			instance = ProtocolClient.open(a.getApplicationContext());
-			HogBugReport r = instance.getHogOrBugReport(uuid,
-					getFeatures("ReportType", "Hog", "Model", model));
-
-			// Assume multiple invocations, do not close
-			// ProtocolClient.close();
-			if (r != null)
-				CaratApplication.s.writeHogReport(r);
+			VersionedReply<SimpleHogBug[]> r;
+			ProtocolClient.Connection conn = ProtocolClient.open(a
+					.getApplicationContext());
+			try {
+				r = conn.getClient().getHogOrBugReport(uuid,
+						getFeatures("ReportType", "Hog", "Model", model),
+						false, s.getReportVersion(CaratDataStorage.HOGFILE));
+				conn.keepAlive();
+			} finally {
+				conn.close();
+			}
+			storeHogReports(r);
 			// Assume freshness written by caller.
 			// s.writeFreshness();
-			safeClose(instance);
 			return true;
 		} catch (Throwable th) {
 			Log.e(TAG, "Error refreshing hog reports.", th);
-			safeClose(instance);
 		}
 		return false;
 	}
 
+	private void storeHogReports(VersionedReply<SimpleHogBug[]> r) {
+		CaratDataStorage s = CaratApplication.getStorage();
+		if (r.isNotModified())
+			Log.v(TAG, "Hog reports not modified.");
+		else if (r.isIncremental())
+			s.updateHogReport(r.getValue(), r.getRemoved(), r.getVersion());
+		else if (r.getValue() != null)
+			s.writeHogReport(r.getValue(), r.getVersion());
+	}
+
+	/**
+	 * Download daemons.txt if it has changed since the last time, and store
+	 * the blacklist and globlist in it if its content has changed.
+	 */
 	private void refreshBlacklist() {
+		CaratDataStorage s = CaratApplication.getStorage();
+		String etag = p.getString(CaratApplication.PREFERENCE_BLACKLIST_ETAG,
+				null);
+		String lastModified = p.getString(
+				CaratApplication.PREFERENCE_BLACKLIST_LAST_MODIFIED, null);
+		String hash = p.getString(CaratApplication.PREFERENCE_BLACKLIST_HASH,
+				null);
+		// The validators only hold while the lists they came with are there
+		if (s.getBlacklist() == null) {
+			etag = null;
+			lastModified = null;
+			hash = null;
+		}
 		try {
-			List<String> blacklist = new ArrayList<String>();
-			List<String> globlist = new ArrayList<String>();
-			URL u = new URL(DAEMONS_URL);
-			URLConnection c = u.openConnection();
-			InputStream is = c.getInputStream();
-			if (is != null) {
-				BufferedReader rd = new BufferedReader(
-						new InputStreamReader(is));
-				String s = rd.readLine();
-				while (s != null) {
+			ConditionalDownload d = new ConditionalDownload(DAEMONS_URL, etag,
+					lastModified);
+			byte[] body = d.fetch();
+			if (body == null) {
+				Log.v(TAG, "Blacklist not modified.");
+				return;
+			}
+			String newHash = ConditionalDownload.md5(body);
+			if (newHash.equals(hash)) {
+				Log.v(TAG, "Blacklist content unchanged.");
+			} else {
+				List<String> blacklist = new ArrayList<String>();
+				List<String> globlist = new ArrayList<String>();
+				BufferedReader rd = new BufferedReader(new InputStreamReader(
+						new ByteArrayInputStream(body)));
+				String line = rd.readLine();
+				while (line != null) {
 					// Optimization for android: Only add names that have a dot
 					// Does not work, since for example "system" has no dots.
-					blacklist.add(s);
-					if (s.endsWith("*") || s.startsWith("*"))
-						globlist.add(s);
-					s = rd.readLine();
+					blacklist.add(line);
+					if (line.endsWith("*") || line.startsWith("*"))
+						globlist.add(line);
+					line = rd.readLine();
 				}
 				rd.close();
 				Log.v(TAG, "Downloaded blacklist: " + blacklist);
 				Log.v(TAG, "Downloaded globlist: " + globlist);
-				CaratApplication.s.writeBlacklist(blacklist);
+				s.writeBlacklist(blacklist);
 				// List of *something or something* expressions:
 				if (globlist.size() > 0)
-					CaratApplication.s.writeGloblist(globlist);
+					s.writeGloblist(globlist);
 			}
+			// Only once the lists are stored
+			p.edit()
+					.putString(CaratApplication.PREFERENCE_BLACKLIST_ETAG,
+							d.getETag())
+					.putString(
+							CaratApplication.PREFERENCE_BLACKLIST_LAST_MODIFIED,
+							d.getLastModified())
+					.putString(CaratApplication.PREFERENCE_BLACKLIST_HASH,
+							newHash).commit();
 		} catch (Throwable th) {
 			Log.e(TAG, "Could not retrieve blacklist!", th);
 		}
 	}
 
-	public static void safeClose(CaratService.Client c) {
-		if (c == null)
-			return;
-		TProtocol i = c.getInputProtocol();
-		TProtocol o = c.getOutputProtocol();
-		if (i != null) {
-			TTransport it = i.getTransport();
-			if (it != null)
-				it.close();
-		}
-		if (o != null) {
-			TTransport it = o.getTransport();
-			if (it != null)
-				it.close();
-		}
-	}
-
 	private List<Feature> getFeatures(String key1, String val1, String key2,
 			String val2) {
 		List<Feature> features = new ArrayList<Feature>();
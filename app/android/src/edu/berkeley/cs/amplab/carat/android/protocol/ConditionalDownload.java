@@ -0,0 +1,112 @@
+package edu.berkeley.cs.amplab.carat.android.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A conditional, gzip-enabled HTTP GET of a small file.
+ *
+ * The ETag and Last-Modified of the previous download are sent back as
+ * If-None-Match and If-Modified-Since, so an unchanged file costs a 304 with
+ * no body. The caller persists getETag() and getLastModified() after it has
+ * stored the body, and passes them in next time.
+ */
+class ConditionalDownload {
+
+    private static final int TIMEOUT = 30 * 1000;
+
+    private final String url;
+    private String etag;
+    private String lastModified;
+
+    /**
+     * @param etag
+     *            ETag of the previous download, or null.
+     * @param lastModified
+     *            Last-Modified of the previous download, or null.
+     */
+    ConditionalDownload(String url, String etag, String lastModified) {
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return the body, or null if the file has not changed since the
+     *         download the validators came from.
+     * @throws IOException
+     *             on any other status than 200 or 304.
+     */
+    byte[] fetch() throws IOException {
+        HttpURLConnection c = (HttpURLConnection) new URL(url)
+                .openConnection();
+        try {
+            c.setConnectTimeout(TIMEOUT);
+            c.setReadTimeout(TIMEOUT);
+            // Set explicitly, so the stream is not unzipped for us on some
+            // versions and not on others
+            c.setRequestProperty("Accept-Encoding", "gzip");
+            if (etag != null)
+                c.setRequestProperty("If-None-Match", etag);
+            if (lastModified != null)
+                c.setRequestProperty("If-Modified-Since", lastModified);
+            int status = c.getResponseCode();
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED)
+                return null;
+            if (status != HttpURLConnection.HTTP_OK)
+                throw new IOException("HTTP " + status + " for " + url);
+            etag = c.getHeaderField("ETag");
+            lastModified = c.getHeaderField("Last-Modified");
+            InputStream is = c.getInputStream();
+            if ("gzip".equalsIgnoreCase(c.getContentEncoding()))
+                is = new GZIPInputStream(is);
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = is.read(buf)) >= 0)
+                    bos.write(buf, 0, n);
+                return bos.toByteArray();
+            } finally {
+                is.close();
+            }
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * @return the ETag of the file, or null if the server sent none.
+     */
+    String getETag() {
+        return etag;
+    }
+
+    /**
+     * @return the Last-Modified of the file, or null if the server sent
+     *         none.
+     */
+    String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the MD5 of data in hex.
+     */
+    static String md5(byte[] data) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            return new BigInteger(1, md.digest(data)).toString(16);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java has MD5
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package edu.berkeley.cs.amplab.carat.android.protocol;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.Properties;
 
 import org.apache.thrift.protocol.TBinaryProtocol;
@@ -11,12 +15,15 @@ import org.apache.thrift.transport.TTransportException;
 
 import android.content.Context;
 import android.util.Log;
-
-import edu.berkeley.cs.amplab.carat.thrift.CaratService;
+import edu.berkeley.cs.amplab.carat.android.CaratApplication;
 
 /**
  * Client for the Carat Protocol.
  * 
+ * Connections come from a small pool. A connection that completed its calls
+ * is kept open for COMMS_IDLE_TIMEOUT ms for the next open(), after a check
+ * that the server has not closed it meanwhile.
+ * 
  * @author Eemil Lagerspetz
  * 
  */
@@ -25,55 +32,223 @@ public class ProtocolClient {
     public static final String SERVER_PROPERTIES = "caratserver.properties";
     public static int SERVER_PORT = 0;
     public static String SERVER_ADDRESS = null;
+    // Port of the framed endpoint for CaratAsyncClient, 0 if there is none
+    public static int SERVER_ASYNC_PORT = 0;
+
+    // How long to wait for data on an idle connection when checking it
+    private static final int HEALTH_CHECK_TIMEOUT = 1;
+
+    // Idle connections, most recently used last. Guarded by ProtocolClient.class.
+    private static final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+    /**
+     * A connection to the Carat server, from open(). Use like
+     *
+     * <pre>
+     * Connection conn = ProtocolClient.open(c);
+     * try {
+     *     ... conn.getClient() ...
+     *     conn.keepAlive();
+     * } finally {
+     *     conn.close();
+     * }
+     * </pre>
+     *
+     * so that it is always given back. Only connections marked with
+     * keepAlive() are reused, since after an error there may be half a
+     * message left on the connection.
+     */
+    public static final class Connection implements Closeable {
+        private final TSocket socket;
+        private final CaratClient client;
+        private final boolean reused;
+        private boolean reusable = false;
+        private boolean closed = false;
+        private long idleSince = 0;
+
+        private Connection(TSocket socket, CaratClient client, boolean reused) {
+            this.socket = socket;
+            this.client = client;
+            this.reused = reused;
+        }
+
+        public CaratClient getClient() {
+            return client;
+        }
+
+        /**
+         * @return true if this connection was used before.
+         */
+        public boolean isReused() {
+            return reused;
+        }
+
+        /**
+         * Mark the connection fit for reuse: the calls made on it have all
+         * been answered.
+         */
+        public void keepAlive() {
+            reusable = true;
+        }
+
+        /**
+         * Give the connection back to the pool if keepAlive() was called,
+         * close it otherwise. Does nothing the second time.
+         */
+        public void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (reusable)
+                release(this);
+            else
+                discard(this);
+        }
+    }
 
     /**
-     * FIXME: this needs to come from a factory, so that connections are not
-     * kept open unnecessarily, and that they do not become stale, and that we
-     * handle disconnections gracefully.
-     * 
-     * @param c
-     * @return
-     * @throws NumberFormatException 
-     * @throws TTransportException 
+     * @return an open connection to the server, reused if there is a healthy
+     *         idle one. Give it back with Connection.close().
+     * @throws TTransportException
+     *             if the server address is not known or the server can not
+     *             be reached.
      */
-    public static CaratService.Client getInstance(Context c) throws NumberFormatException, TTransportException {
-        if (SERVER_ADDRESS == null) {
-            Properties properties = new Properties();
-            try {
-                InputStream raw = c.getAssets().open(SERVER_PROPERTIES);
-                if (raw != null) {
-                    properties.load(raw);
-                    if (properties.containsKey("PORT"))
-                        SERVER_PORT = Integer.parseInt(properties.getProperty(
-                                "PORT", "8080"));
-                    if (properties.containsKey("ADDRESS"))
-                        SERVER_ADDRESS = properties.getProperty("ADDRESS",
-                                "server.caratproject.com");
-
-                    Log.d(TAG, "Set address=" + SERVER_ADDRESS + " port="
-                            + SERVER_PORT);
-                } else
-                    Log.e(TAG, "Could not open server property file!");
-            } catch (IOException e) {
-                Log.e(TAG,
-                        "Could not open server property file: " + e.toString());
+    public static Connection open(Context c) throws NumberFormatException,
+            TTransportException {
+        while (true) {
+            Connection conn;
+            synchronized (ProtocolClient.class) {
+                closeExpired();
+                conn = idle.isEmpty() ? null : idle.removeLast();
             }
+            if (conn == null)
+                break;
+            if (isHealthy(conn.socket))
+                return new Connection(conn.socket, conn.client, true);
+            Log.d(TAG, "Dropping stale connection.");
+            conn.socket.close();
+        }
+        return connect(c);
+    }
+
+    /**
+     * Close the idle connections, for when none will be needed for a while.
+     */
+    public static void closeIdle() {
+        LinkedList<Connection> closing;
+        synchronized (ProtocolClient.class) {
+            closing = new LinkedList<Connection>(idle);
+            idle.clear();
         }
-        if (SERVER_ADDRESS == null || SERVER_PORT == 0)
-            return null;
+        for (Connection conn : closing)
+            conn.socket.close();
+    }
+
+    /**
+     * Read the server address and ports from SERVER_PROPERTIES, unless that
+     * has been done already. Call with ProtocolClient.class locked.
+     */
+    static void loadProperties(Context c) throws NumberFormatException {
+        if (SERVER_ADDRESS != null)
+            return;
+        Properties properties = new Properties();
+        try {
+            InputStream raw = c.getAssets().open(SERVER_PROPERTIES);
+            if (raw != null) {
+                properties.load(raw);
+                if (properties.containsKey("PORT"))
+                    SERVER_PORT = Integer.parseInt(properties.getProperty(
+                            "PORT", "8080"));
+                if (properties.containsKey("ASYNC_PORT"))
+                    SERVER_ASYNC_PORT = Integer.parseInt(properties
+                            .getProperty("ASYNC_PORT", "0"));
+                if (properties.containsKey("ADDRESS"))
+                    SERVER_ADDRESS = properties.getProperty("ADDRESS",
+                            "server.caratproject.com");
 
-        TSocket soc = new TSocket(SERVER_ADDRESS, SERVER_PORT);
+                Log.d(TAG, "Set address=" + SERVER_ADDRESS + " port="
+                        + SERVER_PORT + " async port=" + SERVER_ASYNC_PORT);
+            } else
+                Log.e(TAG, "Could not open server property file!");
+        } catch (IOException e) {
+            Log.e(TAG,
+                    "Could not open server property file: " + e.toString());
+        }
+    }
+
+    private static Connection connect(Context c) throws NumberFormatException,
+            TTransportException {
+        String address;
+        int port;
+        // Refresh fetches open connections from several threads at once
+        synchronized (ProtocolClient.class) {
+            loadProperties(c);
+            address = SERVER_ADDRESS;
+            port = SERVER_PORT;
+        }
+        if (address == null || port == 0)
+            throw new TTransportException(TTransportException.NOT_OPEN,
+                    "Server address not known.");
+
+        TSocket soc = new TSocket(address, port);
         TProtocol p = new TBinaryProtocol(soc, true, true);
-        CaratService.Client instance = new CaratService.Client(p);
+        CaratClient instance = new CaratClient(p);
+
+        soc.open();
 
-        if (soc != null && !soc.isOpen())
-            soc.open();
+        return new Connection(soc, instance, false);
+    }
+
+    private static void release(Connection conn) {
+        Connection evicted = null;
+        synchronized (ProtocolClient.class) {
+            // A fresh handle, so that the closed one can not touch it
+            Connection kept = new Connection(conn.socket, conn.client, true);
+            kept.idleSince = System.currentTimeMillis();
+            idle.addLast(kept);
+            if (idle.size() > CaratApplication.COMMS_MAX_IDLE_CONNECTIONS)
+                evicted = idle.removeFirst();
+        }
+        if (evicted != null)
+            evicted.socket.close();
+    }
 
-        return instance;
+    private static void discard(Connection conn) {
+        conn.socket.close();
+        // Whatever broke this one has likely broken the other idle ones too
+        if (conn.reused)
+            closeIdle();
     }
-    
-    public static CaratService.Client open(Context c) throws NumberFormatException, TTransportException {
-        return getInstance(c);
+
+    // Call with ProtocolClient.class locked.
+    private static void closeExpired() {
+        long now = System.currentTimeMillis();
+        Iterator<Connection> it = idle.iterator();
+        while (it.hasNext()) {
+            Connection conn = it.next();
+            if (now - conn.idleSince > CaratApplication.COMMS_IDLE_TIMEOUT) {
+                it.remove();
+                conn.socket.close();
+            }
+        }
+    }
+
+    /*
+     * An idle connection should have nothing to read. If the read times out,
+     * the server still has the connection open; if it ends, the server has
+     * closed it; if there is data, the connection is out of step.
+     */
+    private static boolean isHealthy(TSocket soc) {
+        if (!soc.isOpen() || soc.getSocket().isClosed())
+            return false;
+        soc.setTimeout(HEALTH_CHECK_TIMEOUT);
+        try {
+            soc.read(new byte[1], 0, 1);
+            return false;
+        } catch (TTransportException e) {
+            return e.getCause() instanceof SocketTimeoutException;
+        } finally {
+            soc.setTimeout(0);
+        }
     }
-    
 }
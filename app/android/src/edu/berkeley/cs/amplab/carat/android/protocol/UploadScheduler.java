@@ -0,0 +1,154 @@
+package edu.berkeley.cs.amplab.carat.android.protocol;
+
+import java.util.Random;
+
+import edu.berkeley.cs.amplab.carat.android.CaratApplication;
+
+/**
+ * Decides when CommsThread sends the next batch of samples, and how many.
+ *
+ * While samples are waiting, batches follow each other COMMS_DRAIN_INTERVAL
+ * ms apart. A backlog of over COMMS_LARGE_BACKLOG samples is only drained like
+ * that on Wi-Fi while charging, otherwise one batch is sent every
+ * COMMS_INTERVAL. The batch size follows the measured throughput, so that a
+ * batch takes about COMMS_UPLOAD_BATCH_TIME ms. It at most doubles at a time,
+ * and halves when the server rejects samples. Failed uploads are retried
+ * after COMMS_RETRY_MIN ms, doubling each time up to COMMS_INTERVAL, with
+ * jitter so that devices that failed together do not retry together.
+ *
+ * Results may come in on another thread than the one starting uploads.
+ */
+class UploadScheduler {
+
+    private final Random random;
+
+    private int batchSize = CaratApplication.COMMS_UPLOAD_BATCH;
+    private int failures = 0;
+    private long nextUpload = 0;
+
+    // Of the upload in progress
+    private boolean uploading = false;
+    private long started = 0;
+    private long backlog = 0;
+    private boolean drainLarge = false;
+
+    UploadScheduler(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * @return how many samples to send in the next batch.
+     */
+    synchronized int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return ms until the next batch should be sent, 0 if now. While an
+     *         upload is in progress, COMMS_INTERVAL.
+     */
+    synchronized long getDelay() {
+        if (uploading)
+            return CaratApplication.COMMS_INTERVAL;
+        return Math.max(0, nextUpload - System.currentTimeMillis());
+    }
+
+    /**
+     * Nothing to send, or no way to send it: check again in COMMS_INTERVAL.
+     */
+    synchronized void idle() {
+        nextUpload = System.currentTimeMillis()
+                + CaratApplication.COMMS_INTERVAL;
+    }
+
+    /**
+     * Send the next batch without waiting, but not while backing off.
+     */
+    synchronized void uploadNow() {
+        if (failures == 0)
+            nextUpload = 0;
+    }
+
+    /**
+     * A batch is being sent. Only call this when it really is, the time it
+     * takes is what the batch size follows.
+     *
+     * @param backlog
+     *            the number of samples waiting, including the batch.
+     * @param unmetered
+     *            whether the network is unmetered.
+     * @param charging
+     *            whether the device is charging.
+     */
+    synchronized void started(long backlog, boolean unmetered,
+            boolean charging) {
+        uploading = true;
+        started = System.currentTimeMillis();
+        this.backlog = backlog;
+        drainLarge = unmetered && charging;
+    }
+
+    /**
+     * The batch was sent, and the server accepted some of it.
+     *
+     * @return ms until the next batch.
+     */
+    synchronized long uploaded(int sent, int accepted) {
+        uploading = false;
+        long now = System.currentTimeMillis();
+        if (accepted < sent)
+            batchSize = Math.max(CaratApplication.COMMS_MIN_UPLOAD_BATCH,
+                    batchSize / 2);
+        if (accepted == 0 && sent > 0)
+            return backOff(now);
+        failures = 0;
+        if (accepted == sent) {
+            long took = Math.max(1, now - started);
+            long fit = sent * CaratApplication.COMMS_UPLOAD_BATCH_TIME / took;
+            // A short batch says nothing about how many more would fit
+            if (sent < batchSize)
+                fit = Math.min(fit, batchSize);
+            fit = Math.min(fit, 2L * batchSize);
+            batchSize = (int) Math.max(CaratApplication.COMMS_MIN_UPLOAD_BATCH,
+                    Math.min(CaratApplication.COMMS_MAX_UPLOAD_BATCH, fit));
+        }
+        long remaining = backlog - accepted;
+        long delay;
+        if (remaining <= 0)
+            delay = CaratApplication.COMMS_INTERVAL;
+        else if (remaining <= CaratApplication.COMMS_LARGE_BACKLOG
+                || drainLarge)
+            delay = CaratApplication.COMMS_DRAIN_INTERVAL;
+        else
+            delay = CaratApplication.COMMS_INTERVAL;
+        nextUpload = now + delay;
+        return delay;
+    }
+
+    /**
+     * The batch could not be sent.
+     *
+     * @return ms until it is tried again.
+     */
+    synchronized long failed() {
+        uploading = false;
+        batchSize = Math.max(CaratApplication.COMMS_MIN_UPLOAD_BATCH,
+                batchSize / 2);
+        return backOff(System.currentTimeMillis());
+    }
+
+    /*
+     * Exponential backoff with "equal jitter": a random delay between half
+     * the backoff and all of it.
+     */
+    private long backOff(long now) {
+        failures++;
+        long delay = CaratApplication.COMMS_INTERVAL;
+        if (failures <= 16)
+            delay = Math.min(delay,
+                    CaratApplication.COMMS_RETRY_MIN << (failures - 1));
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        nextUpload = now + delay;
+        return delay;
+    }
+}
@@ -0,0 +1,67 @@
+package edu.berkeley.cs.amplab.carat.android.protocol;
+
+import java.util.List;
+
+/**
+ * A report from CaratClient together with its version, see
+ * CaratClient.getReports(String, List, String).
+ *
+ * @param <T>
+ *            the report type.
+ */
+public class VersionedReply<T> {
+
+    private final T value;
+    private final String version;
+    private final boolean notModified;
+    private final boolean incremental;
+    private final List<String> removed;
+
+    VersionedReply(T value, String version, boolean notModified,
+            boolean incremental, List<String> removed) {
+        this.value = value;
+        this.version = version;
+        this.notModified = notModified;
+        this.incremental = incremental;
+        this.removed = removed;
+    }
+
+    /**
+     * @return the report, or null if there was none or it has not changed.
+     *         For an incremental reply, only the items that have changed.
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @return the version of the report, null if the server does not
+     *         version its reports.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if the report is still the version the client had.
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * @return true if getValue() and getRemoved() are changes to the version
+     *         the client had, rather than the whole report.
+     */
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return names of the apps to remove from the report, for an
+     *         incremental reply. Never null.
+     */
+    public List<String> getRemoved() {
+        return removed;
+    }
+}
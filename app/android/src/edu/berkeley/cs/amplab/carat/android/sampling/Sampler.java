@@ -8,6 +8,7 @@ import com.flurry.android.FlurryAgent;
 
 import edu.berkeley.cs.amplab.carat.android.CaratApplication;
 import edu.berkeley.cs.amplab.carat.android.storage.CaratSampleDB;
+import edu.berkeley.cs.amplab.carat.android.storage.SampleWriteBuffer;
 import edu.berkeley.cs.amplab.carat.thrift.Sample;
 import android.app.Activity;
 import android.app.AlarmManager;
@@ -29,6 +30,7 @@ public class Sampler extends BroadcastReceiver implements LocationListener{
     private static final String TAG = "Sampler";
     
 	CaratSampleDB ds = null;
+	SampleWriteBuffer buffer = null;
 	private SharedPreferences sharedPreferences;
 	private Editor editor;
 	private Context context = null;
@@ -50,7 +52,8 @@ public class Sampler extends BroadcastReceiver implements LocationListener{
 	public void onReceive(Context context, Intent intent) {
 		if (ds == null) {
 		    this.context = context;
-			ds = new CaratSampleDB(context);
+			ds = CaratSampleDB.getInstance(context);
+			buffer = SampleWriteBuffer.getInstance(context);
 			requestLocationUpdates();
 		}
 		final Context c = context;
@@ -123,8 +126,14 @@ public class Sampler extends BroadcastReceiver implements LocationListener{
 		// Write to database
 		// But only after first real numbers
 		if (!s.getBatteryState().equals("Unknown") && s.getBatteryLevel() >= 0) {
-			long id = ds.putSample(s);
-			Log.d(TAG, "Took sample " + id + " for " + intent.getAction());
+			// Written to the database later by the flusher thread
+			if (buffer.offer(s))
+				Log.d(TAG, "Took sample for " + intent.getAction());
+			else {
+				long id = ds.putSample(s);
+				Log.d(TAG, "Sample buffer full, took sample " + id + " for "
+						+ intent.getAction());
+			}
 			FlurryAgent.logEvent(intent.getAction());
 			/*Toast.makeText(context,
 					"Took sample " + id + " for " + intent.getAction(),
@@ -18,6 +18,7 @@ import java.util.Map;
 import com.flurry.android.FlurryAgent;
 
 import edu.berkeley.cs.amplab.carat.android.CaratApplication;
+import edu.berkeley.cs.amplab.carat.android.storage.CaratDataStorage;
 import edu.berkeley.cs.amplab.carat.thrift.BatteryDetails;
 import edu.berkeley.cs.amplab.carat.thrift.CallMonth;
 import edu.berkeley.cs.amplab.carat.thrift.CellInfo;
@@ -32,6 +33,7 @@ import android.app.ActivityManager.RunningAppProcessInfo;
 import android.app.ActivityManager.RunningServiceInfo;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
@@ -543,25 +545,11 @@ public final class SamplingLibrary {
          * Key chain, google partner set up, package installer, package access helper
          * 
          */        
-        if (CaratApplication.s != null) {
-            List<String> blacklist = CaratApplication.s.getBlacklist();
-            if (blacklist != null && blacklist.size() > 0
-                    && blacklist.contains(processName)) {
-                return true;
-            }
-            
-            blacklist = CaratApplication.s.getGloblist();
-            if (blacklist != null && blacklist.size() > 0){
-                for (String glob: blacklist){
-                    // something*
-                    if (glob.endsWith("*") && processName.startsWith(glob.substring(0, glob.length()-1)))
-                            return true;
-                    // *something
-                    if (glob.startsWith("*") && processName.endsWith(glob.substring(1)))
-                            return true;
-                }
-            }
-        }
+        // Called by list adapters on the UI thread, so do not wait for storage
+        CaratDataStorage s = CaratApplication.peekStorage();
+        // Names, something* and *something expressions
+        if (s != null && s.getBlacklistMatcher().matches(processName))
+            return true;
         
         if (CaratApplication.labelForApp(c, processName).equals(processName)){
             //Log.v("Hiding uninstalled", processName);
@@ -815,6 +803,29 @@ public final class SamplingLibrary {
         return network.equals(NETWORKSTATUS_CONNECTED);
     }
 
+    /**
+     * @return true if the active network is Wi-Fi, which is taken to be
+     *         unmetered.
+     */
+    public static boolean networkUnmetered(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context
+                .getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (cm == null)
+            return false;
+        NetworkInfo i = cm.getActiveNetworkInfo();
+        return i != null && i.getType() == ConnectivityManager.TYPE_WIFI;
+    }
+
+    /**
+     * @return true if the device is plugged in to a charger, from the sticky
+     *         ACTION_BATTERY_CHANGED broadcast.
+     */
+    public static boolean isPluggedIn(Context context) {
+        Intent battery = context.registerReceiver(null, new IntentFilter(
+                Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra("plugged", 0) != 0;
+    }
+
     /* Get current WiFi signal Strength */
     public static int getWifiSignalStrength(Context context) {
         WifiManager myWifiManager = (WifiManager) context
@@ -0,0 +1,211 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Crash-safe reading and writing of the files CaratDataStorage keeps in the
+ * app's private directory.
+ *
+ * A file is written to a temporary file, synced, and renamed over the old
+ * one, so a process killed mid-write leaves the previous version in place.
+ * The data is preceded by a header with a magic number and the data length,
+ * and optionally followed by a CRC32 of the data. A truncated file is
+ * recognized from the header and the file size before anything else is read;
+ * the checksum catches the rest. Files written before this class existed have
+ * no header and are returned as they are.
+ *
+ * android.util.AtomicFile does the same without the header, but needs API
+ * level 17.
+ */
+final class AtomicFiles {
+
+    private static final String TAG = "AtomicFiles";
+
+    private static final int MAGIC = 0x43525446; // "CRTF"
+    private static final byte VERSION = 1;
+    private static final byte FLAG_CRC32 = 1;
+    // magic, version, flags, data length
+    private static final int HEADER_LENGTH = 4 + 1 + 1 + 4;
+    private static final int TRAILER_LENGTH = 8;
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Replace the contents of a file in one step.
+     *
+     * @param checksum
+     *            true to add a CRC32 trailer, checked when the file is read.
+     * @return true if the file was written.
+     */
+    static boolean write(Context c, String fname, byte[] data, boolean checksum) {
+        String tmp = fname + TMP_SUFFIX;
+        FileOutputStream fos = null;
+        try {
+            fos = c.openFileOutput(tmp, Context.MODE_PRIVATE);
+            DataOutputStream dos = new DataOutputStream(
+                    new BufferedOutputStream(fos));
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeByte(checksum ? FLAG_CRC32 : 0);
+            dos.writeInt(data.length);
+            dos.write(data);
+            if (checksum) {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                dos.writeLong(crc.getValue());
+            }
+            dos.flush();
+            fos.getFD().sync();
+            dos.close();
+            fos = null;
+            if (!c.getFileStreamPath(tmp).renameTo(c.getFileStreamPath(fname))) {
+                Log.e(TAG, "Could not rename " + tmp + " to " + fname + "!");
+                c.deleteFile(tmp);
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + fname + "!", e);
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException e1) {
+                    // Deleted below anyway
+                }
+            }
+            c.deleteFile(tmp);
+            return false;
+        }
+    }
+
+    /**
+     * @return the data of a file, or null if it does not exist or is
+     *         corrupt. Corrupt files are deleted.
+     */
+    static byte[] read(Context c, String fname) {
+        File f = c.getFileStreamPath(fname);
+        if (!f.exists()) {
+            Log.w(TAG, "File " + fname + " does not exist yet. Wait for reports.");
+            return null;
+        }
+        long fileLength = f.length();
+        DataInputStream din = null;
+        try {
+            din = new DataInputStream(new FileInputStream(f));
+            byte[] header = new byte[(int) Math.min(HEADER_LENGTH, fileLength)];
+            din.readFully(header);
+            DataInputStream h = new DataInputStream(new ByteArrayInputStream(
+                    header));
+            if (header.length < HEADER_LENGTH || h.readInt() != MAGIC) {
+                // Written without a header
+                byte[] data = new byte[(int) fileLength];
+                System.arraycopy(header, 0, data, 0, header.length);
+                din.readFully(data, header.length, data.length - header.length);
+                return data;
+            }
+            byte version = h.readByte();
+            byte flags = h.readByte();
+            int length = h.readInt();
+            boolean checksum = (flags & FLAG_CRC32) != 0;
+            if (version != VERSION || length < 0
+                    || fileLength != HEADER_LENGTH + (long) length
+                            + (checksum ? TRAILER_LENGTH : 0)) {
+                corrupt(c, fname, "bad header");
+                return null;
+            }
+            byte[] data = new byte[length];
+            din.readFully(data);
+            if (checksum) {
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                if (din.readLong() != crc.getValue()) {
+                    corrupt(c, fname, "checksum mismatch");
+                    return null;
+                }
+            }
+            return data;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + fname + "!", e);
+            return null;
+        } finally {
+            if (din != null) {
+                try {
+                    din.close();
+                } catch (IOException e) {
+                    // Already read
+                }
+            }
+        }
+    }
+
+    /**
+     * Map the data of a file written by write() into memory, read only. The
+     * mapping stays valid after the file is replaced.
+     *
+     * @return the data, or null if the file does not exist, has no header or
+     *         is truncated. A checksum trailer is not checked, since that
+     *         would read the whole file; mapped files should check their parts
+     *         as they are used.
+     */
+    static ByteBuffer map(Context c, String fname) {
+        File f = c.getFileStreamPath(fname);
+        if (!f.exists())
+            return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "r");
+            FileChannel ch = raf.getChannel();
+            long fileLength = ch.size();
+            if (fileLength < HEADER_LENGTH) {
+                corrupt(c, fname, "too short");
+                return null;
+            }
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0,
+                    fileLength);
+            int length = buf.getInt(6);
+            boolean checksum = (buf.get(5) & FLAG_CRC32) != 0;
+            if (buf.getInt(0) != MAGIC || buf.get(4) != VERSION || length < 0
+                    || fileLength != HEADER_LENGTH + (long) length
+                            + (checksum ? TRAILER_LENGTH : 0)) {
+                corrupt(c, fname, "bad header");
+                return null;
+            }
+            buf.position(HEADER_LENGTH);
+            buf.limit(HEADER_LENGTH + length);
+            return buf.slice();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not map " + fname + "!", e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                    // The mapping does not need it
+                }
+            }
+        }
+    }
+
+    private static void corrupt(Context c, String fname, String why) {
+        Log.e(TAG, "Deleting corrupt " + fname + ": " + why + "!");
+        c.deleteFile(fname);
+    }
+}
@@ -0,0 +1,121 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * The downloaded blacklist and globlist compiled for matching process names.
+ *
+ * Plain names go to a hash set. A glob "something*" goes to a trie of
+ * prefixes, and "*something" to a trie of reversed suffixes, the same way
+ * SamplingLibrary used to test them with startsWith() and endsWith(). A name
+ * is then checked in time linear in its length without allocating anything,
+ * however long the lists are. Instances are immutable once built.
+ */
+public final class BlacklistMatcher {
+
+    private final HashSet<String> names = new HashSet<String>();
+    private final Node prefixes = new Node();
+    private final Node suffixes = new Node();
+
+    /*
+     * Children sorted by key for binary search. Lookups only read, so a built
+     * trie can be shared between threads.
+     */
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal = false;
+
+        Node child(char c) {
+            int lo = 0;
+            int hi = keys.length - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (keys[mid] < c)
+                    lo = mid + 1;
+                else if (keys[mid] > c)
+                    hi = mid - 1;
+                else
+                    return children[mid];
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node n = child(c);
+            if (n != null)
+                return n;
+            int pos = 0;
+            while (pos < keys.length && keys[pos] < c)
+                pos++;
+            char[] k = new char[keys.length + 1];
+            Node[] ch = new Node[children.length + 1];
+            System.arraycopy(keys, 0, k, 0, pos);
+            System.arraycopy(children, 0, ch, 0, pos);
+            System.arraycopy(keys, pos, k, pos + 1, keys.length - pos);
+            System.arraycopy(children, pos, ch, pos + 1, children.length - pos);
+            n = new Node();
+            k[pos] = c;
+            ch[pos] = n;
+            keys = k;
+            children = ch;
+            return n;
+        }
+    }
+
+    /**
+     * @param blacklist
+     *            names to match exactly, may be null.
+     * @param globlist
+     *            "something*" and "*something" expressions, may be null.
+     */
+    public BlacklistMatcher(List<String> blacklist, List<String> globlist) {
+        if (blacklist != null)
+            names.addAll(blacklist);
+        if (globlist == null)
+            return;
+        for (String glob : globlist) {
+            if (glob.endsWith("*")) {
+                Node n = prefixes;
+                for (int i = 0; i < glob.length() - 1; i++)
+                    n = n.addChild(glob.charAt(i));
+                n.terminal = true;
+            }
+            if (glob.startsWith("*")) {
+                Node n = suffixes;
+                for (int i = glob.length() - 1; i > 0; i--)
+                    n = n.addChild(glob.charAt(i));
+                n.terminal = true;
+            }
+        }
+    }
+
+    /**
+     * @return true if processName is on the blacklist or matches a glob.
+     */
+    public boolean matches(String processName) {
+        if (processName == null)
+            return false;
+        if (names.contains(processName))
+            return true;
+        int length = processName.length();
+        Node n = prefixes;
+        for (int i = 0; n != null; i++) {
+            if (n.terminal)
+                return true;
+            if (i == length)
+                break;
+            n = n.child(processName.charAt(i));
+        }
+        n = suffixes;
+        for (int i = length - 1; n != null; i--) {
+            if (n.terminal)
+                return true;
+            if (i < 0)
+                break;
+            n = n.child(processName.charAt(i));
+        }
+        return false;
+    }
+}
@@ -1,20 +1,22 @@
 package edu.berkeley.cs.amplab.carat.android.storage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 import android.app.Application;
-import android.content.Context;
 import android.util.Log;
+import edu.berkeley.cs.amplab.carat.android.CaratApplication;
 import edu.berkeley.cs.amplab.carat.android.CaratApplication.Type;
+import edu.berkeley.cs.amplab.carat.thrift.DetailScreenReport;
 import edu.berkeley.cs.amplab.carat.thrift.HogBugReport;
 import edu.berkeley.cs.amplab.carat.thrift.HogsBugs;
 import edu.berkeley.cs.amplab.carat.thrift.Reports;
@@ -30,31 +32,178 @@ public class CaratDataStorage {
     public static final String SAMPLES_REPORTED = "carat-samples-reported.dat";
     
     public static final String FRESHNESS = "carat-freshness.dat";
+
+    /*
+     * Holds what used to be in the files below, see ReportSnapshot. The
+     * section id of each is its index here.
+     */
+    public static final String SNAPSHOT_FILE = "carat-snapshot.dat";
+    /*
+     * Server versions of the reports in FILENAME, BUGFILE and HOGFILE, written
+     * together with the report. Empty if the server gave none.
+     */
+    private static final String REPORTS_VERSION = "carat-reports.version";
+    private static final String BUGS_VERSION = "carat-bugs.version";
+    private static final String HOGS_VERSION = "carat-hogs.version";
+    /*
+     * New sections go last, to keep the ids of the old ones. FRESHNESS and
+     * SAMPLES_REPORTED change after every refresh and upload, so they are
+     * written to their own small files instead; their sections are only read
+     * for the counters older versions stored there.
+     */
+    private static final String[] SNAPSHOT_SECTIONS = { FRESHNESS,
+            SAMPLES_REPORTED, FILENAME, BUGFILE, HOGFILE, BLACKLIST_FILE,
+            GLOBLIST_FILE, REPORTS_VERSION, BUGS_VERSION, HOGS_VERSION };
+
     private Application a = null;
+    private final ReportSnapshot snapshot;
 
     private long freshness = 0;
     private long samples_reported = 0;
-    private WeakReference<Reports> caratData = null;
-    private WeakReference<SimpleHogBug[]> bugData = null;
-    private WeakReference<SimpleHogBug[]> hogData = null;
-    private WeakReference<List<String>> blacklistedApps = null;
-    private WeakReference<List<String>> blacklistedGlobs = null;
+    /*
+     * Reports, bugs, hogs and the blacklists, by file name. Cleared only by
+     * onLowMemory(), so UI refreshes do not read the files again.
+     */
+    private final ReportCache cache = new ReportCache(
+            CaratApplication.REPORT_CACHE_MAX_BYTES);
+    /*
+     * Compiled from the blacklist and globlist when first needed after each
+     * download. Kept through onLowMemory(), since every sample uses it.
+     */
+    private volatile BlacklistMatcher blacklistMatcher = null;
 
+    /*
+     * Reads only the snapshot table and the two counters. Reports and lists
+     * are decoded when first asked for.
+     */
     public CaratDataStorage(Application a) {
         this.a = a;
+        snapshot = new ReportSnapshot(a, SNAPSHOT_FILE,
+                SNAPSHOT_SECTIONS.length);
+        if (!snapshot.load())
+            migrate();
         freshness = readFreshness();
-        caratData = new WeakReference<Reports>(readReports());
-        readBugReport();
-        readHogReport();
-        readBlacklist();
         samples_reported = readSamplesReported();
     }
 
+    /*
+     * Move the contents of the separate files used before SNAPSHOT_FILE into
+     * it, unchanged, and delete them. The counters stay in their files.
+     */
+    private void migrate() {
+        byte[][] values = new byte[SNAPSHOT_SECTIONS.length][];
+        boolean found = false;
+        for (int i = 0; i < values.length; i++) {
+            if (ownFile(SNAPSHOT_SECTIONS[i]))
+                continue;
+            if (a.getFileStreamPath(SNAPSHOT_SECTIONS[i]).exists()) {
+                values[i] = AtomicFiles.read(a, SNAPSHOT_SECTIONS[i]);
+                found |= values[i] != null;
+            }
+        }
+        if (!found || !snapshot.putAll(values))
+            return;
+        Log.i("CaratDataStorage", "Moved report files to " + SNAPSHOT_FILE);
+        for (String fname : SNAPSHOT_SECTIONS) {
+            if (!ownFile(fname))
+                a.deleteFile(fname);
+        }
+    }
+
+    private static boolean ownFile(String fname) {
+        return FRESHNESS.equals(fname) || SAMPLES_REPORTED.equals(fname);
+    }
+
+    private static int section(String fname) {
+        for (int i = 0; i < SNAPSHOT_SECTIONS.length; i++) {
+            if (SNAPSHOT_SECTIONS[i].equals(fname))
+                return i;
+        }
+        return -1;
+    }
+
+    /*
+     * Write the data of one of the files in SNAPSHOT_SECTIONS to the
+     * snapshot, or of the counters or any other file to itself.
+     */
+    private void write(String fname, byte[] data, boolean checksum) {
+        int section = section(fname);
+        if (section >= 0 && !ownFile(fname))
+            snapshot.put(section, data);
+        else
+            AtomicFiles.write(a, fname, data, checksum);
+    }
+
+    /*
+     * Write a report and its version with one snapshot write.
+     */
+    private void writeVersioned(String fname, byte[] data, String version) {
+        byte[] v = textBytes(version == null ? "" : version);
+        if (v == null)
+            return;
+        byte[][] values = new byte[SNAPSHOT_SECTIONS.length][];
+        values[section(fname)] = data;
+        values[section(versionOf(fname))] = v;
+        snapshot.putAll(values);
+    }
+
+    private static String versionOf(String fname) {
+        if (FILENAME.equals(fname))
+            return REPORTS_VERSION;
+        if (BUGFILE.equals(fname))
+            return BUGS_VERSION;
+        return HOGS_VERSION;
+    }
+
+    /**
+     * @param fname
+     *            FILENAME, BUGFILE or HOGFILE.
+     * @return the server version of the stored report, or null if there is
+     *         no usable report or it came without a version.
+     */
+    public String getReportVersion(String fname) {
+        Object report;
+        if (FILENAME.equals(fname))
+            report = getReports();
+        else if (BUGFILE.equals(fname))
+            report = getBugReport();
+        else
+            report = getHogReport();
+        if (report == null)
+            return null;
+        String v = readText(versionOf(fname));
+        if (v == null || v.length() == 0)
+            return null;
+        return v;
+    }
+
+    private byte[] read(String fname) {
+        int section = section(fname);
+        if (section < 0)
+            return AtomicFiles.read(a, fname);
+        if (!ownFile(fname))
+            return snapshot.get(section);
+        if (a.getFileStreamPath(fname).exists())
+            return AtomicFiles.read(a, fname);
+        // Not written since the counters left the snapshot
+        return snapshot.get(section);
+    }
+
     public void writeReports(Reports reports) {
+        writeReports(reports, null);
+    }
+
+    /**
+     * @param version
+     *            the server version of reports, or null.
+     */
+    public void writeReports(Reports reports, String version) {
         if (reports == null)
             return;
-        caratData = new WeakReference<Reports>(reports);
-        writeObject(reports, FILENAME);
+        cache.put(FILENAME, reports, sizeOf(reports));
+        byte[] data = serialize(reports);
+        if (data != null)
+            writeVersioned(FILENAME, data, version);
     }
 
     public void writeFreshness() {
@@ -62,27 +211,38 @@ public class CaratDataStorage {
         writeText(freshness + "", FRESHNESS);
     }
 
+    /**
+     * Serialize o and replace fname with it in one step, with a checksum. See
+     * AtomicFiles. The report files go to the snapshot instead.
+     */
     public void writeObject(Object o, String fname) {
-        FileOutputStream fos = getFos(fname);
-        if (fos == null)
-            return;
+        byte[] data = serialize(o);
+        if (data != null)
+            write(fname, data, true);
+    }
+
+    private byte[] serialize(Object o) {
         try {
-            ObjectOutputStream dos = new ObjectOutputStream(fos);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream dos = new ObjectOutputStream(bos);
             dos.writeObject(o);
             dos.close();
+            return bos.toByteArray();
         } catch (IOException e) {
             Log.e(this.getClass().getName(), "Could not write object:" + o
                     + "!");
             e.printStackTrace();
+            return null;
         }
     }
 
     public Object readObject(String fname) {
-        FileInputStream fin = getFin(fname);
-        if (fin == null)
+        byte[] data = read(fname);
+        if (data == null)
             return null;
         try {
-            ObjectInputStream din = new ObjectInputStream(fin);
+            ObjectInputStream din = new ObjectInputStream(
+                    new ByteArrayInputStream(data));
             Object o = din.readObject();
             din.close();
             return o;
@@ -100,26 +260,34 @@ public class CaratDataStorage {
     }
 
     public void writeText(String thing, String fname) {
-        FileOutputStream fos = getFos(fname);
-        if (fos == null)
-            return;
+        byte[] data = textBytes(thing);
+        // Short enough for the length in the header to catch truncation
+        if (data != null)
+            write(fname, data, false);
+    }
+
+    private byte[] textBytes(String thing) {
         try {
-            DataOutputStream dos = new DataOutputStream(fos);
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
             dos.writeUTF(thing);
             dos.close();
+            return bos.toByteArray();
         } catch (IOException e) {
             Log.e(this.getClass().getName(), "Could not write text:" + thing
                     + "!");
             e.printStackTrace();
+            return null;
         }
     }
 
     public String readText(String fname) {
-        FileInputStream fin = getFin(fname);
-        if (fin == null)
+        byte[] data = read(fname);
+        if (data == null)
             return null;
         try {
-            DataInputStream din = new DataInputStream(fin);
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(
+                    data));
             String s = din.readUTF();
             din.close();
             return s;
@@ -131,28 +299,6 @@ public class CaratDataStorage {
         return null;
     }
 
-    private FileInputStream getFin(String fname) {
-        try {
-            return a.openFileInput(fname);
-        } catch (FileNotFoundException e) {
-            Log.w(this.getClass().getName(), "File "
-                    + fname + " does not exist yet. Wait for reports.");
-            // e.printStackTrace();
-            return null;
-        }
-    }
-
-    private FileOutputStream getFos(String fname) {
-        try {
-            return a.openFileOutput(fname, Context.MODE_PRIVATE);
-        } catch (FileNotFoundException e) {
-            Log.w(this.getClass().getName(), "File "
-                    + fname + " does not exist yet. Wait for reports.");
-            // e.printStackTrace();
-            return null;
-        }
-    }
-
     public long readFreshness() {
         String s = readText(FRESHNESS);
         Log.d("CaratDataStorage", "Read freshness: " + s);
@@ -166,7 +312,7 @@ public class CaratDataStorage {
         Object o = readObject(FILENAME);
         Log.d("CaratDataStorage", "Read Reports: " + o);
         if (o != null) {
-            caratData = new WeakReference<Reports>((Reports) o);
+            cache.put(FILENAME, o, sizeOf((Reports) o));
             return (Reports) o;
         } else
             return null;
@@ -182,9 +328,11 @@ public class CaratDataStorage {
     /**
      * @return a list of blacklisted apps
      */
+    @SuppressWarnings("unchecked")
     public List<String> getBlacklist() {
-        if (blacklistedApps != null && blacklistedApps.get() != null)
-            return blacklistedApps.get();
+        Object o = cache.get(BLACKLIST_FILE);
+        if (o != null)
+            return (List<String>) o;
         else
             return readBlacklist();
     }
@@ -192,9 +340,11 @@ public class CaratDataStorage {
     /**
      * @return a list of blacklisted expressions
      */
+    @SuppressWarnings("unchecked")
     public List<String> getGloblist() {
-        if (blacklistedGlobs != null && blacklistedGlobs.get() != null)
-            return blacklistedGlobs.get();
+        Object o = cache.get(GLOBLIST_FILE);
+        if (o != null)
+            return (List<String>) o;
         else
             return readGloblist();
     }
@@ -207,7 +357,7 @@ public class CaratDataStorage {
         Object o = readObject(BLACKLIST_FILE);
         Log.d("CaratDataStorage", "Read blacklist: " + o);
         if (o != null) {
-            blacklistedApps = new WeakReference<List<String>>((List<String>) o);
+            cache.put(BLACKLIST_FILE, o, sizeOf((List<String>) o));
             return (List<String>) o;
         } else
             return null;
@@ -220,8 +370,9 @@ public class CaratDataStorage {
     public void writeBlacklist(List<String> blacklist) {
         if (blacklist == null)
             return;
-        blacklistedApps = new WeakReference<List<String>>(blacklist);
+        cache.put(BLACKLIST_FILE, blacklist, sizeOf(blacklist));
         writeObject(blacklist, BLACKLIST_FILE);
+        forgetBlacklistMatcher();
     }
     
     /**
@@ -232,7 +383,7 @@ public class CaratDataStorage {
         Object o = readObject(GLOBLIST_FILE);
         Log.d("CaratDataStorage", "Read glob blacklist: " + o);
         if (o != null) {
-            blacklistedGlobs = new WeakReference<List<String>>((List<String>) o);
+            cache.put(GLOBLIST_FILE, o, sizeOf((List<String>) o));
             return (List<String>) o;
         } else
             return null;
@@ -245,8 +396,33 @@ public class CaratDataStorage {
     public void writeGloblist(List<String> globlist) {
         if (globlist == null)
             return;
-        blacklistedGlobs = new WeakReference<List<String>>(globlist);
+        cache.put(GLOBLIST_FILE, globlist, sizeOf(globlist));
         writeObject(globlist, GLOBLIST_FILE);
+        forgetBlacklistMatcher();
+    }
+
+    /*
+     * Under the lock, so that a matcher being built from the old lists is not
+     * kept.
+     */
+    private synchronized void forgetBlacklistMatcher() {
+        blacklistMatcher = null;
+    }
+
+    /**
+     * @return the blacklist and globlist compiled for matching, empty if
+     *         they have not been downloaded yet.
+     */
+    public BlacklistMatcher getBlacklistMatcher() {
+        BlacklistMatcher m = blacklistMatcher;
+        if (m != null)
+            return m;
+        synchronized (this) {
+            if (blacklistMatcher == null)
+                blacklistMatcher = new BlacklistMatcher(getBlacklist(),
+                        getGloblist());
+            return blacklistMatcher;
+        }
     }
     
     
@@ -275,8 +451,9 @@ public class CaratDataStorage {
      * @return the caratData
      */
     public Reports getReports() {
-        if (caratData != null && caratData.get() != null)
-            return caratData.get();
+        Object o = cache.get(FILENAME);
+        if (o != null)
+            return (Reports) o;
         else
             return readReports();
     }
@@ -285,87 +462,280 @@ public class CaratDataStorage {
      * @return the bug reports
      */
     public SimpleHogBug[] getBugReport() {
-        if (bugData == null || bugData.get() == null) {
-            readBugReport();
-        }
-        if (bugData == null || bugData.get() == null)
-            return null;
-        return bugData.get();
+        Object o = cache.get(BUGFILE);
+        if (o != null)
+            return (SimpleHogBug[]) o;
+        return readBugReport();
     }
 
     /**
      * @return the hog reports
      */
     public SimpleHogBug[] getHogReport() {
-        if (hogData == null || hogData.get() == null) {
-            readHogReport();
-        }
-        if (hogData == null || hogData.get() == null)
-            return null;
-        return hogData.get();
+        Object o = cache.get(HOGFILE);
+        if (o != null)
+            return (SimpleHogBug[]) o;
+        return readHogReport();
+    }
+
+    /**
+     * Drop the cached reports and lists. They are read from disk again when
+     * next needed. Called from CaratApplication.onLowMemory().
+     */
+    public void onLowMemory() {
+        Log.d("CaratDataStorage", "Dropping " + cache.size()
+                + " bytes of cached reports.");
+        cache.clear();
     }
 
     public void writeBugReport(HogBugReport r) {
-        if (r != null) {
-            SimpleHogBug[] list = convert(r.getHbList(), true);
-            if (list != null){
-                bugData = new WeakReference<SimpleHogBug[]>(list);
-                writeObject(list, BUGFILE);
-            }
+        if (r != null)
+            writeBugReport(convert(r.getHbList(), true));
+    }
+
+    /**
+     * @param list
+     *            bugs as read by HogBugReader.
+     */
+    public void writeBugReport(SimpleHogBug[] list) {
+        writeBugReport(list, null);
+    }
+
+    /**
+     * @param version
+     *            the server version of list, or null.
+     */
+    public void writeBugReport(SimpleHogBug[] list, String version) {
+        if (list != null){
+            cache.put(BUGFILE, list, sizeOf(list));
+            writeHogsBugs(list, BUGFILE, version);
         }
     }
 
+    /**
+     * Apply changes to the stored bugs.
+     *
+     * @param changed
+     *            items to add, or to replace the stored items of the same
+     *            app with.
+     * @param removed
+     *            names of the apps to remove.
+     * @param version
+     *            the server version of the result.
+     */
+    public void updateBugReport(SimpleHogBug[] changed,
+            List<String> removed, String version) {
+        writeBugReport(merge(getBugReport(), changed, removed), version);
+    }
+
     public void writeHogReport(HogBugReport r) {
-        if (r != null) {
-            SimpleHogBug[] list = convert(r.getHbList(), false);
-            if (list != null){
-                hogData = new WeakReference<SimpleHogBug[]>(list);
-                writeObject(list, HOGFILE);
-            }
+        if (r != null)
+            writeHogReport(convert(r.getHbList(), false));
+    }
+
+    /**
+     * @param list
+     *            hogs as read by HogBugReader.
+     */
+    public void writeHogReport(SimpleHogBug[] list) {
+        writeHogReport(list, null);
+    }
+
+    /**
+     * @param version
+     *            the server version of list, or null.
+     */
+    public void writeHogReport(SimpleHogBug[] list, String version) {
+        if (list != null){
+            cache.put(HOGFILE, list, sizeOf(list));
+            writeHogsBugs(list, HOGFILE, version);
+        }
+    }
+
+    /**
+     * Apply changes to the stored hogs.
+     *
+     * @param changed
+     *            items to add, or to replace the stored items of the same
+     *            app with.
+     * @param removed
+     *            names of the apps to remove.
+     * @param version
+     *            the server version of the result.
+     */
+    public void updateHogReport(SimpleHogBug[] changed,
+            List<String> removed, String version) {
+        writeHogReport(merge(getHogReport(), changed, removed), version);
+    }
+
+    private void writeHogsBugs(SimpleHogBug[] list, String fname,
+            String version) {
+        try {
+            writeVersioned(fname, HogBugCodec.encode(list), version);
+        } catch (IOException e) {
+            Log.e(this.getClass().getName(), "Could not write " + fname + "!");
+            e.printStackTrace();
         }
     }
 
-    private SimpleHogBug[] convert(List<HogsBugs> list, boolean isBug) {
+    /*
+     * Files written before HogBugCodec are ignored until the next report
+     * refresh replaces them.
+     */
+    private SimpleHogBug[] readHogsBugs(String fname) {
+        byte[] data = read(fname);
+        if (data == null)
+            return null;
+        SimpleHogBug[] r = HogBugCodec.decode(data);
+        if (r == null)
+            Log.w("CaratDataStorage", "Ignoring " + fname
+                    + " in an old or unknown format.");
+        return r;
+    }
+
+    /*
+     * The distributions of all items go to one float array shared by the
+     * items, see SimpleHogBug.setDistributions().
+     */
+    private static SimpleHogBug[] convert(List<HogsBugs> list, boolean isBug) {
         if (list == null)
             return null;
         SimpleHogBug[] result = new SimpleHogBug[list.size()];
         int size = list.size();
+        int total = 0;
         for (int i = 0; i < size; ++i) {
             HogsBugs item = list.get(i);
-            result[i] = new SimpleHogBug(fixName(item.getAppName()), isBug ? Type.BUG:Type.HOG);
+            total += nonZero(item.getXVals()) + nonZero(item.getYVals())
+                    + nonZero(item.getXValsWithout())
+                    + nonZero(item.getYValsWithout());
+        }
+        float[] values = new float[total];
+        int offset = 0;
+        for (int i = 0; i < size; ++i) {
+            HogsBugs item = list.get(i);
+            result[i] = new SimpleHogBug(item.getAppName(), isBug ? Type.BUG:Type.HOG);
             result[i].setAppLabel(item.getAppLabel());
-            String priority = item.getAppPriority();
-            if (priority == null || priority.length() == 0)
-                priority = "Foreground app";
-            result[i].setAppPriority(priority);
+            result[i].setAppPriority(item.getAppPriority());
             result[i].setExpectedValue(item.getExpectedValue());
             result[i].setExpectedValueWithout(item.getExpectedValueWithout());
             result[i].setwDistance(item.getWDistance());
-            result[i].setxVals(convert(item.getXVals()));
-            result[i].setyVals(convert(item.getYVals()));
-            result[i].setxValsWithout(convert(item.getXValsWithout()));
-            result[i].setyValsWithout(convert(item.getYValsWithout()));
+            int start = offset;
+            offset = copyNonZero(item.getXVals(), values, offset);
+            int xLength = offset - start;
+            offset = copyNonZero(item.getYVals(), values, offset);
+            int yLength = offset - start - xLength;
+            offset = copyNonZero(item.getXValsWithout(), values, offset);
+            int xWithoutLength = offset - start - xLength - yLength;
+            offset = copyNonZero(item.getYValsWithout(), values, offset);
+            result[i].setDistributions(values, start, xLength, yLength,
+                    xWithoutLength, offset - start - xLength - yLength
+                            - xWithoutLength);
+            tidy(result[i]);
+        }
+        return result;
+    }
+
+    /*
+     * Replace the items of current that have the same app as an item of
+     * changed in place, add the other changed items at the end, and leave out
+     * the removed apps. The items are copied, so those in use by the UI do
+     * not change, and the result gets its own shared float array.
+     */
+    static SimpleHogBug[] merge(SimpleHogBug[] current,
+            SimpleHogBug[] changed, List<String> removed) {
+        HashMap<String, SimpleHogBug> byName = new HashMap<String, SimpleHogBug>();
+        if (changed != null) {
+            for (SimpleHogBug b : changed)
+                byName.put(b.getAppName(), b);
+        }
+        HashSet<String> gone = new HashSet<String>();
+        for (String name : removed)
+            gone.add(fixName(name));
+        ArrayList<SimpleHogBug> items = new ArrayList<SimpleHogBug>();
+        if (current != null) {
+            for (SimpleHogBug b : current) {
+                if (gone.contains(b.getAppName()))
+                    continue;
+                SimpleHogBug c = byName.remove(b.getAppName());
+                items.add(c != null ? c : b);
+            }
+        }
+        if (changed != null) {
+            for (SimpleHogBug b : changed) {
+                if (byName.remove(b.getAppName()) != null)
+                    items.add(b);
+            }
+        }
+        int total = 0;
+        for (SimpleHogBug b : items)
+            total += b.getValueCount();
+        float[] values = new float[total];
+        SimpleHogBug[] result = new SimpleHogBug[items.size()];
+        int offset = 0;
+        for (int i = 0; i < result.length; i++) {
+            result[i] = items.get(i).copy(values, offset);
+            offset += result[i].getValueCount();
         }
         return result;
     }
 
+    /*
+     * Fix up the name and priority of a hog or bug from the server.
+     */
+    static void tidy(SimpleHogBug b) {
+        b.setAppName(fixName(b.getAppName()));
+        String priority = b.getAppPriority();
+        if (priority == null || priority.length() == 0)
+            b.setAppPriority("Foreground app");
+    }
+
+    private static int nonZero(List<Double> dbls) {
+        if (dbls == null)
+            return 0;
+        int n = 0;
+        for (Double d : dbls) {
+            if (d != 0.0)
+                n++;
+        }
+        return n;
+    }
+
+    /*
+     * Zeros are left out as in convert(List<Double>).
+     *
+     * @return the offset after the last value copied.
+     */
+    private static int copyNonZero(List<Double> dbls, float[] values,
+            int offset) {
+        if (dbls == null)
+            return offset;
+        for (Double d : dbls) {
+            if (d != 0.0)
+                values[offset++] = d.floatValue();
+        }
+        return offset;
+    }
+
+    /**
+     * @return the values without zeros. dbls is not changed.
+     */
     public static double[] convert(List<Double> dbls) {
         if (dbls == null)
             return new double[0];
-        for (int j = 0; j < dbls.size(); ++j) {
-            if (dbls.get(j) == 0.0) {
-                dbls.remove(j);
-                j--;
-            }
-        }
         double[] arr = new double[dbls.size()];
-        for (int j = 0; j < dbls.size(); ++j) {
-            arr[j] = dbls.get(j);
+        int n = 0;
+        for (Double d : dbls) {
+            if (d != 0.0)
+                arr[n++] = d;
         }
-        return arr;
+        if (n == arr.length)
+            return arr;
+        double[] trimmed = new double[n];
+        System.arraycopy(arr, 0, trimmed, 0, n);
+        return trimmed;
     }
 
-    private String fixName(String name) {
+    private static String fixName(String name) {
         if (name == null)
             return null;
         int idx = name.lastIndexOf(':');
@@ -376,22 +746,58 @@ public class CaratDataStorage {
     }
 
     public SimpleHogBug[] readBugReport() {
-        Object o = readObject(BUGFILE);
-        Log.d("CaratDataStorage", "Read Bugs: " + o);
-        if (o == null || !(o instanceof SimpleHogBug[]))
+        SimpleHogBug[] r = readHogsBugs(BUGFILE);
+        Log.d("CaratDataStorage", "Read Bugs: " + r);
+        if (r == null)
             return null;
-        SimpleHogBug[] r = (SimpleHogBug[]) o;
-        bugData = new WeakReference<SimpleHogBug[]>(r);
+        cache.put(BUGFILE, r, sizeOf(r));
         return r;
     }
 
     public SimpleHogBug[] readHogReport() {
-        Object o = readObject(HOGFILE);
-        Log.d("CaratDataStorage", "Read Hogs: " + o);
-        if (o == null || !(o instanceof SimpleHogBug[]))
+        SimpleHogBug[] r = readHogsBugs(HOGFILE);
+        Log.d("CaratDataStorage", "Read Hogs: " + r);
+        if (r == null)
             return null;
-        SimpleHogBug[] r = (SimpleHogBug[]) o;
-        hogData = new WeakReference<SimpleHogBug[]>(r);
+        cache.put(HOGFILE, r, sizeOf(r));
         return r;
     }
+
+    /*
+     * Rough heap sizes for the cache budget: 4 bytes per float, 24 per boxed
+     * Double, 2 per char and a fixed overhead per object.
+     */
+    private static long sizeOf(SimpleHogBug[] list) {
+        long size = 16;
+        for (SimpleHogBug b : list) {
+            size += 64 + 4 * b.getValueCount();
+            size += 2 * (length(b.getAppName()) + length(b.getAppLabel())
+                    + length(b.getAppPriority()));
+        }
+        return size;
+    }
+
+    private static long sizeOf(List<String> list) {
+        long size = 16;
+        for (String s : list)
+            size += 40 + 2 * length(s);
+        return size;
+    }
+
+    private static long sizeOf(Reports r) {
+        return 128 + sizeOf(r.getOs()) + sizeOf(r.getOsWithout())
+                + sizeOf(r.getModel()) + sizeOf(r.getModelWithout())
+                + sizeOf(r.getSimilarApps()) + sizeOf(r.getSimilarAppsWithout())
+                + sizeOf(r.getJScoreWith());
+    }
+
+    private static long sizeOf(DetailScreenReport d) {
+        if (d == null)
+            return 0;
+        return 64 + 24 * (d.getXValsSize() + d.getYValsSize());
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
 }
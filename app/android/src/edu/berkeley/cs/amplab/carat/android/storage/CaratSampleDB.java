@@ -1,26 +1,27 @@
 package edu.berkeley.cs.amplab.carat.android.storage;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.StreamCorruptedException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
-import com.zubhium.ZubhiumSDK;
+import org.apache.thrift.TException;
+
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
+import edu.berkeley.cs.amplab.carat.android.CaratApplication;
+import edu.berkeley.cs.amplab.carat.thrift.ProcessInfo;
 import edu.berkeley.cs.amplab.carat.thrift.Sample;
 
 /**
@@ -36,17 +37,101 @@ public class CaratSampleDB {
 
     public static final String COLUMN_TIMESTAMP = "timestamp";
     public static final String COLUMN_SAMPLE = "sample";
+    public static final String COLUMN_BATTERY_LEVEL = "batterylevel";
+    public static final String COLUMN_BATTERY_STATE = "batterystate";
+    /*
+     * Rowid of the key frame a delta encoded sample is stored against, or
+     * NULL for samples stored in full. See SampleBlobCodec.
+     */
+    public static final String COLUMN_BASE = "base";
+    /*
+     * Set instead of deleting a row, so that a key frame stays readable while
+     * deltas against it remain. See purgeDeleted().
+     */
+    public static final String COLUMN_DELETED = "deleted";
+    public static final String COLUMN_VALUE = "value";
 
     public static final String DATABASE_NAME = "caratdata";
+    /*
+     * The FTS3 table used up to DATABASE_VERSION 2. Kept only so that
+     * onUpgrade can move its rows over to SAMPLES_TABLE.
+     */
     public static final String SAMPLES_VIRTUAL_TABLE = "sampleobjects";
-    private static final int DATABASE_VERSION = 2;
+    public static final String SAMPLES_TABLE = "samples";
+    public static final String TIMESTAMP_INDEX = "samples_timestamp";
+    public static final String BASE_INDEX = "samples_base";
+    /*
+     * A single row with the battery level and state of the newest sample, so
+     * that getLastSample does not need to decode a sample after a restart.
+     */
+    public static final String LAST_BATTERY_TABLE = "lastbattery";
+    /*
+     * Strings that sample blobs refer to by id, see SampleBlobCodec. Rows are
+     * never removed, since any stored sample may use them.
+     */
+    public static final String STRINGS_TABLE = "strings";
+    private static final int DATABASE_VERSION = 6;
 
     private static final HashMap<String, String> mColumnMap = buildColumnMap();
 
-    private Sample lastSample = null;
+    // Selection of the rows that have not been deleted.
+    private static final String LIVE = COLUMN_DELETED + " = 0";
+
+    // Newest sample written or queued, see getLastSample().
+    private volatile Sample lastSample = null;
+
+    private final StringDictionary dictionary = new StringDictionary();
+
+    // Only used while holding dbLock.
+    private final SampleBlobCodec codec = new SampleBlobCodec(dictionary);
 
     private SQLiteDatabase db = null;
 
+    // Compiled against db, so recompiled whenever db is reopened.
+    private SQLiteStatement insertStatement = null;
+    private SQLiteStatement lastBatteryStatement = null;
+    private SQLiteStatement deleteStatement = null;
+    private SQLiteStatement changesStatement = null;
+    private SQLiteStatement referencedStatement = null;
+    private SQLiteStatement stringInsertStatement = null;
+
+    /*
+     * A full sample is stored every KEYFRAME_INTERVAL samples, the others as
+     * deltas against it. The key frame is always the last one written by this
+     * process, so a restart begins with a new one.
+     */
+    private static final int KEYFRAME_INTERVAL = 16;
+    private long keyFrameId = -1;
+    private List<ProcessInfo> keyFramePiList = null;
+    private int deltasSinceKeyFrame = 0;
+
+    // Looks up key frames for decoding deltas.
+    private final SampleBlobCodec.KeyFrames keyFrames = new SampleBlobCodec.KeyFrames() {
+        public byte[] getKeyFrame(long rowid) {
+            synchronized (dbLock) {
+                openDatabase();
+                Cursor cursor = db.rawQuery("SELECT " + COLUMN_SAMPLE
+                        + " FROM " + SAMPLES_TABLE + " WHERE "
+                        + BaseColumns._ID + " = ?",
+                        new String[] { String.valueOf(rowid) });
+                if (cursor == null)
+                    return null;
+                try {
+                    return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+    };
+
+    // Number of ids bound to one DELETE, well below SQLITE_MAX_VARIABLE_NUMBER.
+    private static final int DELETE_CHUNK = 50;
+
+    // Check the size of the store after this many samples have been added.
+    private static final int BUDGET_CHECK_INTERVAL = 10;
+    private int addedSinceBudgetCheck = 0;
+
     private SampleDbOpenHelper helper = null;
 
     private static CaratSampleDB instance = null;
@@ -54,9 +139,11 @@ public class CaratSampleDB {
     private static Object dbLock = new Object();
 
     public static CaratSampleDB getInstance(Context c) {
-        if (instance == null)
-            instance = new CaratSampleDB(c);
-        return instance;
+        synchronized (dbLock) {
+            if (instance == null)
+                instance = new CaratSampleDB(c.getApplicationContext());
+            return instance;
+        }
     }
 
     public CaratSampleDB(Context context) {
@@ -73,12 +160,46 @@ public class CaratSampleDB {
     @Override
     protected void finalize() throws Throwable {
         synchronized (dbLock) {
+            closeStatements();
             if (db != null)
                 db.close();
         }
         super.finalize();
     }
 
+    /**
+     * Opens the database if it is not open yet. The handle is kept open for
+     * the lifetime of the process instead of being reopened for every write.
+     * Must be called while holding dbLock.
+     */
+    private void openDatabase() {
+        if (db == null || !db.isOpen()) {
+            closeStatements();
+            db = helper.getWritableDatabase();
+        }
+    }
+
+    private void closeStatements() {
+        if (insertStatement != null)
+            insertStatement.close();
+        if (lastBatteryStatement != null)
+            lastBatteryStatement.close();
+        if (deleteStatement != null)
+            deleteStatement.close();
+        if (changesStatement != null)
+            changesStatement.close();
+        if (referencedStatement != null)
+            referencedStatement.close();
+        if (stringInsertStatement != null)
+            stringInsertStatement.close();
+        insertStatement = null;
+        lastBatteryStatement = null;
+        deleteStatement = null;
+        changesStatement = null;
+        referencedStatement = null;
+        stringInsertStatement = null;
+    }
+
     /**
      * 
      * Builds a map for all columns that may be requested, which will be given
@@ -93,7 +214,8 @@ public class CaratSampleDB {
         HashMap<String, String> map = new HashMap<String, String>();
         map.put(COLUMN_TIMESTAMP, COLUMN_TIMESTAMP);
         map.put(COLUMN_SAMPLE, COLUMN_SAMPLE);
-        map.put(BaseColumns._ID, "rowid AS " + BaseColumns._ID);
+        map.put(COLUMN_BASE, COLUMN_BASE);
+        map.put(BaseColumns._ID, BaseColumns._ID);
         return map;
     }
 
@@ -117,7 +239,7 @@ public class CaratSampleDB {
          * column names
          */
         SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
-        builder.setTables(SAMPLES_VIRTUAL_TABLE);
+        builder.setTables(SAMPLES_TABLE);
         builder.setProjectionMap(mColumnMap);
 
         Cursor cursor = builder.query(db, columns, selection, selectionArgs,
@@ -136,13 +258,11 @@ public class CaratSampleDB {
         SortedMap<Long, Sample> results = new TreeMap<Long, Sample>();
         try {
             synchronized (dbLock) {
-                if (db == null || !db.isOpen()) {
-                    db = helper.getWritableDatabase();
-                }
+                openDatabase();
                 String[] columns = mColumnMap.keySet().toArray(
                         new String[mColumnMap.size()]);
 
-                Cursor cursor = query(null, null, columns, null, null,
+                Cursor cursor = query(LIVE, null, columns, null, null,
                         COLUMN_TIMESTAMP + " ASC LIMIT " + howmany);
 
                 if (cursor == null) {
@@ -166,35 +286,134 @@ public class CaratSampleDB {
         return results;
     }
 
-    private int delete(String whereClause, String[] whereArgs) {
-        int deleted = db.delete(SAMPLES_VIRTUAL_TABLE, whereClause, whereArgs);
-        return deleted;
+    /**
+     * Open a cursor over the oldest samples without decoding them. Unlike
+     * queryOldestSamples, rows are only read as the caller moves through
+     * them, and the stored bytes can be sent without creating Sample objects.
+     * The caller must close the returned cursor.
+     */
+    public SampleCursor openOldestSamples(int howmany) {
+        Cursor cursor = null;
+        try {
+            synchronized (dbLock) {
+                openDatabase();
+                String[] columns = mColumnMap.keySet().toArray(
+                        new String[mColumnMap.size()]);
+                cursor = query(LIVE, null, columns, null, null,
+                        COLUMN_TIMESTAMP + " ASC LIMIT " + howmany);
+            }
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to query oldest samples!", th);
+        }
+        return new SampleCursor(cursor, keyFrames, dictionary);
     }
 
-    public int deleteSamples(Set<Long> rowids) {
+    /**
+     * @return the number of samples stored, which have not been uploaded yet.
+     */
+    public long countSamples() {
+        try {
+            synchronized (dbLock) {
+                openDatabase();
+                return liveRows();
+            }
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to count samples!", th);
+        }
+        return 0;
+    }
+
+    /**
+     * Delete the samples with the given ids. The ids are bound to a compiled
+     * statement DELETE_CHUNK at a time, all in one transaction. Key frames
+     * other samples are stored against are only marked deleted until those
+     * are gone too.
+     * 
+     * @return the number of samples deleted
+     */
+    public int deleteSamples(Collection<Long> rowids) {
         int ret = 0;
+        if (rowids == null || rowids.isEmpty())
+            return ret;
         try {
             synchronized (dbLock) {
-                if (db == null || !db.isOpen()) {
-                    db = helper.getWritableDatabase();
-                }
-                StringBuilder sb = new StringBuilder();
-                int i = 0;
-                sb.append("(");
-                for (Long rowid : rowids) {
-                    sb.append("" + rowid);
-                    i++;
-                    if (i != rowids.size()) {
-                        sb.append(", ");
+                openDatabase();
+                if (deleteStatement == null)
+                    deleteStatement = db.compileStatement(markDeletedInStatement());
+                db.beginTransaction();
+                try {
+                    int bound = 0;
+                    long last = 0;
+                    for (Long rowid : rowids) {
+                        last = rowid;
+                        deleteStatement.bindLong(++bound, last);
+                        if (bound == DELETE_CHUNK) {
+                            ret += execute(deleteStatement);
+                            bound = 0;
+                        }
+                    }
+                    if (bound > 0) {
+                        /*
+                         * Fill the rest of the last chunk with the same id, so
+                         * that the compiled statement can be used for it too.
+                         */
+                        while (bound < DELETE_CHUNK)
+                            deleteStatement.bindLong(++bound, last);
+                        ret += execute(deleteStatement);
                     }
+                    purgeDeleted();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
-                sb.append(")");
-                Log.d("CaratSampleDB",
-                        "Deleting where rowid in " + sb.toString());
-                ret = delete("rowid in " + sb.toString(), null);
+            }
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to delete samples!", th);
+            ret = 0;
+        }
+        return ret;
+    }
+
+    /**
+     * Delete all samples with a rowid of at most the given one, for
+     * acknowledging an upload of samples read in rowid order.
+     * 
+     * @return the number of samples deleted
+     */
+    public int deleteSamplesUpTo(long rowid) {
+        return deleteRange(BaseColumns._ID + " <= ?", rowid);
+    }
 
-                if (db != null && db.isOpen()) {
-                    db.close();
+    /**
+     * Delete all samples taken at or before the given time, in seconds as in
+     * Sample.getTimestamp().
+     * 
+     * @return the number of samples deleted
+     */
+    public int deleteSamplesOlderThan(double timestamp) {
+        return deleteRange(COLUMN_TIMESTAMP + " <= ?", timestamp);
+    }
+
+    private int deleteRange(String where, Object bound) {
+        int ret = 0;
+        try {
+            synchronized (dbLock) {
+                openDatabase();
+                SQLiteStatement st = db.compileStatement("UPDATE "
+                        + SAMPLES_TABLE + " SET " + COLUMN_DELETED
+                        + " = 1 WHERE " + LIVE + " AND " + where);
+                db.beginTransaction();
+                try {
+                    if (bound instanceof Double)
+                        st.bindDouble(1, (Double) bound);
+                    else
+                        st.bindLong(1, (Long) bound);
+                    ret = execute(st);
+                    purgeDeleted();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    st.close();
                 }
             }
         } catch (Throwable th) {
@@ -203,11 +422,56 @@ public class CaratSampleDB {
         return ret;
     }
 
+    /*
+     * Physically remove rows marked deleted that nothing needs any more:
+     * deltas right away, and key frames once no remaining delta is stored
+     * against them and no new one will be. Must be called while holding
+     * dbLock.
+     */
+    private void purgeDeleted() {
+        db.execSQL("DELETE FROM " + SAMPLES_TABLE + " WHERE " + COLUMN_DELETED
+                + " = 1 AND " + COLUMN_BASE + " IS NOT NULL");
+        db.execSQL("DELETE FROM " + SAMPLES_TABLE + " WHERE " + COLUMN_DELETED
+                + " = 1 AND " + BaseColumns._ID + " != " + keyFrameId
+                + " AND NOT EXISTS (SELECT 1 FROM " + SAMPLES_TABLE
+                + " d WHERE d." + COLUMN_BASE + " = " + SAMPLES_TABLE + "."
+                + BaseColumns._ID + ")");
+        // Rowids of deleted key frames may be handed out again
+        codec.forgetKeyFrame();
+    }
+
+    /*
+     * Run an UPDATE or DELETE and return the number of rows it changed. Must be called
+     * while holding dbLock. SQLiteStatement.executeUpdateDelete() needs API
+     * level 11, so the count comes from changes() instead.
+     */
+    private int execute(SQLiteStatement st) {
+        st.execute();
+        st.clearBindings();
+        if (changesStatement == null)
+            changesStatement = db.compileStatement("SELECT changes()");
+        return (int) changesStatement.simpleQueryForLong();
+    }
+
+    private static String markDeletedInStatement() {
+        StringBuilder b = new StringBuilder("UPDATE ");
+        b.append(SAMPLES_TABLE).append(" SET ").append(COLUMN_DELETED)
+                .append(" = 1 WHERE ").append(LIVE).append(" AND ")
+                .append(BaseColumns._ID).append(" IN (");
+        for (int i = 0; i < DELETE_CHUNK; i++) {
+            if (i > 0)
+                b.append(", ");
+            b.append('?');
+        }
+        b.append(')');
+        return b.toString();
+    }
+
     private Sample queryLastSample() {
         String[] columns = mColumnMap.keySet().toArray(
                 new String[mColumnMap.size()]);
 
-        Cursor cursor = query(null, null, columns, null, null, COLUMN_TIMESTAMP
+        Cursor cursor = query(LIVE, null, columns, null, null, COLUMN_TIMESTAMP
                 + " DESC LIMIT 1");
 
         if (cursor == null) {
@@ -235,33 +499,58 @@ public class CaratSampleDB {
         byte[] sampleB = cursor.getBlob(cursor
                 .getColumnIndex(CaratSampleDB.COLUMN_SAMPLE));
         if (sampleB != null) {
-            ObjectInputStream oi;
             try {
-                oi = new ObjectInputStream(new ByteArrayInputStream(sampleB));
-                Object o = oi.readObject();
-                if (o != null)
-                    s = (Sample) o;
-            } catch (StreamCorruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                s = codec.decode(sampleB, keyFrames);
+            } catch (TException e) {
+                Log.e(TAG, "Could not decode sample!", e);
             }
         }
 
         return s;
     }
 
+    /**
+     * Read the battery level and state of the newest sample from
+     * LAST_BATTERY_TABLE. Must be called while holding dbLock.
+     * 
+     * @return a Sample with only timestamp, battery level and battery state
+     *         set, or null if there is no row yet.
+     */
+    private Sample queryLastBattery() {
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_TIMESTAMP + ", "
+                + COLUMN_BATTERY_LEVEL + ", " + COLUMN_BATTERY_STATE
+                + " FROM " + LAST_BATTERY_TABLE, null);
+        if (cursor == null)
+            return null;
+        try {
+            if (!cursor.moveToFirst())
+                return null;
+            Sample s = new Sample();
+            s.setTimestamp(cursor.getDouble(0));
+            s.setBatteryLevel(cursor.getDouble(1));
+            s.setBatteryState(cursor.getString(2));
+            return s;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the newest sample that has been stored or queued for storing.
+     * Samples are cached as they are written, so this only touches the
+     * database once per process. After a restart it returns a Sample with
+     * just the timestamp, battery level and battery state of the newest
+     * stored sample, which is what SamplingLibrary.getSample needs.
+     */
     public Sample getLastSample(Context c) {
+        Sample s = lastSample;
+        if (s != null)
+            return s;
         try {
             synchronized (dbLock) {
-                if (db == null || !db.isOpen()) {
-                    db = helper.getWritableDatabase();
-                }
+                openDatabase();
+                if (lastSample == null)
+                    lastSample = queryLastBattery();
                 if (lastSample == null)
                     queryLastSample();
             }
@@ -271,19 +560,36 @@ public class CaratSampleDB {
         return lastSample;
     }
 
+    /**
+     * Remember a sample that will be written later, so that getLastSample
+     * returns it right away. Used by SampleWriteBuffer.
+     */
+    public void setLastSample(Sample s) {
+        Sample last = lastSample;
+        if (s != null && (last == null || s.getTimestamp() >= last.getTimestamp()))
+            lastSample = s;
+    }
+
     public long putSample(Sample s) {
         long id = 0;
         try {
             synchronized (dbLock) {
-                if (db == null || !db.isOpen()) {
-                    db = helper.getWritableDatabase();
-                }
-                // force init
-                id = addSample(s);
-
-                if (db != null && db.isOpen()) {
-                    db.close();
+                openDatabase();
+                boolean committed = false;
+                db.beginTransaction();
+                try {
+                    id = addSample(s);
+                    if (id >= 0)
+                        writeLastBattery(s);
+                    db.setTransactionSuccessful();
+                    committed = true;
+                } finally {
+                    db.endTransaction();
+                    if (!committed)
+                        forgetUncommitted();
                 }
+                if (id >= 0)
+                    checkBudget(1);
             }
         } catch (Throwable th) {
             Log.e(TAG, "Failed to add a sample!", th);
@@ -292,27 +598,360 @@ public class CaratSampleDB {
     }
 
     /**
-     * Add a sample to the database.
+     * Add several samples to the database in a single transaction, so that
+     * the batch costs one journal commit instead of one per sample. Either all
+     * of the samples are added or none are.
+     * 
+     * @return the number of samples added, 0 if the transaction was rolled
+     *         back
+     */
+    public int putSamples(Collection<Sample> samples) {
+        int added = 0;
+        if (samples == null || samples.isEmpty())
+            return added;
+        try {
+            synchronized (dbLock) {
+                openDatabase();
+                boolean committed = false;
+                db.beginTransaction();
+                try {
+                    Sample newest = null;
+                    for (Sample s : samples) {
+                        if (addSample(s) < 0) {
+                            Log.e(TAG, "Failed to add a sample, rolling back "
+                                    + samples.size() + " samples!");
+                            return 0;
+                        }
+                        added++;
+                        if (newest == null
+                                || s.getTimestamp() >= newest.getTimestamp())
+                            newest = s;
+                    }
+                    if (newest != null)
+                        writeLastBattery(newest);
+                    db.setTransactionSuccessful();
+                    committed = true;
+                } finally {
+                    db.endTransaction();
+                    if (!committed)
+                        forgetUncommitted();
+                }
+                checkBudget(added);
+            }
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to add samples!", th);
+            added = 0;
+        }
+        return added;
+    }
+
+    /*
+     * After a rollback, the key frame and new dictionary entries may be gone.
+     */
+    private void forgetUncommitted() {
+        keyFrameId = -1;
+        dictionary.forget();
+    }
+
+    /**
+     * Keep the store within CaratApplication.SAMPLE_DB_MAX_ROWS and
+     * SAMPLE_DB_MAX_BYTES. When over budget, the oldest half of the samples is
+     * downsampled with SampleDownsampler. Only if that is not enough are the
+     * oldest samples deleted, down to 90% of the budget. Must be called while
+     * holding dbLock with the database open.
+     */
+    private void checkBudget(int added) {
+        addedSinceBudgetCheck += added;
+        if (addedSinceBudgetCheck < BUDGET_CHECK_INTERVAL)
+            return;
+        addedSinceBudgetCheck = 0;
+        try {
+            long rows = liveRows();
+            long bytes = storeSize();
+            if (rows <= CaratApplication.SAMPLE_DB_MAX_ROWS
+                    && bytes <= CaratApplication.SAMPLE_DB_MAX_BYTES)
+                return;
+            Log.i(TAG, "Sample store over budget with " + rows + " samples, "
+                    + bytes + " bytes. Downsampling.");
+            downsample(rows / 2);
+
+            rows = liveRows();
+            bytes = storeSize();
+            if (rows <= CaratApplication.SAMPLE_DB_MAX_ROWS
+                    && bytes <= CaratApplication.SAMPLE_DB_MAX_BYTES)
+                return;
+            long keep = CaratApplication.SAMPLE_DB_MAX_ROWS;
+            if (bytes > 0)
+                keep = Math.min(keep, rows * CaratApplication.SAMPLE_DB_MAX_BYTES
+                        / bytes);
+            keep = keep * 9 / 10;
+            db.execSQL("UPDATE " + SAMPLES_TABLE + " SET " + COLUMN_DELETED
+                    + " = 1 WHERE " + BaseColumns._ID + " IN (SELECT "
+                    + BaseColumns._ID + " FROM " + SAMPLES_TABLE + " WHERE "
+                    + LIVE + " ORDER BY " + COLUMN_TIMESTAMP + " ASC LIMIT "
+                    + (rows - keep) + ")");
+            purgeDeleted();
+            Log.w(TAG, "Deleted the " + (rows - keep)
+                    + " oldest samples to stay within budget.");
+        } catch (Throwable th) {
+            Log.e(TAG, "Failed to enforce sample store budget!", th);
+        }
+    }
+
+    private long liveRows() {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + SAMPLES_TABLE + " WHERE " + LIVE, null);
+    }
+
+    /*
+     * Bytes used by the database file, not counting free pages.
+     */
+    private long storeSize() {
+        long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+        return pages * db.getPageSize();
+    }
+
+    /*
+     * Downsample the oldest samples in one transaction. Must be called while
+     * holding dbLock with the database open.
+     */
+    private void downsample(long howmany) {
+        String[] columns = mColumnMap.keySet().toArray(
+                new String[mColumnMap.size()]);
+        Cursor cursor = query(LIVE, null, columns, null, null, COLUMN_TIMESTAMP
+                + " ASC LIMIT " + howmany);
+        if (cursor == null)
+            return;
+        int idColumn = cursor.getColumnIndex(BaseColumns._ID);
+        int baseColumn = cursor.getColumnIndex(COLUMN_BASE);
+        SampleDownsampler downsampler = new SampleDownsampler();
+        List<Long> dropped = new ArrayList<Long>();
+        int rewritten = 0;
+        // Merged samples are stored in full, since their list changed.
+        SQLiteStatement update = db.compileStatement("UPDATE " + SAMPLES_TABLE
+                + " SET " + COLUMN_SAMPLE + " = ?, " + COLUMN_BASE
+                + " = NULL WHERE " + BaseColumns._ID + " = ?");
+        db.beginTransaction();
+        try {
+            do {
+                long id = cursor.getLong(idColumn);
+                Sample s = fillSample(cursor);
+                if (s == null) {
+                    // Cannot be uploaded either
+                    dropped.add(id);
+                } else if (!downsampler.keep(s, cursor.isLast(),
+                        !cursor.isNull(baseColumn) || !isKeyFrame(id))) {
+                    dropped.add(id);
+                } else if (downsampler.merged()) {
+                    update.bindBlob(1, codec.encode(s));
+                    update.bindLong(2, id);
+                    update.execute();
+                    rewritten++;
+                }
+            } while (cursor.moveToNext());
+            deleteSamples(dropped);
+            db.setTransactionSuccessful();
+        } catch (TException e) {
+            Log.e(TAG, "Could not encode downsampled sample!", e);
+        } finally {
+            db.endTransaction();
+            update.close();
+            cursor.close();
+        }
+        Log.i(TAG, "Downsampled " + howmany + " samples: dropped "
+                + dropped.size() + ", merged processes into " + rewritten
+                + ".");
+    }
+
+    /*
+     * True if deltas are stored against the row, or will be. Must be called
+     * while holding dbLock with the database open.
+     */
+    private boolean isKeyFrame(long rowid) {
+        if (rowid == keyFrameId)
+            return true;
+        if (referencedStatement == null)
+            referencedStatement = db.compileStatement("SELECT COUNT(*) FROM "
+                    + SAMPLES_TABLE + " WHERE " + COLUMN_BASE + " = ?");
+        referencedStatement.bindLong(1, rowid);
+        long n = referencedStatement.simpleQueryForLong();
+        referencedStatement.clearBindings();
+        return n > 0;
+    }
+
+    /**
+     * Update the last sample cache and LAST_BATTERY_TABLE if s is the newest
+     * sample so far. Must be called while holding dbLock with the database
+     * open.
+     */
+    private void writeLastBattery(Sample s) {
+        setLastSample(s);
+        if (lastSample != s)
+            return;
+        if (lastBatteryStatement == null)
+            lastBatteryStatement = db.compileStatement("INSERT OR REPLACE INTO "
+                    + LAST_BATTERY_TABLE + " (" + BaseColumns._ID + ", "
+                    + COLUMN_TIMESTAMP + ", " + COLUMN_BATTERY_LEVEL + ", "
+                    + COLUMN_BATTERY_STATE + ") VALUES (0, ?, ?, ?)");
+        lastBatteryStatement.bindDouble(1, s.getTimestamp());
+        lastBatteryStatement.bindDouble(2, s.getBatteryLevel());
+        if (s.getBatteryState() != null)
+            lastBatteryStatement.bindString(3, s.getBatteryState());
+        else
+            lastBatteryStatement.bindNull(3);
+        lastBatteryStatement.execute();
+        lastBatteryStatement.clearBindings();
+    }
+
+    /**
+     * Add a sample to the database, as a delta against the current key frame
+     * when that is smaller, otherwise as a new key frame. Must be called while
+     * holding dbLock with the database open.
      * 
      * @return rowId or -1 if failed
      */
     private long addSample(Sample s) {
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(COLUMN_TIMESTAMP, s.getTimestamp());
-        // Add the piList as a blob
-        if (s != null) {
-            try {
-                ByteArrayOutputStream bo = new ByteArrayOutputStream();
-                ObjectOutputStream oo = new ObjectOutputStream(bo);
-                oo.writeObject(s);
-                initialValues.put(COLUMN_SAMPLE, bo.toByteArray());
-            } catch (IOException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+        if (s == null)
+            return -1;
+        byte[] blob = null;
+        long base = -1;
+        try {
+            if (keyFrameId >= 0 && deltasSinceKeyFrame < KEYFRAME_INTERVAL)
+                blob = codec.encodeDelta(s, keyFrameId, keyFramePiList);
+            if (blob != null)
+                base = keyFrameId;
+            else
+                blob = codec.encode(s);
+        } catch (TException e) {
+            Log.e(TAG, "Could not encode sample!", e);
+        }
+        if (insertStatement == null)
+            insertStatement = db.compileStatement("INSERT INTO "
+                    + SAMPLES_TABLE + " (" + COLUMN_TIMESTAMP + ", "
+                    + COLUMN_SAMPLE + ", " + COLUMN_BASE + ") VALUES (?, ?, ?)");
+        insertStatement.bindDouble(1, s.getTimestamp());
+        if (blob != null)
+            insertStatement.bindBlob(2, blob);
+        else
+            insertStatement.bindNull(2);
+        if (base >= 0)
+            insertStatement.bindLong(3, base);
+        else
+            insertStatement.bindNull(3);
+        long id = insertStatement.executeInsert();
+        insertStatement.clearBindings();
+        if (id >= 0 && blob != null) {
+            if (base < 0) {
+                keyFrameId = id;
+                keyFramePiList = s.getPiList();
+                deltasSinceKeyFrame = 0;
+            } else {
+                deltasSinceKeyFrame++;
+            }
+        }
+        return id;
+    }
+
+    /**
+     * STRINGS_TABLE, cached in memory. Entries are added as samples are
+     * encoded and read back by every SampleCursor, so all access is under
+     * dbLock.
+     */
+    private class StringDictionary implements SampleBlobCodec.Dictionary {
+        // Longer strings are unlikely to repeat
+        private static final int MAX_LENGTH = 128;
+        private static final int MAX_ENTRIES = 4096;
+
+        private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        private final ArrayList<String> strings = new ArrayList<String>();
+        private final ArrayList<byte[]> bytes = new ArrayList<byte[]>();
+        private boolean loaded = false;
+
+        public int intern(String s) {
+            synchronized (dbLock) {
+                load();
+                Integer id = ids.get(s);
+                if (id != null)
+                    return id;
+                if (s.length() > MAX_LENGTH || ids.size() >= MAX_ENTRIES)
+                    return -1;
+                if (stringInsertStatement == null)
+                    stringInsertStatement = db.compileStatement("INSERT INTO "
+                            + STRINGS_TABLE + " (" + BaseColumns._ID + ", "
+                            + COLUMN_VALUE + ") VALUES (?, ?)");
+                int next = strings.size();
+                stringInsertStatement.bindLong(1, next);
+                stringInsertStatement.bindString(2, s);
+                long row = stringInsertStatement.executeInsert();
+                stringInsertStatement.clearBindings();
+                if (row < 0)
+                    return -1;
+                add(next, s);
+                return next;
             }
         }
 
-        return db.insert(SAMPLES_VIRTUAL_TABLE, null, initialValues);
+        public String getString(int id) {
+            synchronized (dbLock) {
+                load();
+                return id >= 0 && id < strings.size() ? strings.get(id) : null;
+            }
+        }
+
+        public byte[] getBytes(int id) {
+            synchronized (dbLock) {
+                load();
+                if (id < 0 || id >= strings.size() || strings.get(id) == null)
+                    return null;
+                byte[] b = bytes.get(id);
+                if (b == null) {
+                    try {
+                        b = strings.get(id).getBytes("UTF-8");
+                    } catch (UnsupportedEncodingException e) {
+                        return null;
+                    }
+                    bytes.set(id, b);
+                }
+                return b;
+            }
+        }
+
+        /*
+         * Reload from the database on next use.
+         */
+        void forget() {
+            loaded = false;
+            ids.clear();
+            strings.clear();
+            bytes.clear();
+        }
+
+        private void load() {
+            if (loaded)
+                return;
+            openDatabase();
+            Cursor cursor = db.rawQuery("SELECT " + BaseColumns._ID + ", "
+                    + COLUMN_VALUE + " FROM " + STRINGS_TABLE, null);
+            if (cursor != null) {
+                try {
+                    while (cursor.moveToNext())
+                        add(cursor.getInt(0), cursor.getString(1));
+                } finally {
+                    cursor.close();
+                }
+            }
+            loaded = true;
+        }
+
+        private void add(int id, String s) {
+            while (strings.size() <= id) {
+                strings.add(null);
+                bytes.add(null);
+            }
+            strings.set(id, s);
+            ids.put(s, id);
+        }
     }
 
     /**
@@ -322,31 +961,47 @@ public class CaratSampleDB {
         private SQLiteDatabase mDatabase;
 
         /*
-         * Note that FTS3 does not support column constraints and thus, you
-         * cannot declare a primary key. However, "rowid" is automatically used
-         * as a unique identifier, so when making requests, we will use "_id" as
-         * an alias for "rowid"
+         * A plain table with a typed timestamp column. _id is an alias for
+         * rowid, so deleting by id and ordering by insertion stay cheap, and
+         * the timestamp index turns the oldest/newest lookups into index range
+         * scans.
          */
-        private static final String FTS_TABLE_CREATE = "CREATE VIRTUAL TABLE "
-                + SAMPLES_VIRTUAL_TABLE + " USING fts3 (" + createStatement()
+        private static final String TABLE_CREATE = "CREATE TABLE IF NOT EXISTS "
+                + SAMPLES_TABLE + " (" + BaseColumns._ID
+                + " INTEGER PRIMARY KEY, " + COLUMN_TIMESTAMP
+                + " REAL NOT NULL, " + COLUMN_SAMPLE + " BLOB, " + COLUMN_BASE
+                + " INTEGER, " + COLUMN_DELETED
+                + " INTEGER NOT NULL DEFAULT 0);";
+
+        private static final String INDEX_CREATE = "CREATE INDEX IF NOT EXISTS "
+                + TIMESTAMP_INDEX + " ON " + SAMPLES_TABLE + " ("
+                + COLUMN_TIMESTAMP + ");";
+
+        private static final String BASE_INDEX_CREATE = "CREATE INDEX IF NOT EXISTS "
+                + BASE_INDEX + " ON " + SAMPLES_TABLE + " (" + COLUMN_BASE
                 + ");";
 
-        private static final String createStatement() {
-            Set<String> set = mColumnMap.keySet();
-            StringBuilder b = new StringBuilder();
-            int i = 0;
-            int size = set.size() - 1;
-            for (String s : set) {
-                if (s.equals(BaseColumns._ID))
-                    continue;
-                if (i + 1 == size)
-                    b.append(s);
-                else
-                    b.append(s + ", ");
-                i++;
-            }
-            return b.toString();
-        }
+        private static final String LAST_BATTERY_CREATE = "CREATE TABLE IF NOT EXISTS "
+                + LAST_BATTERY_TABLE + " (" + BaseColumns._ID
+                + " INTEGER PRIMARY KEY, " + COLUMN_TIMESTAMP + " REAL, "
+                + COLUMN_BATTERY_LEVEL + " REAL, " + COLUMN_BATTERY_STATE
+                + " TEXT);";
+
+        private static final String STRINGS_CREATE = "CREATE TABLE IF NOT EXISTS "
+                + STRINGS_TABLE + " (" + BaseColumns._ID
+                + " INTEGER PRIMARY KEY, " + COLUMN_VALUE
+                + " TEXT NOT NULL UNIQUE);";
+
+        /*
+         * Copies rows of the version 2 FTS3 table, keeping their rowids so
+         * that nothing changes for samples that are already queued.
+         */
+        private static final String FTS_MIGRATE = "INSERT INTO " + SAMPLES_TABLE
+                + " (" + BaseColumns._ID + ", " + COLUMN_TIMESTAMP + ", "
+                + COLUMN_SAMPLE + ") SELECT rowid, CAST(" + COLUMN_TIMESTAMP
+                + " AS REAL), " + COLUMN_SAMPLE + " FROM "
+                + SAMPLES_VIRTUAL_TABLE + " WHERE " + COLUMN_SAMPLE
+                + " IS NOT NULL;";
 
         SampleDbOpenHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -356,7 +1011,11 @@ public class CaratSampleDB {
         public void onCreate(SQLiteDatabase db) {
             mDatabase = db;
             try {
-                mDatabase.execSQL(FTS_TABLE_CREATE);
+                mDatabase.execSQL(TABLE_CREATE);
+                mDatabase.execSQL(INDEX_CREATE);
+                mDatabase.execSQL(BASE_INDEX_CREATE);
+                mDatabase.execSQL(LAST_BATTERY_CREATE);
+                mDatabase.execSQL(STRINGS_CREATE);
             } catch (Throwable th) {
                 // Already created
                 Log.e(TAG, "DB create failed!", th);
@@ -376,12 +1035,37 @@ public class CaratSampleDB {
             super.onOpen(db);
         }
 
+        /*
+         * Called inside a transaction by SQLiteOpenHelper, so a failed
+         * migration leaves the old table untouched.
+         */
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
+            if (oldVersion == 2) {
+                Log.w(TAG, "Upgrading database from version " + oldVersion
+                        + " to " + newVersion
+                        + ", moving samples out of the FTS3 table");
+                onCreate(db);
+                db.execSQL(FTS_MIGRATE);
+            } else if (oldVersion > 2) {
+                Log.w(TAG, "Upgrading database from version " + oldVersion
+                        + " to " + newVersion);
+                if (oldVersion < 5) {
+                    db.execSQL("ALTER TABLE " + SAMPLES_TABLE + " ADD COLUMN "
+                            + COLUMN_BASE + " INTEGER");
+                    db.execSQL("ALTER TABLE " + SAMPLES_TABLE + " ADD COLUMN "
+                            + COLUMN_DELETED + " INTEGER NOT NULL DEFAULT 0");
+                }
+                // Creates the tables and indexes added since oldVersion
+                onCreate(db);
+            } else {
+                Log.w(TAG, "Upgrading database from version " + oldVersion
+                        + " to " + newVersion
+                        + ", which will destroy all old data");
+                db.execSQL("DROP TABLE IF EXISTS " + SAMPLES_TABLE);
+                onCreate(db);
+            }
             db.execSQL("DROP TABLE IF EXISTS " + SAMPLES_VIRTUAL_TABLE);
-            onCreate(db);
         }
     }
 }
@@ -0,0 +1,153 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+import edu.berkeley.cs.amplab.carat.android.CaratApplication.Type;
+
+/**
+ * Columnar storage of a SimpleHogBug[] for the hog and bug report files.
+ *
+ * The file used to be the Java-serialized array, four double[] objects per
+ * app. Now the header (magic, version, item count and value count) is followed
+ * by the fixed-size fields of each item, then its strings, and last by all
+ * distributions as one block of floats. decode() reads that block with one
+ * bulk copy into one float[], which all the decoded items share. See
+ * SimpleHogBug.setDistributions().
+ */
+final class HogBugCodec {
+
+    private static final String TAG = "HogBugCodec";
+
+    private static final int MAGIC = 0x43524842; // "CRHB"
+    private static final int VERSION = 1;
+
+    private static final String CHARSET = "UTF-8";
+
+    private HogBugCodec() {
+    }
+
+    static byte[] encode(SimpleHogBug[] list) throws IOException {
+        int total = 0;
+        for (SimpleHogBug b : list)
+            total += b.getValueCount();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(64 * list.length
+                + 4 * total);
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(list.length);
+        dos.writeInt(total);
+        for (SimpleHogBug b : list) {
+            dos.writeBoolean(b.isBug());
+            dos.writeDouble(b.getExpectedValue());
+            dos.writeDouble(b.getExpectedValueWithout());
+            dos.writeDouble(b.getwDistance());
+            dos.writeInt(b.getxLength());
+            dos.writeInt(b.getyLength());
+            dos.writeInt(b.getxWithoutLength());
+            dos.writeInt(b.getyWithoutLength());
+            writeString(dos, b.getAppName());
+            writeString(dos, b.getAppLabel());
+            writeString(dos, b.getAppPriority());
+        }
+        for (SimpleHogBug b : list) {
+            float[] values = b.getValues();
+            int offset = b.getOffset();
+            int count = b.getValueCount();
+            for (int i = 0; i < count; i++)
+                dos.writeFloat(values[offset + i]);
+        }
+        dos.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * @return the items, or null if data is not in this format, such as a
+     *         file written by an older version.
+     */
+    static SimpleHogBug[] decode(byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                return null;
+            int count = buf.getInt();
+            int total = buf.getInt();
+            // Each value takes 4 bytes, so this also bounds the allocation
+            if (count < 0 || total < 0 || total > buf.remaining() / 4)
+                return null;
+            float[] values = new float[total];
+            SimpleHogBug[] result = new SimpleHogBug[count];
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                boolean isBug = buf.get() != 0;
+                double expectedValue = buf.getDouble();
+                double expectedValueWithout = buf.getDouble();
+                double wDistance = buf.getDouble();
+                int xLength = buf.getInt();
+                int yLength = buf.getInt();
+                int xWithoutLength = buf.getInt();
+                int yWithoutLength = buf.getInt();
+                SimpleHogBug b = new SimpleHogBug(readString(buf),
+                        isBug ? Type.BUG : Type.HOG);
+                b.setAppLabel(readString(buf));
+                b.setAppPriority(readString(buf));
+                b.setExpectedValue(expectedValue);
+                b.setExpectedValueWithout(expectedValueWithout);
+                b.setwDistance(wDistance);
+                if (xLength < 0 || yLength < 0 || xWithoutLength < 0
+                        || yWithoutLength < 0
+                        || (long) offset + xLength + yLength + xWithoutLength
+                                + yWithoutLength > total)
+                    return null;
+                b.setDistributions(values, offset, xLength, yLength,
+                        xWithoutLength, yWithoutLength);
+                offset += b.getValueCount();
+                result[i] = b;
+            }
+            if (offset != total)
+                return null;
+            buf.asFloatBuffer().get(values);
+            return result;
+        } catch (BufferUnderflowException e) {
+            Log.e(TAG, "Truncated hog/bug data!");
+            return null;
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Broken string in hog/bug data!");
+            return null;
+        }
+    }
+
+    private static void writeString(DataOutputStream dos, String s)
+            throws IOException {
+        if (s == null) {
+            dos.writeInt(-1);
+            return;
+        }
+        byte[] b = s.getBytes(CHARSET);
+        dos.writeInt(b.length);
+        dos.write(b);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0)
+            return null;
+        if (length > buf.remaining())
+            throw new BufferUnderflowException();
+        try {
+            String s = new String(buf.array(), buf.arrayOffset()
+                    + buf.position(), length, CHARSET);
+            buf.position(buf.position() + length);
+            return s;
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
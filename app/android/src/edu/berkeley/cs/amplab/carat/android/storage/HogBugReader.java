@@ -0,0 +1,210 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+
+import edu.berkeley.cs.amplab.carat.android.CaratApplication.Type;
+
+/**
+ * Reads a HogBugReport struct from the wire straight into SimpleHogBugs,
+ * without creating the HogsBugs objects and their List&lt;Double&gt;
+ * distributions. Each double is read into the shared float array of the
+ * report as it arrives, and zeros are left out as in
+ * CaratDataStorage.convert(). Field ids must match HogBugReport and HogsBugs;
+ * unknown fields are skipped.
+ */
+public final class HogBugReader {
+
+    // HogBugReport
+    private static final short HB_LIST = 2;
+
+    // HogsBugs
+    private static final short APP_NAME = 1;
+    private static final short W_DISTANCE = 2;
+    private static final short X_VALS = 3;
+    private static final short Y_VALS = 4;
+    private static final short X_VALS_WITHOUT = 5;
+    private static final short Y_VALS_WITHOUT = 6;
+    private static final short EXPECTED_VALUE = 7;
+    private static final short EXPECTED_VALUE_WITHOUT = 8;
+    private static final short APP_LABEL = 9;
+    private static final short APP_PRIORITY = 10;
+
+    private static final int INITIAL_VALUES = 1024;
+
+    private float[] values = new float[INITIAL_VALUES];
+    private int count = 0;
+
+    private HogBugReader() {
+    }
+
+    /**
+     * @return the items of the report, or null if it has no item list.
+     */
+    public static SimpleHogBug[] read(TProtocol iprot, boolean isBug)
+            throws TException {
+        SimpleHogBug[] result = null;
+        iprot.readStructBegin();
+        while (true) {
+            TField field = iprot.readFieldBegin();
+            if (field.type == TType.STOP)
+                break;
+            if (field.id == HB_LIST && field.type == TType.LIST)
+                result = new HogBugReader().readList(iprot, isBug);
+            else
+                TProtocolUtil.skip(iprot, field.type);
+            iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+        return result;
+    }
+
+    private SimpleHogBug[] readList(TProtocol iprot, boolean isBug)
+            throws TException {
+        TList list = iprot.readListBegin();
+        if (list.elemType != TType.STRUCT) {
+            for (int i = 0; i < list.size; i++)
+                TProtocolUtil.skip(iprot, list.elemType);
+            iprot.readListEnd();
+            return null;
+        }
+        SimpleHogBug[] result = new SimpleHogBug[list.size];
+        // Offset and the four lengths of each item
+        int[] layout = new int[5 * list.size];
+        for (int i = 0; i < list.size; i++)
+            result[i] = readItem(iprot, isBug, layout, 5 * i);
+        iprot.readListEnd();
+        if (count < values.length) {
+            float[] trimmed = new float[count];
+            System.arraycopy(values, 0, trimmed, 0, count);
+            values = trimmed;
+        }
+        for (int i = 0; i < result.length; i++) {
+            int l = 5 * i;
+            result[i].setDistributions(values, layout[l], layout[l + 1],
+                    layout[l + 2], layout[l + 3], layout[l + 4]);
+        }
+        return result;
+    }
+
+    private SimpleHogBug readItem(TProtocol iprot, boolean isBug,
+            int[] layout, int l) throws TException {
+        SimpleHogBug b = new SimpleHogBug(null, isBug ? Type.BUG : Type.HOG);
+        int start = count;
+        // Where each distribution starts, in field id order
+        int[] starts = new int[4];
+        int[] lengths = new int[4];
+        iprot.readStructBegin();
+        while (true) {
+            TField field = iprot.readFieldBegin();
+            if (field.type == TType.STOP)
+                break;
+            switch (field.id) {
+            case APP_NAME:
+            case APP_LABEL:
+            case APP_PRIORITY:
+                if (field.type != TType.STRING) {
+                    TProtocolUtil.skip(iprot, field.type);
+                    break;
+                }
+                String s = iprot.readString();
+                if (field.id == APP_NAME)
+                    b.setAppName(s);
+                else if (field.id == APP_LABEL)
+                    b.setAppLabel(s);
+                else
+                    b.setAppPriority(s);
+                break;
+            case W_DISTANCE:
+            case EXPECTED_VALUE:
+            case EXPECTED_VALUE_WITHOUT:
+                if (field.type != TType.DOUBLE) {
+                    TProtocolUtil.skip(iprot, field.type);
+                    break;
+                }
+                double d = iprot.readDouble();
+                if (field.id == W_DISTANCE)
+                    b.setwDistance(d);
+                else if (field.id == EXPECTED_VALUE)
+                    b.setExpectedValue(d);
+                else
+                    b.setExpectedValueWithout(d);
+                break;
+            case X_VALS:
+            case Y_VALS:
+            case X_VALS_WITHOUT:
+            case Y_VALS_WITHOUT:
+                if (field.type != TType.LIST) {
+                    TProtocolUtil.skip(iprot, field.type);
+                    break;
+                }
+                int k = field.id - X_VALS;
+                starts[k] = count;
+                readValues(iprot);
+                lengths[k] = count - starts[k];
+                break;
+            default:
+                TProtocolUtil.skip(iprot, field.type);
+            }
+            iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+        arrange(start, starts, lengths);
+        CaratDataStorage.tidy(b);
+        layout[l] = start;
+        System.arraycopy(lengths, 0, layout, l + 1, 4);
+        return b;
+    }
+
+    private void readValues(TProtocol iprot) throws TException {
+        TList list = iprot.readListBegin();
+        if (list.elemType != TType.DOUBLE) {
+            for (int i = 0; i < list.size; i++)
+                TProtocolUtil.skip(iprot, list.elemType);
+        } else {
+            ensureCapacity(count + list.size);
+            for (int i = 0; i < list.size; i++) {
+                double d = iprot.readDouble();
+                if (d != 0.0)
+                    values[count++] = (float) d;
+            }
+        }
+        iprot.readListEnd();
+    }
+
+    /*
+     * Thrift writes fields in id order, so the distributions of an item are
+     * normally already in place. If they came in another order, put them in
+     * the order SimpleHogBug expects.
+     */
+    private void arrange(int start, int[] starts, int[] lengths) {
+        int expected = start;
+        boolean inOrder = true;
+        for (int k = 0; k < 4; k++) {
+            if (lengths[k] > 0 && starts[k] != expected)
+                inOrder = false;
+            expected += lengths[k];
+        }
+        if (inOrder)
+            return;
+        float[] tmp = new float[count - start];
+        int pos = 0;
+        for (int k = 0; k < 4; k++) {
+            System.arraycopy(values, starts[k], tmp, pos, lengths[k]);
+            pos += lengths[k];
+        }
+        System.arraycopy(tmp, 0, values, start, pos);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= values.length)
+            return;
+        float[] grown = new float[Math.max(capacity, 2 * values.length)];
+        System.arraycopy(values, 0, grown, 0, count);
+        values = grown;
+    }
+}
@@ -0,0 +1,122 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory cache of the objects CaratDataStorage reads from its files, by
+ * file name.
+ *
+ * Entries are held strongly in least recently used order up to maxBytes of
+ * their estimated size, so that refreshing the UI does not go back to disk
+ * after a GC the way WeakReferences did. Entries pushed out by newer ones are
+ * kept behind SoftReferences and come back when used, unless the GC needed the
+ * memory first. clear() drops everything, for onLowMemory.
+ *
+ * android.util.LruCache needs API level 12, hence this class.
+ */
+class ReportCache {
+
+    private final long maxBytes;
+    private long bytes = 0;
+
+    // In access order, eldest first.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+            8, 0.75f, true);
+    private final HashMap<String, SoftEntry> evicted = new HashMap<String, SoftEntry>();
+
+    private static class Entry {
+        final Object value;
+        final long size;
+
+        Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private static class SoftEntry extends SoftReference<Object> {
+        final long size;
+
+        SoftEntry(Object value, long size) {
+            super(value);
+            this.size = size;
+        }
+    }
+
+    ReportCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the cached value, or null if it has to be read from disk.
+     */
+    synchronized Object get(String key) {
+        Entry e = entries.get(key);
+        if (e != null)
+            return e.value;
+        SoftEntry soft = evicted.remove(key);
+        if (soft == null)
+            return null;
+        Object value = soft.get();
+        if (value != null)
+            put(key, value, soft.size);
+        return value;
+    }
+
+    /**
+     * Cache a value, replacing any previous one.
+     *
+     * @param size
+     *            estimated size of value in bytes.
+     */
+    synchronized void put(String key, Object value, long size) {
+        remove(key);
+        if (value == null)
+            return;
+        entries.put(key, new Entry(value, size));
+        bytes += size;
+        trimTo(maxBytes);
+    }
+
+    synchronized void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null)
+            bytes -= e.size;
+        evicted.remove(key);
+    }
+
+    /**
+     * Move the least recently used entries behind SoftReferences until the
+     * rest fit in max bytes.
+     */
+    synchronized void trimTo(long max) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (bytes > max && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            Entry e = eldest.getValue();
+            it.remove();
+            bytes -= e.size;
+            evicted.put(eldest.getKey(), new SoftEntry(e.value, e.size));
+        }
+    }
+
+    /**
+     * Drop all entries, strong and soft.
+     */
+    synchronized void clear() {
+        entries.clear();
+        evicted.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the estimated size of the strongly held entries.
+     */
+    synchronized long size() {
+        return bytes;
+    }
+}
@@ -0,0 +1,177 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Several byte arrays kept in one file, so that CaratDataStorage opens one
+ * file at startup instead of one per report.
+ *
+ * The file is written with AtomicFiles. It starts with a table of sections:
+ * magic, version and section count, then for each section its id, offset
+ * from the start of the file, length and CRC32. The section data follows.
+ * The file is memory-mapped and a section is only checked and copied out
+ * when get() asks for it, so data that is never used is never read.
+ *
+ * Changing sections writes a new file, with the other sections copied from
+ * the mapping of the old one. Instances are thread safe.
+ */
+class ReportSnapshot {
+
+    private static final String TAG = "ReportSnapshot";
+
+    private static final int MAGIC = 0x43525353; // "CRSS"
+    private static final int VERSION = 1;
+    // magic, version, section count
+    private static final int TABLE_HEADER_LENGTH = 12;
+    // id, offset, length, crc32
+    private static final int ENTRY_LENGTH = 16;
+
+    private final Context c;
+    private final String fname;
+    private final int sections;
+
+    private ByteBuffer data = null;
+    // By section id; length -1 if the section is missing.
+    private final int[] offsets;
+    private final int[] lengths;
+    private final int[] crcs;
+
+    /**
+     * @param sections
+     *            the number of sections; ids go from 0 to sections - 1.
+     */
+    ReportSnapshot(Context c, String fname, int sections) {
+        this.c = c;
+        this.fname = fname;
+        this.sections = sections;
+        offsets = new int[sections];
+        lengths = new int[sections];
+        crcs = new int[sections];
+        clear();
+    }
+
+    /**
+     * Map the file and read its table.
+     *
+     * @return false if there is no usable file.
+     */
+    synchronized boolean load() {
+        clear();
+        ByteBuffer buf = AtomicFiles.map(c, fname);
+        if (buf == null)
+            return false;
+        int limit = buf.limit();
+        if (limit < TABLE_HEADER_LENGTH || buf.getInt(0) != MAGIC
+                || buf.getInt(4) != VERSION) {
+            Log.e(TAG, "Ignoring " + fname + " with an unknown format.");
+            return false;
+        }
+        int count = buf.getInt(8);
+        if (count < 0 || TABLE_HEADER_LENGTH + (long) count * ENTRY_LENGTH > limit) {
+            Log.e(TAG, "Ignoring " + fname + " with a broken table.");
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            int pos = TABLE_HEADER_LENGTH + i * ENTRY_LENGTH;
+            int id = buf.getInt(pos);
+            int offset = buf.getInt(pos + 4);
+            int length = buf.getInt(pos + 8);
+            // Sections from a newer version are skipped
+            if (id < 0 || id >= sections || offset < 0 || length < 0
+                    || (long) offset + length > limit)
+                continue;
+            offsets[id] = offset;
+            lengths[id] = length;
+            crcs[id] = buf.getInt(pos + 12);
+        }
+        data = buf;
+        return true;
+    }
+
+    private void clear() {
+        data = null;
+        for (int i = 0; i < sections; i++)
+            lengths[i] = -1;
+    }
+
+    /**
+     * @return a copy of the section, or null if it is missing or corrupt.
+     */
+    synchronized byte[] get(int id) {
+        if (data == null || lengths[id] < 0)
+            return null;
+        byte[] b = new byte[lengths[id]];
+        ByteBuffer dup = data.duplicate();
+        dup.position(offsets[id]);
+        dup.get(b);
+        CRC32 crc = new CRC32();
+        crc.update(b);
+        if ((int) crc.getValue() != crcs[id]) {
+            Log.e(TAG, "Section " + id + " of " + fname + " is corrupt!");
+            lengths[id] = -1;
+            return null;
+        }
+        return b;
+    }
+
+    /**
+     * Replace one section.
+     *
+     * @return true if the file was written.
+     */
+    boolean put(int id, byte[] value) {
+        byte[][] values = new byte[sections][];
+        values[id] = value;
+        return putAll(values);
+    }
+
+    /**
+     * Replace several sections with one write. Sections with a null value
+     * keep their old data.
+     *
+     * @return true if the file was written.
+     */
+    synchronized boolean putAll(byte[][] values) {
+        byte[][] all = new byte[sections][];
+        int count = 0;
+        long total = 0;
+        for (int i = 0; i < sections; i++) {
+            all[i] = values[i] != null ? values[i] : get(i);
+            if (all[i] != null) {
+                count++;
+                total += all[i].length;
+            }
+        }
+        int tableLength = TABLE_HEADER_LENGTH + count * ENTRY_LENGTH;
+        if (tableLength + total > Integer.MAX_VALUE)
+            return false;
+        ByteBuffer out = ByteBuffer.allocate((int) (tableLength + total));
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(count);
+        int offset = tableLength;
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < sections; i++) {
+            if (all[i] == null)
+                continue;
+            crc.reset();
+            crc.update(all[i]);
+            out.putInt(i);
+            out.putInt(offset);
+            out.putInt(all[i].length);
+            out.putInt((int) crc.getValue());
+            offset += all[i].length;
+        }
+        for (int i = 0; i < sections; i++) {
+            if (all[i] != null)
+                out.put(all[i]);
+        }
+        if (!AtomicFiles.write(c, fname, out.array(), false))
+            return false;
+        return load();
+    }
+}
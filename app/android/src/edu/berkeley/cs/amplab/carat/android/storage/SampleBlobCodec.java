@@ -0,0 +1,536 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.thrift.TBase;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TList;
+import org.apache.thrift.protocol.TMap;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TSet;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.AutoExpandingBufferWriteTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransport;
+
+import edu.berkeley.cs.amplab.carat.thrift.ProcessInfo;
+import edu.berkeley.cs.amplab.carat.thrift.Sample;
+
+/**
+ * Encodes and decodes the blobs stored in CaratSampleDB.
+ *
+ * A blob is a one byte format version followed by the payload. Version
+ * FORMAT_COMPACT is a raw TCompactProtocol encoding of the Sample. Blobs
+ * written before the codec existed are Java-serialized Samples; they start
+ * with the serialization stream magic and are still readable.
+ *
+ * Version FORMAT_DELTA stores a Sample relative to an earlier key frame: the
+ * rowid of the key frame, the Sample without its process list, the pIds of
+ * processes gone since the key frame and the processes that are new or
+ * changed. Decoding one needs the key frame, which is fetched through
+ * KeyFrames and cached until forgetKeyFrame() is called.
+ *
+ * When the codec has a Dictionary, strings are written as small ids into it
+ * instead of their UTF-8 bytes, and FLAG_DICTIONARY is set in the version
+ * byte. Such blobs can only be read with the same dictionary.
+ *
+ * This works like TSerializer and TDeserializer with a TCompactProtocol, but
+ * keeps the transports and protocols around between calls and can skip the
+ * version byte without copying the blob. Instances are not thread safe.
+ */
+public class SampleBlobCodec {
+
+    public static final byte FORMAT_COMPACT = 1;
+    public static final byte FORMAT_DELTA = 2;
+    public static final byte FLAG_DICTIONARY = 0x40;
+
+    // java.io.ObjectStreamConstants.STREAM_MAGIC
+    private static final byte LEGACY_MAGIC_0 = (byte) 0xAC;
+    private static final byte LEGACY_MAGIC_1 = (byte) 0xED;
+
+
+    /**
+     * Where delta blobs get their key frames from.
+     */
+    public interface KeyFrames {
+        /**
+         * @return the stored blob of the key frame with the given rowid, or
+         *         null if there is no such row.
+         */
+        byte[] getKeyFrame(long rowid);
+    }
+
+    /**
+     * Persistent mapping between strings and small ids.
+     */
+    public interface Dictionary {
+        /**
+         * @return the id of s, adding it if it is new, or -1 if s should be
+         *         stored as is.
+         */
+        int intern(String s);
+
+        /**
+         * @return the string with the given id, or null if there is none.
+         */
+        String getString(int id);
+
+        /**
+         * @return the UTF-8 encoding of the string with the given id, or null
+         *         if there is none. Must not be modified.
+         */
+        byte[] getBytes(int id);
+    }
+
+    private final Dictionary dictionary;
+    private final byte[] header = new byte[1];
+
+    private final AutoExpandingBufferWriteTransport out = new AutoExpandingBufferWriteTransport(
+            4096, 1.5);
+    private final DictionaryProtocol outProtocol;
+
+    private final TMemoryInputTransport in = new TMemoryInputTransport();
+    private final DictionaryProtocol inProtocol;
+
+    // Process list of the key frame last used for decoding a delta.
+    private long cachedKeyFrameId = -1;
+    private List<ProcessInfo> cachedKeyFrame = null;
+
+    public SampleBlobCodec() {
+        this(null);
+    }
+
+    /**
+     * @param dictionary
+     *            used for the strings of new blobs and needed to read blobs
+     *            written with one. May be null.
+     */
+    public SampleBlobCodec(Dictionary dictionary) {
+        this.dictionary = dictionary;
+        outProtocol = new DictionaryProtocol(out, dictionary);
+        inProtocol = new DictionaryProtocol(in, dictionary);
+    }
+
+    /**
+     * @return the blob for the given Thrift struct in the current format.
+     */
+    public byte[] encode(TBase<?, ?> t) throws TException {
+        beginWrite(FORMAT_COMPACT);
+        t.write(outProtocol);
+        byte[] blob = new byte[out.getPos()];
+        System.arraycopy(out.getBuf().array(), 0, blob, 0, blob.length);
+        return blob;
+    }
+
+    /**
+     * Encode s as a delta against a key frame with the given process list.
+     * Processes are matched by pId.
+     * 
+     * @return the blob, or null if s should be stored as a key frame instead
+     *         because the process lists differ too much or cannot be matched.
+     */
+    public byte[] encodeDelta(Sample s, long keyFrameId,
+            List<ProcessInfo> keyFrame) throws TException {
+        List<ProcessInfo> current = s.getPiList();
+        if (keyFrame == null || current == null)
+            return null;
+        Map<Integer, ProcessInfo> before = byPid(keyFrame);
+        Map<Integer, ProcessInfo> after = byPid(current);
+        if (before == null || after == null)
+            return null;
+        List<Integer> removed = new ArrayList<Integer>();
+        for (Integer pid : before.keySet()) {
+            if (!after.containsKey(pid))
+                removed.add(pid);
+        }
+        List<ProcessInfo> changed = new ArrayList<ProcessInfo>();
+        for (ProcessInfo p : current) {
+            if (!p.equals(before.get(p.getPId())))
+                changed.add(p);
+        }
+        if (removed.size() + changed.size() > current.size() / 2)
+            return null;
+
+        // Write a copy, so that other threads never see s without its list.
+        Sample rest = new Sample(s);
+        rest.setPiList(null);
+        beginWrite(FORMAT_DELTA);
+        outProtocol.writeI64(keyFrameId);
+        rest.write(outProtocol);
+        outProtocol.writeListBegin(new TList(TType.I32, removed.size()));
+        for (Integer pid : removed)
+            outProtocol.writeI32(pid);
+        outProtocol.writeListEnd();
+        outProtocol.writeListBegin(new TList(TType.STRUCT, changed.size()));
+        for (ProcessInfo p : changed)
+            p.write(outProtocol);
+        outProtocol.writeListEnd();
+        byte[] blob = new byte[out.getPos()];
+        System.arraycopy(out.getBuf().array(), 0, blob, 0, blob.length);
+        return blob;
+    }
+
+    private void beginWrite(byte format) throws TException {
+        out.reset();
+        outProtocol.reset();
+        outProtocol.tagged = dictionary != null;
+        header[0] = (byte) (outProtocol.tagged ? format | FLAG_DICTIONARY
+                : format);
+        out.write(header);
+    }
+
+    /*
+     * Position the input on the payload of a blob in the current format.
+     */
+    private void beginRead(byte[] blob) throws TException {
+        inProtocol.tagged = (blob[0] & FLAG_DICTIONARY) != 0;
+        if (inProtocol.tagged && dictionary == null)
+            throw new TException("Sample was stored with a string dictionary");
+        in.reset(blob, 1, blob.length - 1);
+        inProtocol.reset();
+    }
+
+    private static int format(byte[] blob) {
+        return blob[0] & ~FLAG_DICTIONARY;
+    }
+
+    /*
+     * Processes by pId, or null if a pId is missing or appears twice.
+     */
+    private static Map<Integer, ProcessInfo> byPid(List<ProcessInfo> list) {
+        Map<Integer, ProcessInfo> map = new HashMap<Integer, ProcessInfo>(
+                list.size() * 2);
+        for (ProcessInfo p : list) {
+            if (p == null || !p.isSetPId()
+                    || map.put(p.getPId(), p) != null)
+                return null;
+        }
+        return map;
+    }
+
+    /**
+     * @return the Sample stored in the blob, or null if the blob is empty, in
+     *         an unknown format or a delta.
+     */
+    public Sample decode(byte[] blob) throws TException {
+        return decode(blob, null);
+    }
+
+    /**
+     * @return the Sample stored in the blob, or null if the blob is empty, in
+     *         an unknown format or a delta whose key frame is gone.
+     */
+    public Sample decode(byte[] blob, KeyFrames keyFrames) throws TException {
+        if (blob == null || blob.length < 2)
+            return null;
+        if (isLegacy(blob))
+            return decodeLegacy(blob);
+        if (format(blob) == FORMAT_DELTA)
+            return decodeDelta(blob, keyFrames);
+        if (format(blob) != FORMAT_COMPACT)
+            return null;
+        Sample s = new Sample();
+        read(s, blob);
+        return s;
+    }
+
+    /**
+     * @return true if the blob is a delta against a key frame.
+     */
+    public static boolean isDelta(byte[] blob) {
+        return blob != null && blob.length >= 2 && !isLegacy(blob)
+                && format(blob) == FORMAT_DELTA;
+    }
+
+    /**
+     * Drop the cached key frame, for when key frames are deleted and their
+     * rowids may be reused.
+     */
+    public void forgetKeyFrame() {
+        cachedKeyFrameId = -1;
+        cachedKeyFrame = null;
+    }
+
+    private Sample decodeDelta(byte[] blob, KeyFrames keyFrames)
+            throws TException {
+        Sample s = new Sample();
+        long keyFrameId;
+        HashSet<Integer> removed = new HashSet<Integer>();
+        Map<Integer, ProcessInfo> changed = new LinkedHashMap<Integer, ProcessInfo>();
+        // Read the whole delta first, the key frame reuses the transport.
+        beginRead(blob);
+        try {
+            keyFrameId = inProtocol.readI64();
+            s.read(inProtocol);
+            TList list = inProtocol.readListBegin();
+            for (int i = 0; i < list.size; i++)
+                removed.add(inProtocol.readI32());
+            inProtocol.readListEnd();
+            list = inProtocol.readListBegin();
+            for (int i = 0; i < list.size; i++) {
+                ProcessInfo p = new ProcessInfo();
+                p.read(inProtocol);
+                changed.put(p.getPId(), p);
+            }
+            inProtocol.readListEnd();
+        } finally {
+            in.clear();
+        }
+
+        List<ProcessInfo> keyFrame = keyFrame(keyFrameId, keyFrames);
+        if (keyFrame == null)
+            return null;
+        /*
+         * Unchanged entries are shared with the cached key frame, so the
+         * ProcessInfo objects of a decoded delta must not be modified.
+         */
+        List<ProcessInfo> piList = new ArrayList<ProcessInfo>(keyFrame.size()
+                + changed.size());
+        for (ProcessInfo p : keyFrame) {
+            if (removed.contains(p.getPId()))
+                continue;
+            ProcessInfo c = changed.remove(p.getPId());
+            piList.add(c != null ? c : p);
+        }
+        piList.addAll(changed.values());
+        s.setPiList(piList);
+        return s;
+    }
+
+    private List<ProcessInfo> keyFrame(long rowid, KeyFrames keyFrames)
+            throws TException {
+        if (rowid == cachedKeyFrameId && cachedKeyFrame != null)
+            return cachedKeyFrame;
+        if (keyFrames == null)
+            return null;
+        byte[] blob = keyFrames.getKeyFrame(rowid);
+        if (isDelta(blob))
+            return null;
+        Sample k = decode(blob);
+        if (k == null)
+            return null;
+        cachedKeyFrameId = rowid;
+        cachedKeyFrame = k.getPiList() != null ? k.getPiList()
+                : new ArrayList<ProcessInfo>();
+        return cachedKeyFrame;
+    }
+
+    /**
+     * Read a struct from a blob in the current format into t.
+     */
+    public void read(TBase<?, ?> t, byte[] blob) throws TException {
+        beginRead(blob);
+        try {
+            t.read(inProtocol);
+        } finally {
+            in.clear();
+        }
+    }
+
+    /**
+     * Write the struct stored in a blob to another protocol, for example the
+     * protocol of a server connection. Blobs in the current format are copied
+     * field by field without creating the Thrift objects; legacy blobs are
+     * decoded first.
+     */
+    public void transcode(byte[] blob, TProtocol out) throws TException {
+        transcode(blob, out, null);
+    }
+
+    /**
+     * Like transcode(byte[], TProtocol), but deltas are decoded with the
+     * key frames from keyFrames and then written.
+     */
+    public void transcode(byte[] blob, TProtocol out, KeyFrames keyFrames)
+            throws TException {
+        if (blob == null || blob.length < 2 || isLegacy(blob)
+                || format(blob) == FORMAT_DELTA) {
+            Sample s = decode(blob, keyFrames);
+            if (s == null)
+                throw new TException("Could not decode sample");
+            s.write(out);
+            return;
+        }
+        if (format(blob) != FORMAT_COMPACT)
+            throw new TException("Unknown sample format " + blob[0]);
+        beginRead(blob);
+        try {
+            copyStruct(inProtocol, out);
+        } finally {
+            in.clear();
+        }
+    }
+
+    private static void copyStruct(TProtocol in, TProtocol out)
+            throws TException {
+        out.writeStructBegin(in.readStructBegin());
+        while (true) {
+            TField field = in.readFieldBegin();
+            if (field.type == TType.STOP)
+                break;
+            out.writeFieldBegin(field);
+            copyValue(in, out, field.type);
+            in.readFieldEnd();
+            out.writeFieldEnd();
+        }
+        out.writeFieldStop();
+        in.readStructEnd();
+        out.writeStructEnd();
+    }
+
+    private static void copyValue(TProtocol in, TProtocol out, byte type)
+            throws TException {
+        switch (type) {
+        case TType.BOOL:
+            out.writeBool(in.readBool());
+            break;
+        case TType.BYTE:
+            out.writeByte(in.readByte());
+            break;
+        case TType.I16:
+            out.writeI16(in.readI16());
+            break;
+        case TType.I32:
+            out.writeI32(in.readI32());
+            break;
+        case TType.I64:
+            out.writeI64(in.readI64());
+            break;
+        case TType.DOUBLE:
+            out.writeDouble(in.readDouble());
+            break;
+        case TType.STRING:
+            // Strings and binaries have the same encoding
+            out.writeBinary(in.readBinary());
+            break;
+        case TType.STRUCT:
+            copyStruct(in, out);
+            break;
+        case TType.LIST: {
+            TList list = in.readListBegin();
+            out.writeListBegin(list);
+            for (int i = 0; i < list.size; i++)
+                copyValue(in, out, list.elemType);
+            in.readListEnd();
+            out.writeListEnd();
+            break;
+        }
+        case TType.SET: {
+            TSet set = in.readSetBegin();
+            out.writeSetBegin(set);
+            for (int i = 0; i < set.size; i++)
+                copyValue(in, out, set.elemType);
+            in.readSetEnd();
+            out.writeSetEnd();
+            break;
+        }
+        case TType.MAP: {
+            TMap map = in.readMapBegin();
+            out.writeMapBegin(map);
+            for (int i = 0; i < map.size; i++) {
+                copyValue(in, out, map.keyType);
+                copyValue(in, out, map.valueType);
+            }
+            in.readMapEnd();
+            out.writeMapEnd();
+            break;
+        }
+        default:
+            throw new TException("Unknown Thrift type " + type);
+        }
+    }
+
+    /**
+     * @return true if the blob was written with Java serialization.
+     */
+    public static boolean isLegacy(byte[] blob) {
+        return blob != null && blob.length >= 2 && blob[0] == LEGACY_MAGIC_0
+                && blob[1] == LEGACY_MAGIC_1;
+    }
+
+    private static Sample decodeLegacy(byte[] blob) throws TException {
+        try {
+            ObjectInputStream oi = new ObjectInputStream(
+                    new ByteArrayInputStream(blob));
+            Object o = oi.readObject();
+            oi.close();
+            if (o instanceof Sample)
+                return (Sample) o;
+            return null;
+        } catch (IOException e) {
+            throw new TException("Could not read legacy sample", e);
+        } catch (ClassNotFoundException e) {
+            throw new TException("Could not read legacy sample", e);
+        }
+    }
+
+    /*
+     * A TCompactProtocol that, when tagged, writes strings found in the
+     * Dictionary as their id. Every string and binary then starts with a
+     * varint tag: 0 for a value that follows inline, id + 1 for a dictionary
+     * entry. Reading a binary returns the dictionary's bytes, so transcode()
+     * copies interned strings without decoding them.
+     */
+    private static class DictionaryProtocol extends TCompactProtocol {
+        private final Dictionary dictionary;
+        boolean tagged = false;
+
+        DictionaryProtocol(TTransport transport, Dictionary dictionary) {
+            super(transport);
+            this.dictionary = dictionary;
+        }
+
+        @Override
+        public void writeString(String str) throws TException {
+            if (tagged) {
+                int id = dictionary.intern(str);
+                if (id >= 0) {
+                    writeI32(id + 1);
+                    return;
+                }
+                writeI32(0);
+            }
+            super.writeString(str);
+        }
+
+        @Override
+        public void writeBinary(ByteBuffer bin) throws TException {
+            if (tagged)
+                writeI32(0);
+            super.writeBinary(bin);
+        }
+
+        @Override
+        public String readString() throws TException {
+            int tag = tagged ? readI32() : 0;
+            if (tag == 0)
+                return super.readString();
+            String str = dictionary.getString(tag - 1);
+            if (str == null)
+                throw new TException("Unknown string id " + (tag - 1));
+            return str;
+        }
+
+        @Override
+        public ByteBuffer readBinary() throws TException {
+            int tag = tagged ? readI32() : 0;
+            if (tag == 0)
+                return super.readBinary();
+            byte[] bytes = dictionary.getBytes(tag - 1);
+            if (bytes == null)
+                throw new TException("Unknown string id " + (tag - 1));
+            return ByteBuffer.wrap(bytes);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.io.Closeable;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocol;
+
+import android.database.Cursor;
+import android.provider.BaseColumns;
+import edu.berkeley.cs.amplab.carat.thrift.Sample;
+
+/**
+ * Pull-based view over stored samples, returned by
+ * CaratSampleDB.openOldestSamples(int). Rows are read from the database as
+ * the caller moves forward, and the stored bytes are only decoded when
+ * getSample() is called, so an uploader can forward them with writeSample()
+ * without creating Sample objects. Always close() when done.
+ */
+public class SampleCursor implements Closeable {
+
+    private final Cursor cursor;
+    private final SampleBlobCodec codec;
+    private final SampleBlobCodec.KeyFrames keyFrames;
+    private final int idColumn;
+    private final int timestampColumn;
+    private final int sampleColumn;
+
+    SampleCursor(Cursor cursor, SampleBlobCodec.KeyFrames keyFrames,
+            SampleBlobCodec.Dictionary dictionary) {
+        this.cursor = cursor;
+        this.keyFrames = keyFrames;
+        this.codec = new SampleBlobCodec(dictionary);
+        if (cursor != null) {
+            idColumn = cursor.getColumnIndex(BaseColumns._ID);
+            timestampColumn = cursor
+                    .getColumnIndex(CaratSampleDB.COLUMN_TIMESTAMP);
+            sampleColumn = cursor.getColumnIndex(CaratSampleDB.COLUMN_SAMPLE);
+            cursor.moveToPosition(-1);
+        } else {
+            idColumn = timestampColumn = sampleColumn = -1;
+        }
+    }
+
+    /**
+     * @return the number of samples this cursor covers.
+     */
+    public int getCount() {
+        return cursor == null ? 0 : cursor.getCount();
+    }
+
+    /**
+     * Move to the next sample.
+     *
+     * @return false when there are no more samples.
+     */
+    public boolean moveToNext() {
+        return cursor != null && cursor.moveToNext();
+    }
+
+    /**
+     * Go back to before the first sample, to send the same samples again.
+     */
+    public void rewind() {
+        if (cursor != null)
+            cursor.moveToPosition(-1);
+    }
+
+    /**
+     * @return the rowid of the current sample, for deleting it once sent.
+     */
+    public long getRowId() {
+        return cursor.getLong(idColumn);
+    }
+
+    /**
+     * @return the timestamp of the current sample, as in
+     *         Sample.getTimestamp().
+     */
+    public double getTimestamp() {
+        return cursor.getDouble(timestampColumn);
+    }
+
+    /**
+     * @return the stored bytes of the current sample, see SampleBlobCodec.
+     *         These may be a delta against another row.
+     */
+    public byte[] getEncodedSample() {
+        return cursor.getBlob(sampleColumn);
+    }
+
+    /**
+     * Decode the current sample.
+     *
+     * @return the Sample, or null if it could not be decoded.
+     */
+    public Sample getSample() throws TException {
+        return codec.decode(getEncodedSample(), keyFrames);
+    }
+
+    /**
+     * Write the current sample to a protocol as a Sample struct, copying the
+     * stored encoding field by field instead of decoding it first. Deltas
+     * are decoded against their key frame.
+     */
+    public void writeSample(TProtocol out) throws TException {
+        codec.transcode(getEncodedSample(), out, keyFrames);
+    }
+
+    public void close() {
+        if (cursor != null)
+            cursor.close();
+    }
+}
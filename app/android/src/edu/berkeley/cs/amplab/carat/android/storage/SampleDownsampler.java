@@ -0,0 +1,95 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.berkeley.cs.amplab.carat.thrift.ProcessInfo;
+import edu.berkeley.cs.amplab.carat.thrift.Sample;
+
+/**
+ * Decides which of a run of old samples to keep when CaratSampleDB is over
+ * its budget. Samples are given in time order. A sample is kept when its
+ * battery level or state differs from the previous kept sample, so that
+ * every battery change is still there. Processes of dropped samples that
+ * the next kept sample does not have are added to its process list, so the
+ * kept sample covers everything that ran since the previous one. Samples
+ * that cannot be rewritten, such as key frames other rows are stored
+ * against, are kept as they are and the processes go to the next kept
+ * sample that can.
+ */
+class SampleDownsampler {
+
+    private Sample lastKept = null;
+    // Processes of dropped samples, by name, not yet merged into a kept one.
+    private final Map<String, ProcessInfo> pending = new LinkedHashMap<String, ProcessInfo>();
+    private boolean merged = false;
+
+    /**
+     * @param s
+     *            the next sample
+     * @param last
+     *            true for the last sample of the run, which is always kept
+     *            so that pending processes are not lost.
+     * @param rewritable
+     *            false if s must not be changed if kept.
+     * @return true if s should be kept.
+     */
+    boolean keep(Sample s, boolean last, boolean rewritable) {
+        merged = false;
+        if (lastKept == null || last || batteryChanged(lastKept, s)) {
+            if (rewritable && !pending.isEmpty())
+                merged = mergeInto(s);
+            lastKept = s;
+            return true;
+        }
+        List<ProcessInfo> list = s.getPiList();
+        if (list != null) {
+            for (ProcessInfo p : list) {
+                if (p.getPName() != null && !pending.containsKey(p.getPName()))
+                    pending.put(p.getPName(), p);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the process list of the sample last passed to keep()
+     *         was changed, so that it needs to be written back.
+     */
+    boolean merged() {
+        return merged;
+    }
+
+    private boolean mergeInto(Sample s) {
+        List<ProcessInfo> list = s.getPiList();
+        HashSet<String> names = new HashSet<String>();
+        if (list != null) {
+            for (ProcessInfo p : list)
+                names.add(p.getPName());
+        } else {
+            list = new ArrayList<ProcessInfo>();
+        }
+        boolean changed = false;
+        for (Map.Entry<String, ProcessInfo> e : pending.entrySet()) {
+            if (!names.contains(e.getKey())) {
+                list.add(e.getValue());
+                changed = true;
+            }
+        }
+        pending.clear();
+        if (changed)
+            s.setPiList(list);
+        return changed;
+    }
+
+    private static boolean batteryChanged(Sample a, Sample b) {
+        if (a.getBatteryLevel() != b.getBatteryLevel())
+            return true;
+        String sa = a.getBatteryState();
+        String sb = b.getBatteryState();
+        return sa == null ? sb != null : !sa.equals(sb);
+    }
+}
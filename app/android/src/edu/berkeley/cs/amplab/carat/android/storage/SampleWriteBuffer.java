@@ -0,0 +1,158 @@
+package edu.berkeley.cs.amplab.carat.android.storage;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.content.Context;
+import android.util.Log;
+import edu.berkeley.cs.amplab.carat.android.CaratApplication;
+import edu.berkeley.cs.amplab.carat.thrift.Sample;
+
+/**
+ * Bounded in-memory queue of samples waiting to be written to CaratSampleDB.
+ *
+ * Sampler adds samples from BroadcastReceiver.onReceive without touching the
+ * database or taking a lock. A background flusher thread writes them to
+ * CaratSampleDB in one transaction once SAMPLE_FLUSH_BATCH samples are
+ * pending or the oldest one has waited SAMPLE_FLUSH_AGE_MS. flush() writes
+ * everything out immediately, for low memory and shutdown.
+ *
+ * Adding is a compare-and-set on the tail counter. Draining is serialized by
+ * drainLock, so the only contention is between the flusher and an explicit
+ * flush().
+ */
+public class SampleWriteBuffer {
+
+    private static final String TAG = "SampleWriteBuffer";
+
+    private static SampleWriteBuffer instance = null;
+
+    private final CaratSampleDB db;
+    private final int capacity;
+    private final AtomicReferenceArray<Sample> slots;
+    // Next slot to drain and next slot to fill. Only ever increase.
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    // When the buffer last went from empty to non-empty.
+    private volatile long oldestPending = 0;
+
+    private final Object drainLock = new Object();
+    private volatile Thread flusher = null;
+
+    public static synchronized SampleWriteBuffer getInstance(Context c) {
+        if (instance == null)
+            instance = new SampleWriteBuffer(CaratSampleDB.getInstance(c),
+                    CaratApplication.SAMPLE_BUFFER_CAPACITY);
+        return instance;
+    }
+
+    public SampleWriteBuffer(CaratSampleDB db, int capacity) {
+        this.db = db;
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<Sample>(capacity);
+    }
+
+    /**
+     * Queue a sample for writing. Does not block.
+     *
+     * @return false if the buffer is full. The caller should then write the
+     *         sample to CaratSampleDB directly.
+     */
+    public boolean offer(Sample s) {
+        if (s == null)
+            return false;
+        if (flusher == null)
+            startFlusher();
+        while (true) {
+            long t = tail.get();
+            long h = head.get();
+            if (t - h >= capacity) {
+                LockSupport.unpark(flusher);
+                return false;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                if (t == h)
+                    oldestPending = System.currentTimeMillis();
+                slots.set((int) (t % capacity), s);
+                db.setLastSample(s);
+                if (t + 1 - h >= CaratApplication.SAMPLE_FLUSH_BATCH)
+                    LockSupport.unpark(flusher);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples not yet written to CaratSampleDB.
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Write all pending samples to CaratSampleDB on the calling thread. The
+     * samples stay in the buffer until they are written, so if the write
+     * fails they are tried again with the next flush.
+     *
+     * @return the number of samples written
+     */
+    public int flush() {
+        synchronized (drainLock) {
+            ArrayList<Sample> batch = new ArrayList<Sample>(size());
+            long h = head.get();
+            for (long i = h; i < tail.get(); i++) {
+                Sample s = slots.get((int) (i % capacity));
+                // Claimed by offer() but not stored yet; take it next time.
+                if (s == null)
+                    break;
+                batch.add(s);
+            }
+            if (batch.isEmpty())
+                return 0;
+            int written = db.putSamples(batch);
+            if (written < batch.size()) {
+                Log.e(TAG, "Failed to write " + batch.size()
+                        + " samples, keeping them for the next flush!");
+                return 0;
+            }
+            /*
+             * Clear the slots before moving head past them, so that offer()
+             * does not fill them again first.
+             */
+            for (long i = h; i < h + written; i++)
+                slots.set((int) (i % capacity), null);
+            head.set(h + written);
+            Log.d(TAG, "Flushed " + written + " samples.");
+            return written;
+        }
+    }
+
+    private synchronized void startFlusher() {
+        if (flusher != null)
+            return;
+        flusher = new Thread("SampleFlusher") {
+            public void run() {
+                long maxAgeNanos = CaratApplication.SAMPLE_FLUSH_AGE_MS * 1000000L;
+                while (true) {
+                    LockSupport.parkNanos(maxAgeNanos);
+                    int pending = size();
+                    if (pending == 0)
+                        continue;
+                    long age = System.currentTimeMillis() - oldestPending;
+                    if (pending >= CaratApplication.SAMPLE_FLUSH_BATCH
+                            || age >= CaratApplication.SAMPLE_FLUSH_AGE_MS) {
+                        try {
+                            flush();
+                        } catch (Throwable th) {
+                            Log.e(TAG, "Failed to flush samples!", th);
+                        }
+                    }
+                }
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+}
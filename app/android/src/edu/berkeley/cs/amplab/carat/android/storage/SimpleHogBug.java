@@ -1,19 +1,15 @@
 package edu.berkeley.cs.amplab.carat.android.storage;
 
-import java.io.Serializable;
-
 import edu.berkeley.cs.amplab.carat.android.CaratApplication.Type;
 
 /**
- * Simple container class for Hog/Bug data to save memory.
+ * Simple container class for Hog/Bug data to save memory. The distributions
+ * of all items in a report are kept as floats in one shared array, and
+ * stored by HogBugCodec.
  * @author Eemil Lagerspetz
  *
  */
-public class SimpleHogBug implements Serializable{
-    /**
-     * Auto-generated UID for serialization
-     */
-    private static final long serialVersionUID = 8272459694607111058L;
+public class SimpleHogBug {
     
     private Type type = null;
     
@@ -58,49 +54,104 @@ public class SimpleHogBug implements Serializable{
      * @return the xVals
      */
     public double[] getxVals() {
-        return xVals;
-    }
-    /**
-     * @param xVals the xVals to set
-     */
-    public void setxVals(double[] xVals) {
-        this.xVals = xVals;
+        return toDoubles(offset, xLength);
     }
     /**
      * @return the yVals
      */
     public double[] getyVals() {
-        return yVals;
-    }
-    /**
-     * @param yVals the yVals to set
-     */
-    public void setyVals(double[] yVals) {
-        this.yVals = yVals;
+        return toDoubles(offset + xLength, yLength);
     }
     /**
      * @return the xValsWithout
      */
     public double[] getxValsWithout() {
-        return xValsWithout;
+        return toDoubles(offset + xLength + yLength, xWithoutLength);
     }
     /**
-     * @param xValsWithout the xValsWithout to set
+     * @return the yValsWithout
      */
-    public void setxValsWithout(double[] xValsWithout) {
-        this.xValsWithout = xValsWithout;
+    public double[] getyValsWithout() {
+        return toDoubles(offset + xLength + yLength + xWithoutLength,
+                yWithoutLength);
     }
+
     /**
-     * @return the yValsWithout
+     * Point this item to its distributions in values, which is shared by all
+     * items of a report: xVals, yVals, xValsWithout and yValsWithout, one
+     * after another from offset.
      */
-    public double[] getyValsWithout() {
-        return yValsWithout;
+    void setDistributions(float[] values, int offset, int xLength,
+            int yLength, int xWithoutLength, int yWithoutLength) {
+        this.values = values;
+        this.offset = offset;
+        this.xLength = xLength;
+        this.yLength = yLength;
+        this.xWithoutLength = xWithoutLength;
+        this.yWithoutLength = yWithoutLength;
     }
+
     /**
-     * @param yValsWithout the yValsWithout to set
+     * @return a copy of this item with its distributions copied to values
+     *         from offset.
+     */
+    SimpleHogBug copy(float[] values, int offset) {
+        SimpleHogBug b = new SimpleHogBug(appName, type);
+        b.appLabel = appLabel;
+        b.appPriority = appPriority;
+        b.wDistance = wDistance;
+        b.expectedValue = expectedValue;
+        b.expectedValueWithout = expectedValueWithout;
+        if (this.values != null)
+            System.arraycopy(this.values, this.offset, values, offset,
+                    getValueCount());
+        b.setDistributions(values, offset, xLength, yLength, xWithoutLength,
+                yWithoutLength);
+        return b;
+    }
+
+    float[] getValues() {
+        return values;
+    }
+
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of values of this item in getValues().
+     */
+    int getValueCount() {
+        return xLength + yLength + xWithoutLength + yWithoutLength;
+    }
+
+    int getxLength() {
+        return xLength;
+    }
+
+    int getyLength() {
+        return yLength;
+    }
+
+    int getxWithoutLength() {
+        return xWithoutLength;
+    }
+
+    int getyWithoutLength() {
+        return yWithoutLength;
+    }
+
+    /*
+     * The graphs draw doubles; they are only needed for the item on screen,
+     * so they are not kept.
      */
-    public void setyValsWithout(double[] yValsWithout) {
-        this.yValsWithout = yValsWithout;
+    private double[] toDoubles(int from, int length) {
+        if (values == null)
+            return null;
+        double[] arr = new double[length];
+        for (int i = 0; i < length; i++)
+            arr[i] = values[from + i];
+        return arr;
     }
     /**
      * @return the expectedValue
@@ -151,10 +202,13 @@ public class SimpleHogBug implements Serializable{
         this.appPriority = appPriority;
     }
     private double wDistance; // optional
-    private double[] xVals; // optional
-    private double[] yVals; // optional
-    private double[] xValsWithout; // optional
-    private double[] yValsWithout; // optional
+    // optional, see setDistributions()
+    private float[] values;
+    private int offset;
+    private int xLength;
+    private int yLength;
+    private int xWithoutLength;
+    private int yWithoutLength;
     private double expectedValue; // optional
     private double expectedValueWithout; // optional
     private String appLabel; // optional
@@ -5,6 +5,7 @@ import android.util.Log;
 import edu.berkeley.cs.amplab.carat.android.R;
 import edu.berkeley.cs.amplab.carat.android.CaratApplication;
 import edu.berkeley.cs.amplab.carat.android.sampling.SamplingLibrary;
+import edu.berkeley.cs.amplab.carat.android.storage.CaratDataStorage;
 import edu.berkeley.cs.amplab.carat.thrift.Reports;
 
 /**
@@ -112,10 +113,18 @@ public class UiRefreshThread extends Thread {
 		Log.d(TAG, "Refresh thread stopped.");
 	}
 
+	/**
+	 * Show the main reports on the My Device tab. Safe to call on the UI
+	 * thread: does nothing while CaratDataStorage is loading, and is called
+	 * again when it is done.
+	 */
 	public static void setReportData() {
-		final Reports r = CaratApplication.s.getReports();
+		CaratDataStorage s = CaratApplication.peekStorage();
+		if (s == null)
+			return;
+		final Reports r = s.getReports();
 		Log.d("CaratHomeScreen", "Got reports: " + r);
-		long freshness = CaratApplication.s.getFreshness();
+		long freshness = s.getFreshness();
 		long l = System.currentTimeMillis() - freshness;
 		final long h = l / 3600000;
 		final long min = (l - h * 3600000) / 60000;
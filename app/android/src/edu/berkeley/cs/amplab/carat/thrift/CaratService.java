@@ -25,6 +25,12 @@ import java.util.BitSet;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+/**
+ * uploadSamples was added by hand and is not in the IDL this was generated
+ * from. Add it to service CaratService before regenerating, or it is lost:
+ *
+ *   binary uploadSamples(1: list<Sample> samples)
+ */
 public class CaratService {
 
   public interface Iface {
@@ -37,6 +43,15 @@ public class CaratService {
 
     public HogBugReport getHogOrBugReport(String uuId, List<Feature> features) throws org.apache.thrift.TException;
 
+    /**
+     * Upload several samples at once. The result has one bit per sample, the
+     * lowest bit of the first byte for the first sample, set if the sample was
+     * accepted.
+     * 
+     * @param samples
+     */
+    public ByteBuffer uploadSamples(List<Sample> samples) throws org.apache.thrift.TException;
+
   }
 
   public interface AsyncIface {
@@ -49,6 +64,8 @@ public class CaratService {
 
     public void getHogOrBugReport(String uuId, List<Feature> features, org.apache.thrift.async.AsyncMethodCallback<AsyncClient.getHogOrBugReport_call> resultHandler) throws org.apache.thrift.TException;
 
+    public void uploadSamples(List<Sample> samples, org.apache.thrift.async.AsyncMethodCallback<AsyncClient.uploadSamples_call> resultHandler) throws org.apache.thrift.TException;
+
   }
 
   public static class Client extends org.apache.thrift.TServiceClient implements Iface {
@@ -154,6 +171,29 @@ public class CaratService {
       throw new org.apache.thrift.TApplicationException(org.apache.thrift.TApplicationException.MISSING_RESULT, "getHogOrBugReport failed: unknown result");
     }
 
+    public ByteBuffer uploadSamples(List<Sample> samples) throws org.apache.thrift.TException
+    {
+      send_uploadSamples(samples);
+      return recv_uploadSamples();
+    }
+
+    public void send_uploadSamples(List<Sample> samples) throws org.apache.thrift.TException
+    {
+      uploadSamples_args args = new uploadSamples_args();
+      args.setSamples(samples);
+      sendBase("uploadSamples", args);
+    }
+
+    public ByteBuffer recv_uploadSamples() throws org.apache.thrift.TException
+    {
+      uploadSamples_result result = new uploadSamples_result();
+      receiveBase(result, "uploadSamples");
+      if (result.isSetSuccess()) {
+        return result.success;
+      }
+      throw new org.apache.thrift.TApplicationException(org.apache.thrift.TApplicationException.MISSING_RESULT, "uploadSamples failed: unknown result");
+    }
+
   }
   public static class AsyncClient extends org.apache.thrift.async.TAsyncClient implements AsyncIface {
     public static class Factory implements org.apache.thrift.async.TAsyncClientFactory<AsyncClient> {
@@ -305,6 +345,38 @@ public class CaratService {
       }
     }
 
+    public void uploadSamples(List<Sample> samples, org.apache.thrift.async.AsyncMethodCallback<uploadSamples_call> resultHandler) throws org.apache.thrift.TException {
+      checkReady();
+      uploadSamples_call method_call = new uploadSamples_call(samples, resultHandler, this, ___protocolFactory, ___transport);
+      this.___currentMethod = method_call;
+      ___manager.call(method_call);
+    }
+
+    public static class uploadSamples_call extends org.apache.thrift.async.TAsyncMethodCall {
+      private List<Sample> samples;
+      public uploadSamples_call(List<Sample> samples, org.apache.thrift.async.AsyncMethodCallback<uploadSamples_call> resultHandler, org.apache.thrift.async.TAsyncClient client, org.apache.thrift.protocol.TProtocolFactory protocolFactory, org.apache.thrift.transport.TNonblockingTransport transport) throws org.apache.thrift.TException {
+        super(client, protocolFactory, transport, resultHandler, false);
+        this.samples = samples;
+      }
+
+      public void write_args(org.apache.thrift.protocol.TProtocol prot) throws org.apache.thrift.TException {
+        prot.writeMessageBegin(new org.apache.thrift.protocol.TMessage("uploadSamples", org.apache.thrift.protocol.TMessageType.CALL, 0));
+        uploadSamples_args args = new uploadSamples_args();
+        args.setSamples(samples);
+        args.write(prot);
+        prot.writeMessageEnd();
+      }
+
+      public ByteBuffer getResult() throws org.apache.thrift.TException {
+        if (getState() != org.apache.thrift.async.TAsyncMethodCall.State.RESPONSE_READ) {
+          throw new IllegalStateException("Method call not finished!");
+        }
+        org.apache.thrift.transport.TMemoryInputTransport memoryTransport = new org.apache.thrift.transport.TMemoryInputTransport(getFrameBuffer().array());
+        org.apache.thrift.protocol.TProtocol prot = client.getProtocolFactory().getProtocol(memoryTransport);
+        return (new Client(prot)).recv_uploadSamples();
+      }
+    }
+
   }
 
   public static class Processor<I extends Iface> extends org.apache.thrift.TBaseProcessor<I> implements org.apache.thrift.TProcessor {
@@ -322,6 +394,7 @@ public class CaratService {
       processMap.put("uploadSample", new uploadSample());
       processMap.put("getReports", new getReports());
       processMap.put("getHogOrBugReport", new getHogOrBugReport());
+      processMap.put("uploadSamples", new uploadSamples());
       return processMap;
     }
 
@@ -389,6 +462,22 @@ public class CaratService {
       }
     }
 
+    private static class uploadSamples<I extends Iface> extends org.apache.thrift.ProcessFunction<I, uploadSamples_args> {
+      public uploadSamples() {
+        super("uploadSamples");
+      }
+
+      protected uploadSamples_args getEmptyArgsInstance() {
+        return new uploadSamples_args();
+      }
+
+      protected uploadSamples_result getResult(I iface, uploadSamples_args args) throws org.apache.thrift.TException {
+        uploadSamples_result result = new uploadSamples_result();
+        result.success = iface.uploadSamples(args.samples);
+        return result;
+      }
+    }
+
   }
 
   public static class registerMe_args implements org.apache.thrift.TBase<registerMe_args, registerMe_args._Fields>, java.io.Serializable, Cloneable   {
@@ -3165,4 +3254,775 @@ public class CaratService {
 
   }
 
+  public static class uploadSamples_args implements org.apache.thrift.TBase<uploadSamples_args, uploadSamples_args._Fields>, java.io.Serializable, Cloneable   {
+    private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("uploadSamples_args");
+
+    private static final org.apache.thrift.protocol.TField SAMPLES_FIELD_DESC = new org.apache.thrift.protocol.TField("samples", org.apache.thrift.protocol.TType.LIST, (short)1);
+
+    private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
+    static {
+      schemes.put(StandardScheme.class, new uploadSamples_argsStandardSchemeFactory());
+      schemes.put(TupleScheme.class, new uploadSamples_argsTupleSchemeFactory());
+    }
+
+    public List<Sample> samples; // required
+
+    /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
+    public enum _Fields implements org.apache.thrift.TFieldIdEnum {
+      SAMPLES((short)1, "samples");
+
+      private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
+
+      static {
+        for (_Fields field : EnumSet.allOf(_Fields.class)) {
+          byName.put(field.getFieldName(), field);
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, or null if its not found.
+       */
+      public static _Fields findByThriftId(int fieldId) {
+        switch(fieldId) {
+          case 1: // SAMPLES
+            return SAMPLES;
+          default:
+            return null;
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, throwing an exception
+       * if it is not found.
+       */
+      public static _Fields findByThriftIdOrThrow(int fieldId) {
+        _Fields fields = findByThriftId(fieldId);
+        if (fields == null) throw new IllegalArgumentException("Field " + fieldId + " doesn't exist!");
+        return fields;
+      }
+
+      /**
+       * Find the _Fields constant that matches name, or null if its not found.
+       */
+      public static _Fields findByName(String name) {
+        return byName.get(name);
+      }
+
+      private final short _thriftId;
+      private final String _fieldName;
+
+      _Fields(short thriftId, String fieldName) {
+        _thriftId = thriftId;
+        _fieldName = fieldName;
+      }
+
+      public short getThriftFieldId() {
+        return _thriftId;
+      }
+
+      public String getFieldName() {
+        return _fieldName;
+      }
+    }
+
+    // isset id assignments
+    public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
+    static {
+      Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
+      tmpMap.put(_Fields.SAMPLES, new org.apache.thrift.meta_data.FieldMetaData("samples", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.ListMetaData(org.apache.thrift.protocol.TType.LIST, 
+              new org.apache.thrift.meta_data.StructMetaData(org.apache.thrift.protocol.TType.STRUCT, Sample.class))));
+      metaDataMap = Collections.unmodifiableMap(tmpMap);
+      org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(uploadSamples_args.class, metaDataMap);
+    }
+
+    public uploadSamples_args() {
+    }
+
+    public uploadSamples_args(
+      List<Sample> samples)
+    {
+      this();
+      this.samples = samples;
+    }
+
+    /**
+     * Performs a deep copy on <i>other</i>.
+     */
+    public uploadSamples_args(uploadSamples_args other) {
+      if (other.isSetSamples()) {
+        List<Sample> __this__samples = new ArrayList<Sample>();
+        for (Sample other_element : other.samples) {
+          __this__samples.add(new Sample(other_element));
+        }
+        this.samples = __this__samples;
+      }
+    }
+
+    public uploadSamples_args deepCopy() {
+      return new uploadSamples_args(this);
+    }
+
+    @Override
+    public void clear() {
+      this.samples = null;
+    }
+
+    public int getSamplesSize() {
+      return (this.samples == null) ? 0 : this.samples.size();
+    }
+
+    public java.util.Iterator<Sample> getSamplesIterator() {
+      return (this.samples == null) ? null : this.samples.iterator();
+    }
+
+    public void addToSamples(Sample elem) {
+      if (this.samples == null) {
+        this.samples = new ArrayList<Sample>();
+      }
+      this.samples.add(elem);
+    }
+
+    public List<Sample> getSamples() {
+      return this.samples;
+    }
+
+    public uploadSamples_args setSamples(List<Sample> samples) {
+      this.samples = samples;
+      return this;
+    }
+
+    public void unsetSamples() {
+      this.samples = null;
+    }
+
+    /** Returns true if field samples is set (has been assigned a value) and false otherwise */
+    public boolean isSetSamples() {
+      return this.samples != null;
+    }
+
+    public void setSamplesIsSet(boolean value) {
+      if (!value) {
+        this.samples = null;
+      }
+    }
+
+    public void setFieldValue(_Fields field, Object value) {
+      switch (field) {
+      case SAMPLES:
+        if (value == null) {
+          unsetSamples();
+        } else {
+          setSamples((List<Sample>)value);
+        }
+        break;
+
+      }
+    }
+
+    public Object getFieldValue(_Fields field) {
+      switch (field) {
+      case SAMPLES:
+        return getSamples();
+
+      }
+      throw new IllegalStateException();
+    }
+
+    /** Returns true if field corresponding to fieldID is set (has been assigned a value) and false otherwise */
+    public boolean isSet(_Fields field) {
+      if (field == null) {
+        throw new IllegalArgumentException();
+      }
+
+      switch (field) {
+      case SAMPLES:
+        return isSetSamples();
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that == null)
+        return false;
+      if (that instanceof uploadSamples_args)
+        return this.equals((uploadSamples_args)that);
+      return false;
+    }
+
+    public boolean equals(uploadSamples_args that) {
+      if (that == null)
+        return false;
+
+      boolean this_present_samples = true && this.isSetSamples();
+      boolean that_present_samples = true && that.isSetSamples();
+      if (this_present_samples || that_present_samples) {
+        if (!(this_present_samples && that_present_samples))
+          return false;
+        if (!this.samples.equals(that.samples))
+          return false;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return 0;
+    }
+
+    public int compareTo(uploadSamples_args other) {
+      if (!getClass().equals(other.getClass())) {
+        return getClass().getName().compareTo(other.getClass().getName());
+      }
+
+      int lastComparison = 0;
+      uploadSamples_args typedOther = (uploadSamples_args)other;
+
+      lastComparison = Boolean.valueOf(isSetSamples()).compareTo(typedOther.isSetSamples());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetSamples()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.samples, typedOther.samples);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      return 0;
+    }
+
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void read(org.apache.thrift.protocol.TProtocol iprot) throws org.apache.thrift.TException {
+      schemes.get(iprot.getScheme()).getScheme().read(iprot, this);
+    }
+
+    public void write(org.apache.thrift.protocol.TProtocol oprot) throws org.apache.thrift.TException {
+      schemes.get(oprot.getScheme()).getScheme().write(oprot, this);
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("uploadSamples_args(");
+      boolean first = true;
+
+      sb.append("samples:");
+      if (this.samples == null) {
+        sb.append("null");
+      } else {
+        sb.append(this.samples);
+      }
+      first = false;
+      sb.append(")");
+      return sb.toString();
+    }
+
+    public void validate() throws org.apache.thrift.TException {
+      // check for required fields
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+      try {
+        write(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(out)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te.getMessage());
+      }
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      try {
+        read(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(in)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te.getMessage());
+      }
+    }
+
+    private static class uploadSamples_argsStandardSchemeFactory implements SchemeFactory {
+      public uploadSamples_argsStandardScheme getScheme() {
+        return new uploadSamples_argsStandardScheme();
+      }
+    }
+
+    private static class uploadSamples_argsStandardScheme extends StandardScheme<uploadSamples_args> {
+
+      public void read(org.apache.thrift.protocol.TProtocol iprot, uploadSamples_args struct) throws org.apache.thrift.TException {
+        org.apache.thrift.protocol.TField schemeField;
+        iprot.readStructBegin();
+        while (true)
+        {
+          schemeField = iprot.readFieldBegin();
+          if (schemeField.type == org.apache.thrift.protocol.TType.STOP) { 
+            break;
+          }
+          switch (schemeField.id) {
+            case 1: // SAMPLES
+              if (schemeField.type == org.apache.thrift.protocol.TType.LIST) {
+                {
+                  org.apache.thrift.protocol.TList _list88 = iprot.readListBegin();
+                  struct.samples = new ArrayList<Sample>(_list88.size);
+                  for (int _i89 = 0; _i89 < _list88.size; ++_i89)
+                  {
+                    Sample _elem90; // required
+                    _elem90 = new Sample();
+                    _elem90.read(iprot);
+                    struct.samples.add(_elem90);
+                  }
+                  iprot.readListEnd();
+                }
+                struct.setSamplesIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            default:
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+          }
+          iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+
+        // check for required fields of primitive type, which can't be checked in the validate method
+        struct.validate();
+      }
+
+      public void write(org.apache.thrift.protocol.TProtocol oprot, uploadSamples_args struct) throws org.apache.thrift.TException {
+        struct.validate();
+
+        oprot.writeStructBegin(STRUCT_DESC);
+        if (struct.samples != null) {
+          oprot.writeFieldBegin(SAMPLES_FIELD_DESC);
+          {
+            oprot.writeListBegin(new org.apache.thrift.protocol.TList(org.apache.thrift.protocol.TType.STRUCT, struct.samples.size()));
+            for (Sample _iter91 : struct.samples)
+            {
+              _iter91.write(oprot);
+            }
+            oprot.writeListEnd();
+          }
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+      }
+
+    }
+
+    private static class uploadSamples_argsTupleSchemeFactory implements SchemeFactory {
+      public uploadSamples_argsTupleScheme getScheme() {
+        return new uploadSamples_argsTupleScheme();
+      }
+    }
+
+    private static class uploadSamples_argsTupleScheme extends TupleScheme<uploadSamples_args> {
+
+      @Override
+      public void write(org.apache.thrift.protocol.TProtocol prot, uploadSamples_args struct) throws org.apache.thrift.TException {
+        TTupleProtocol oprot = (TTupleProtocol) prot;
+        BitSet optionals = new BitSet();
+        if (struct.isSetSamples()) {
+          optionals.set(0);
+        }
+        oprot.writeBitSet(optionals, 1);
+        if (struct.isSetSamples()) {
+          {
+            oprot.writeI32(struct.samples.size());
+            for (Sample _iter92 : struct.samples)
+            {
+              _iter92.write(oprot);
+            }
+          }
+        }
+      }
+
+      @Override
+      public void read(org.apache.thrift.protocol.TProtocol prot, uploadSamples_args struct) throws org.apache.thrift.TException {
+        TTupleProtocol iprot = (TTupleProtocol) prot;
+        BitSet incoming = iprot.readBitSet(1);
+        if (incoming.get(0)) {
+          {
+            org.apache.thrift.protocol.TList _list93 = new org.apache.thrift.protocol.TList(org.apache.thrift.protocol.TType.STRUCT, iprot.readI32());
+            struct.samples = new ArrayList<Sample>(_list93.size);
+            for (int _i94 = 0; _i94 < _list93.size; ++_i94)
+            {
+              Sample _elem95; // required
+              _elem95 = new Sample();
+              _elem95.read(iprot);
+              struct.samples.add(_elem95);
+            }
+          }
+          struct.setSamplesIsSet(true);
+        }
+      }
+    }
+
+  }
+
+  public static class uploadSamples_result implements org.apache.thrift.TBase<uploadSamples_result, uploadSamples_result._Fields>, java.io.Serializable, Cloneable   {
+    private static final org.apache.thrift.protocol.TStruct STRUCT_DESC = new org.apache.thrift.protocol.TStruct("uploadSamples_result");
+
+    private static final org.apache.thrift.protocol.TField SUCCESS_FIELD_DESC = new org.apache.thrift.protocol.TField("success", org.apache.thrift.protocol.TType.STRING, (short)0);
+
+    private static final Map<Class<? extends IScheme>, SchemeFactory> schemes = new HashMap<Class<? extends IScheme>, SchemeFactory>();
+    static {
+      schemes.put(StandardScheme.class, new uploadSamples_resultStandardSchemeFactory());
+      schemes.put(TupleScheme.class, new uploadSamples_resultTupleSchemeFactory());
+    }
+
+    public ByteBuffer success; // required
+
+    /** The set of fields this struct contains, along with convenience methods for finding and manipulating them. */
+    public enum _Fields implements org.apache.thrift.TFieldIdEnum {
+      SUCCESS((short)0, "success");
+
+      private static final Map<String, _Fields> byName = new HashMap<String, _Fields>();
+
+      static {
+        for (_Fields field : EnumSet.allOf(_Fields.class)) {
+          byName.put(field.getFieldName(), field);
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, or null if its not found.
+       */
+      public static _Fields findByThriftId(int fieldId) {
+        switch(fieldId) {
+          case 0: // SUCCESS
+            return SUCCESS;
+          default:
+            return null;
+        }
+      }
+
+      /**
+       * Find the _Fields constant that matches fieldId, throwing an exception
+       * if it is not found.
+       */
+      public static _Fields findByThriftIdOrThrow(int fieldId) {
+        _Fields fields = findByThriftId(fieldId);
+        if (fields == null) throw new IllegalArgumentException("Field " + fieldId + " doesn't exist!");
+        return fields;
+      }
+
+      /**
+       * Find the _Fields constant that matches name, or null if its not found.
+       */
+      public static _Fields findByName(String name) {
+        return byName.get(name);
+      }
+
+      private final short _thriftId;
+      private final String _fieldName;
+
+      _Fields(short thriftId, String fieldName) {
+        _thriftId = thriftId;
+        _fieldName = fieldName;
+      }
+
+      public short getThriftFieldId() {
+        return _thriftId;
+      }
+
+      public String getFieldName() {
+        return _fieldName;
+      }
+    }
+
+    // isset id assignments
+    public static final Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> metaDataMap;
+    static {
+      Map<_Fields, org.apache.thrift.meta_data.FieldMetaData> tmpMap = new EnumMap<_Fields, org.apache.thrift.meta_data.FieldMetaData>(_Fields.class);
+      tmpMap.put(_Fields.SUCCESS, new org.apache.thrift.meta_data.FieldMetaData("success", org.apache.thrift.TFieldRequirementType.DEFAULT, 
+          new org.apache.thrift.meta_data.FieldValueMetaData(org.apache.thrift.protocol.TType.STRING          , true)));
+      metaDataMap = Collections.unmodifiableMap(tmpMap);
+      org.apache.thrift.meta_data.FieldMetaData.addStructMetaDataMap(uploadSamples_result.class, metaDataMap);
+    }
+
+    public uploadSamples_result() {
+    }
+
+    public uploadSamples_result(
+      ByteBuffer success)
+    {
+      this();
+      this.success = success;
+    }
+
+    /**
+     * Performs a deep copy on <i>other</i>.
+     */
+    public uploadSamples_result(uploadSamples_result other) {
+      if (other.isSetSuccess()) {
+        this.success = org.apache.thrift.TBaseHelper.copyBinary(other.success);
+;
+      }
+    }
+
+    public uploadSamples_result deepCopy() {
+      return new uploadSamples_result(this);
+    }
+
+    @Override
+    public void clear() {
+      this.success = null;
+    }
+
+    public byte[] getSuccess() {
+      setSuccess(org.apache.thrift.TBaseHelper.rightSize(success));
+      return success == null ? null : success.array();
+    }
+
+    public ByteBuffer bufferForSuccess() {
+      return success;
+    }
+
+    public uploadSamples_result setSuccess(byte[] success) {
+      setSuccess(success == null ? (ByteBuffer)null : ByteBuffer.wrap(success));
+      return this;
+    }
+
+    public uploadSamples_result setSuccess(ByteBuffer success) {
+      this.success = success;
+      return this;
+    }
+
+    public void unsetSuccess() {
+      this.success = null;
+    }
+
+    /** Returns true if field success is set (has been assigned a value) and false otherwise */
+    public boolean isSetSuccess() {
+      return this.success != null;
+    }
+
+    public void setSuccessIsSet(boolean value) {
+      if (!value) {
+        this.success = null;
+      }
+    }
+
+    public void setFieldValue(_Fields field, Object value) {
+      switch (field) {
+      case SUCCESS:
+        if (value == null) {
+          unsetSuccess();
+        } else {
+          setSuccess((ByteBuffer)value);
+        }
+        break;
+
+      }
+    }
+
+    public Object getFieldValue(_Fields field) {
+      switch (field) {
+      case SUCCESS:
+        return getSuccess();
+
+      }
+      throw new IllegalStateException();
+    }
+
+    /** Returns true if field corresponding to fieldID is set (has been assigned a value) and false otherwise */
+    public boolean isSet(_Fields field) {
+      if (field == null) {
+        throw new IllegalArgumentException();
+      }
+
+      switch (field) {
+      case SUCCESS:
+        return isSetSuccess();
+      }
+      throw new IllegalStateException();
+    }
+
+    @Override
+    public boolean equals(Object that) {
+      if (that == null)
+        return false;
+      if (that instanceof uploadSamples_result)
+        return this.equals((uploadSamples_result)that);
+      return false;
+    }
+
+    public boolean equals(uploadSamples_result that) {
+      if (that == null)
+        return false;
+
+      boolean this_present_success = true && this.isSetSuccess();
+      boolean that_present_success = true && that.isSetSuccess();
+      if (this_present_success || that_present_success) {
+        if (!(this_present_success && that_present_success))
+          return false;
+        if (!this.success.equals(that.success))
+          return false;
+      }
+
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return 0;
+    }
+
+    public int compareTo(uploadSamples_result other) {
+      if (!getClass().equals(other.getClass())) {
+        return getClass().getName().compareTo(other.getClass().getName());
+      }
+
+      int lastComparison = 0;
+      uploadSamples_result typedOther = (uploadSamples_result)other;
+
+      lastComparison = Boolean.valueOf(isSetSuccess()).compareTo(typedOther.isSetSuccess());
+      if (lastComparison != 0) {
+        return lastComparison;
+      }
+      if (isSetSuccess()) {
+        lastComparison = org.apache.thrift.TBaseHelper.compareTo(this.success, typedOther.success);
+        if (lastComparison != 0) {
+          return lastComparison;
+        }
+      }
+      return 0;
+    }
+
+    public _Fields fieldForId(int fieldId) {
+      return _Fields.findByThriftId(fieldId);
+    }
+
+    public void read(org.apache.thrift.protocol.TProtocol iprot) throws org.apache.thrift.TException {
+      schemes.get(iprot.getScheme()).getScheme().read(iprot, this);
+    }
+
+    public void write(org.apache.thrift.protocol.TProtocol oprot) throws org.apache.thrift.TException {
+      schemes.get(oprot.getScheme()).getScheme().write(oprot, this);
+      }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder("uploadSamples_result(");
+      boolean first = true;
+
+      sb.append("success:");
+      if (this.success == null) {
+        sb.append("null");
+      } else {
+        org.apache.thrift.TBaseHelper.toString(this.success, sb);
+      }
+      first = false;
+      sb.append(")");
+      return sb.toString();
+    }
+
+    public void validate() throws org.apache.thrift.TException {
+      // check for required fields
+    }
+
+    private void writeObject(java.io.ObjectOutputStream out) throws java.io.IOException {
+      try {
+        write(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(out)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te.getMessage());
+      }
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws java.io.IOException, ClassNotFoundException {
+      try {
+        read(new org.apache.thrift.protocol.TCompactProtocol(new org.apache.thrift.transport.TIOStreamTransport(in)));
+      } catch (org.apache.thrift.TException te) {
+        throw new java.io.IOException(te.getMessage());
+      }
+    }
+
+    private static class uploadSamples_resultStandardSchemeFactory implements SchemeFactory {
+      public uploadSamples_resultStandardScheme getScheme() {
+        return new uploadSamples_resultStandardScheme();
+      }
+    }
+
+    private static class uploadSamples_resultStandardScheme extends StandardScheme<uploadSamples_result> {
+
+      public void read(org.apache.thrift.protocol.TProtocol iprot, uploadSamples_result struct) throws org.apache.thrift.TException {
+        org.apache.thrift.protocol.TField schemeField;
+        iprot.readStructBegin();
+        while (true)
+        {
+          schemeField = iprot.readFieldBegin();
+          if (schemeField.type == org.apache.thrift.protocol.TType.STOP) { 
+            break;
+          }
+          switch (schemeField.id) {
+            case 0: // SUCCESS
+              if (schemeField.type == org.apache.thrift.protocol.TType.STRING) {
+                struct.success = iprot.readBinary();
+                struct.setSuccessIsSet(true);
+              } else { 
+                org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+              }
+              break;
+            default:
+              org.apache.thrift.protocol.TProtocolUtil.skip(iprot, schemeField.type);
+          }
+          iprot.readFieldEnd();
+        }
+        iprot.readStructEnd();
+
+        // check for required fields of primitive type, which can't be checked in the validate method
+        struct.validate();
+      }
+
+      public void write(org.apache.thrift.protocol.TProtocol oprot, uploadSamples_result struct) throws org.apache.thrift.TException {
+        struct.validate();
+
+        oprot.writeStructBegin(STRUCT_DESC);
+        if (struct.success != null) {
+          oprot.writeFieldBegin(SUCCESS_FIELD_DESC);
+          oprot.writeBinary(struct.success);
+          oprot.writeFieldEnd();
+        }
+        oprot.writeFieldStop();
+        oprot.writeStructEnd();
+      }
+
+    }
+
+    private static class uploadSamples_resultTupleSchemeFactory implements SchemeFactory {
+      public uploadSamples_resultTupleScheme getScheme() {
+        return new uploadSamples_resultTupleScheme();
+      }
+    }
+
+    private static class uploadSamples_resultTupleScheme extends TupleScheme<uploadSamples_result> {
+
+      @Override
+      public void write(org.apache.thrift.protocol.TProtocol prot, uploadSamples_result struct) throws org.apache.thrift.TException {
+        TTupleProtocol oprot = (TTupleProtocol) prot;
+        BitSet optionals = new BitSet();
+        if (struct.isSetSuccess()) {
+          optionals.set(0);
+        }
+        oprot.writeBitSet(optionals, 1);
+        if (struct.isSetSuccess()) {
+          oprot.writeBinary(struct.success);
+        }
+      }
+
+      @Override
+      public void read(org.apache.thrift.protocol.TProtocol prot, uploadSamples_result struct) throws org.apache.thrift.TException {
+        TTupleProtocol iprot = (TTupleProtocol) prot;
+        BitSet incoming = iprot.readBitSet(1);
+        if (incoming.get(0)) {
+          struct.success = iprot.readBinary();
+          struct.setSuccessIsSet(true);
+        }
+      }
+    }
+
+  }
+
 }